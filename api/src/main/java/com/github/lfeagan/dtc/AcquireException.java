@@ -10,6 +10,10 @@ public class AcquireException extends TaskManagerException {
         super(relatedTasks, relatedTaskQuery);
     }
 
+    public AcquireException(String message, Task[] relatedTasks) {
+        super(message, relatedTasks, null);
+    }
+
     public AcquireException(String message) {
         super(message);
     }
@@ -0,0 +1,74 @@
+package com.github.lfeagan.dtc;
+
+import org.threeten.extra.PeriodDuration;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of {@link TaskManager}, for pipelining many operations without dedicating a thread to each call.
+ * Every method returns immediately. A {@link TaskManagerException} that the blocking call would have thrown instead completes the future exceptionally,
+ * as does an operation that the implementation refuses because it is already at capacity.
+ */
+public interface AsyncTaskManager {
+
+    /**
+     * @see TaskManager#createTask(String, Instant, PeriodDuration, String)
+     */
+    CompletableFuture<Task> createTask(String name, Instant bucketTime, PeriodDuration bucketInterval, String createdBy);
+
+    /**
+     * @see TaskManager#createTasks(String, Collection, PeriodDuration, String)
+     */
+    CompletableFuture<List<Task>> createTasks(String name, Collection<Instant> bucketTimes, PeriodDuration bucketInterval, String createdBy);
+
+    /**
+     * @see TaskManager#getAndAcquireFirstTask(TaskQuery, String)
+     * @return the acquired task, or <code>null</code> if no task was available
+     */
+    CompletableFuture<Task> getAndAcquireFirstTask(TaskQuery taskQuery, String acquiredBy);
+
+    /**
+     * @see TaskManager#getAndAcquireTasks(TaskQuery, int, String)
+     */
+    CompletableFuture<List<Task>> getAndAcquireTasks(TaskQuery taskQuery, int maxTasks, String acquiredBy);
+
+    /**
+     * @see TaskManager#getTask(String, Instant)
+     */
+    CompletableFuture<Task> getTask(String name, Instant bucketTime);
+
+    /**
+     * @see TaskManager#getTasks(TaskQuery)
+     */
+    CompletableFuture<List<Task>> getTasks(TaskQuery taskQuery);
+
+    /**
+     * @see TaskManager#setTaskStatusAndGet(Set, TaskStatus, String)
+     */
+    CompletableFuture<Set<Task>> setTaskStatus(Set<Task> tasks, TaskStatus updatedStatus, String acquiredBy);
+
+    /**
+     * Marks an acquired task complete.
+     * @see Task#completed(String)
+     * @return the task, once it is complete
+     */
+    CompletableFuture<Task> completed(Task task, String message);
+
+    /**
+     * Marks an acquired task failed, returning it to the backlog.
+     * @see Task#failed(String)
+     * @return the task, once it is failed
+     */
+    CompletableFuture<Task> failed(Task task, String message);
+
+    /**
+     * Marks an acquired task skipped.
+     * @see Task#skip(String)
+     * @return the task, once it is skipped
+     */
+    CompletableFuture<Task> skip(Task task, String message);
+}
@@ -0,0 +1,82 @@
+package com.github.lfeagan.dtc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the state of the {@link TaskFairness} policies of one task manager: the round robin position,
+ * and when each name was last served, as a sequence number, so one entry per name ever served.
+ */
+public final class NameTurns {
+
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong servings = new AtomicLong();
+    private final ConcurrentMap<String, Long> lastServed = new ConcurrentHashMap<>();
+
+    /**
+     * The names of the query in the order they take their turns.
+     * @param taskQuery
+     * @return the names, or <code>null</code> if the query has no fairness policy
+     * @throws IllegalArgumentException if the query has a fairness policy but no set of names
+     */
+    public List<String> turns(TaskQuery taskQuery) {
+        if (taskQuery.getFairness() == null) {
+            return null;
+        }
+        if (taskQuery.getNames() == null) {
+            throw new IllegalArgumentException("A fairness policy needs a set of names");
+        }
+        final List<String> names = new ArrayList<>(new TreeSet<>(taskQuery.getNames()));
+        switch (taskQuery.getFairness()) {
+            case ROUND_ROBIN:
+                if (!names.isEmpty()) {
+                    Collections.rotate(names, -(int) Math.floorMod(rounds.getAndIncrement(), (long) names.size()));
+                }
+                return names;
+            case LEAST_RECENTLY_SERVED:
+                // a stable sort, so names never served go in name order
+                names.sort(Comparator.comparingLong(name -> lastServed.getOrDefault(name, 0L)));
+                return names;
+            default:
+                throw new IllegalArgumentException("Unknown fairness " + taskQuery.getFairness());
+        }
+    }
+
+    /**
+     * Records that the tasks were acquired, in order.
+     * @param tasks
+     */
+    public void served(Collection<? extends Task> tasks) {
+        for (Task task : tasks) {
+            lastServed.put(task.getName(), servings.incrementAndGet());
+        }
+    }
+
+    /**
+     * Sorts tasks acquired in turns into the order they were taken: the first task of each name in turn, then the second, and so on,
+     * with the tasks of one name in the order of the query.
+     * @param tasks tasks whose names are all in the turns
+     * @param turns the names in the order they took their turns, as returned by {@link #turns}
+     * @param order the order of the query, or <code>null</code> for oldest first
+     */
+    public static <T extends Task> void sortInTurns(List<T> tasks, List<String> turns, TaskOrder order) {
+        tasks.sort(TaskManagerUtils.taskComparator(order == null ? TaskOrder.OLDEST_FIRST : order));
+        final Map<String, Integer> taken = new HashMap<>();
+        final Map<T, Integer> positions = new IdentityHashMap<>();
+        for (T task : tasks) {
+            final int turn = taken.merge(task.getName(), 1, Integer::sum) - 1;
+            positions.put(task, turn * turns.size() + turns.indexOf(task.getName()));
+        }
+        tasks.sort(Comparator.comparing(positions::get));
+    }
+}
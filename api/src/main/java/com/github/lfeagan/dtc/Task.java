@@ -85,6 +85,16 @@ public interface Task extends Closeable {
 
     int getFailCount();
 
+    /**
+     * The priority of this task, which orders acquisition by {@link TaskOrder#PRIORITY}. Tasks are created with priority 0 (zero).
+     * Tasks of a task manager that does not support priorities are always at priority 0 (zero).
+     * @return the priority, higher first
+     * @see TaskManager#setTaskPriority(TaskQuery, int)
+     */
+    default int getPriority() {
+        return 0;
+    }
+
     /**
      * Sets the task status to SKIP.
      * Can include an optional message.
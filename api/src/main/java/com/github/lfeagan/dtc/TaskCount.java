@@ -0,0 +1,21 @@
+package com.github.lfeagan.dtc;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.time.Instant;
+
+/**
+ * The number of tasks with one name and status, and optionally in one sub-range of bucket times, as returned by {@link TaskManager#countTasksGrouped}.
+ */
+@Data
+@Builder
+public class TaskCount {
+    private final String name;
+    private final TaskStatus status;
+    /**
+     * The start of the sub-range of bucket times, aligned with the epoch, or <code>null</code> when the counts are not grouped by time.
+     */
+    private final Instant rangeStart;
+    private final long count;
+}
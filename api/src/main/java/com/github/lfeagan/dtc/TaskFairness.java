@@ -0,0 +1,17 @@
+package com.github.lfeagan.dtc;
+
+/**
+ * How acquisition shares tasks among the {@link TaskQuery#getNames() names} of a query, so a name with a deep backlog cannot starve the others.
+ * The names take turns: every name with work gets one task before any name gets a second, and so on, each name giving up its tasks
+ * in the order of the query. The policies differ in which name goes first.
+ */
+public enum TaskFairness {
+    /**
+     * The name going first moves along by one with every acquisition, so even acquisitions of fewer tasks than names serve every name in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * The names go in the order this task manager last acquired a task for them, names it has never served first.
+     */
+    LEAST_RECENTLY_SERVED
+}
@@ -2,9 +2,21 @@ package com.github.lfeagan.dtc;
 
 import org.threeten.extra.PeriodDuration;
 
+import java.text.MessageFormat;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
 
 public interface TaskManager {
 
@@ -21,6 +33,50 @@ public interface TaskManager {
      */
     Task createTask(String name, Instant bucketTime, PeriodDuration bucketInterval, String createdBy) throws DuplicateTaskException, TaskManagerException;
 
+    /**
+     * Creates a task for each of the specified bucket times, but does not acquire any locks.
+     * Bucket times for which a task already exists are silently skipped instead of raising a {@link DuplicateTaskException}.
+     * @param name
+     * @param bucketTimes
+     * @param bucketInterval
+     * @param createdBy
+     * @return the tasks that were actually created, in bucket time order
+     */
+    default List<Task> createTasks(String name, Collection<Instant> bucketTimes, PeriodDuration bucketInterval, String createdBy) throws TaskManagerException {
+        List<Task> createdTasks = new ArrayList<>(bucketTimes.size());
+        for (Instant bucketTime : new TreeSet<>(bucketTimes)) {
+            try {
+                createdTasks.add(createTask(name, bucketTime, bucketInterval, createdBy));
+            } catch (DuplicateTaskException e) {
+                // do nothing
+            }
+        }
+        return createdTasks;
+    }
+
+    /**
+     * Creates the tasks missing from the buckets <code>start</code>, <code>start + interval</code>, ... before <code>end</code>,
+     * such as the buckets of an interval in which no worker ran, but does not acquire any locks.
+     * Buckets that already have a task are left as they are.
+     * Unless the implementation says otherwise, days and months in the interval are added in UTC.
+     * @param name
+     * @param start the first bucket time, which should be aligned with the interval
+     * @param end the end of the range, exclusive
+     * @param interval
+     * @param createdBy
+     * @return the number of tasks created
+     */
+    default int fillGaps(String name, Instant start, Instant end, PeriodDuration interval, String createdBy) throws TaskManagerException {
+        TaskManagerUtils.requirePositive(interval);
+        // an instant cannot add months, so the buckets are counted on a UTC calendar
+        final ZonedDateTime first = start.atZone(ZoneOffset.UTC);
+        List<Instant> bucketTimes = new ArrayList<>();
+        for (Instant bucketTime = start; bucketTime.isBefore(end); bucketTime = first.plus(interval.multipliedBy(bucketTimes.size())).toInstant()) {
+            bucketTimes.add(bucketTime);
+        }
+        return createTasks(name, bucketTimes, interval, createdBy).size();
+    }
+
     /**
      * Searches the table of tasks and returns the first task that satisfies the query conditions
      * while also placing an exclusive lock on the row.
@@ -29,6 +85,71 @@ public interface TaskManager {
      */
     Task getAndAcquireFirstTask(TaskQuery taskQuery) throws TaskManagerException;
 
+    /**
+     * Searches the table of tasks and returns the first task that satisfies the query conditions
+     * while also placing an exclusive lock on the row and recording who acquired it.
+     * @param taskQuery
+     * @param acquiredBy who is doing the acquiring
+     * @return
+     */
+    default Task getAndAcquireFirstTask(TaskQuery taskQuery, String acquiredBy) throws TaskManagerException {
+        return getAndAcquireFirstTask(taskQuery);
+    }
+
+    /**
+     * Searches the table of tasks and acquires up to <code>maxTasks</code> tasks that satisfy the query conditions in a single round trip,
+     * skipping tasks that are already locked by somebody else.
+     * @param taskQuery
+     * @param maxTasks the maximum number of tasks to acquire, must be greater than zero
+     * @return the acquired tasks, which is empty if no task was available
+     */
+    List<Task> getAndAcquireTasks(TaskQuery taskQuery, int maxTasks) throws TaskManagerException;
+
+    /**
+     * Searches the table of tasks and acquires up to <code>maxTasks</code> tasks that satisfy the query conditions in a single round trip,
+     * while also recording who acquired them.
+     * @param taskQuery
+     * @param maxTasks the maximum number of tasks to acquire, must be greater than zero
+     * @param acquiredBy who is doing the acquiring
+     * @return the acquired tasks, which is empty if no task was available
+     */
+    default List<Task> getAndAcquireTasks(TaskQuery taskQuery, int maxTasks, String acquiredBy) throws TaskManagerException {
+        return getAndAcquireTasks(taskQuery, maxTasks);
+    }
+
+    /**
+     * Acquires the first task satisfying the backlog query or, if the backlog is empty, creates the task for the specified bucket and acquires it.
+     * The created task takes its name from the backlog query.
+     * The default implementation takes separate round trips to query the backlog, create the task, and acquire it.
+     * @param backlogQuery the query for available tasks, which must specify a name
+     * @param bucketTime the bucket time of the task to create when the backlog is empty
+     * @param bucketInterval the bucket interval of the task to create
+     * @param acquiredBy who is doing the acquiring, also used as the creator of the task
+     * @return the acquired task, or <code>null</code> if the backlog is empty and the task for the bucket already exists
+     */
+    default Task findOrCreateAndAcquire(TaskQuery backlogQuery, Instant bucketTime, PeriodDuration bucketInterval, String acquiredBy) throws TaskManagerException {
+        if (backlogQuery.getName() == null) {
+            throw new IllegalArgumentException("Backlog query must specify a task name");
+        }
+        Task acquiredTask = getAndAcquireFirstTask(backlogQuery, acquiredBy);
+        if (acquiredTask != null) {
+            return acquiredTask;
+        }
+        final Task createdTask;
+        try {
+            createdTask = createTask(backlogQuery.getName(), bucketTime, bucketInterval, acquiredBy);
+        } catch (DuplicateTaskException e) {
+            return null;
+        }
+        try {
+            createdTask.acquire(acquiredBy);
+        } catch (RuntimeException e) {
+            // another worker picked up the new task from its backlog first
+            return null;
+        }
+        return createdTask;
+    }
+
     /**
      * Fetches the task (without acquiring it) with the specified name and bucket time.
      * In SQL terms, this method searches committed rows.
@@ -46,14 +167,116 @@ public interface TaskManager {
      */
     List<Task> getTasks(TaskQuery taskQuery) throws TaskManagerException;
 
+    /**
+     * Streams the task(s) that satisfy the specified task query (without acquiring any of them).
+     * Unlike {@link #getTasks(TaskQuery)}, an implementation may fetch the tasks lazily as the stream is consumed,
+     * so the stream must be closed, for example with try-with-resources, to release what it holds.
+     * The default implementation streams the result of {@link #getTasks(TaskQuery)}.
+     * @param taskQuery
+     * @return
+     */
+    default Stream<Task> streamTasks(TaskQuery taskQuery) throws TaskManagerException {
+        return getTasks(taskQuery).stream();
+    }
+
+    /**
+     * Counts the task(s) that satisfy the specified task query, without fetching them.
+     * The order, keyset, and limit of the query are ignored.
+     * The default implementation counts the tasks returned by {@link #getTasks(TaskQuery)}.
+     * @param taskQuery
+     * @return
+     */
+    default long countTasks(TaskQuery taskQuery) throws TaskManagerException {
+        return getTasks(taskQuery.toBuilder().orderBy(null).after(null).limit(null).build()).size();
+    }
+
+    /**
+     * Counts the task(s) that satisfy the specified task query by name and status and, if a range width is specified,
+     * by sub-range of bucket times of that width, aligned with the epoch.
+     * Combinations without any tasks are left out.
+     * The order, keyset, and limit of the query are ignored.
+     * The default implementation counts the tasks returned by {@link #getTasks(TaskQuery)}.
+     * @param taskQuery
+     * @param rangeWidth the width of the sub-ranges in whole seconds, or <code>null</code> to count over the whole range of the query
+     * @return the counts, ordered by name, range start, and status
+     */
+    default List<TaskCount> countTasksGrouped(TaskQuery taskQuery, Duration rangeWidth) throws TaskManagerException {
+        final long widthSeconds = rangeWidth == null ? 0 : TaskManagerUtils.rangeWidthSeconds(rangeWidth);
+        final Map<List<Object>, Long> counts = new HashMap<>();
+        for (Task task : getTasks(taskQuery.toBuilder().orderBy(null).after(null).limit(null).build())) {
+            final Instant rangeStart = rangeWidth == null ? null
+                    : Instant.ofEpochSecond(Math.floorDiv(task.getBucketTime().getEpochSecond(), widthSeconds) * widthSeconds);
+            counts.merge(Arrays.asList(task.getName(), rangeStart, task.getStatus()), 1L, Long::sum);
+        }
+        final List<TaskCount> taskCounts = new ArrayList<>(counts.size());
+        counts.forEach((key, count) -> taskCounts.add(TaskCount.builder()
+                .name((String) key.get(0))
+                .rangeStart((Instant) key.get(1))
+                .status((TaskStatus) key.get(2))
+                .count(count)
+                .build()));
+        taskCounts.sort(TaskManagerUtils.TASK_COUNT_ORDER);
+        return taskCounts;
+    }
+
     /**
      * Atomically assign the specified task status to a set of tasks.
+     * Either every task is updated or, if any of them is currently held by someone else, none are.
+     * Tasks that do not exist are ignored.
      * @param tasks
      * @param updatedStatus
      * @param acquiredBy the name to use when identifying the lock acquirer for the update
+     * @throws AcquireException if any of the tasks is held by someone else, the related tasks are the ones that are held
      */
     void setTaskStatus(Set<Task> tasks, TaskStatus updatedStatus, String acquiredBy) throws TaskManagerException;
 
+    /**
+     * Atomically assign the specified task status to a set of tasks, as {@link #setTaskStatus(Set, TaskStatus, String)} does, and return the updated tasks.
+     * By default the tasks are read back after the update, so they may already reflect later changes;
+     * implementations that can return the rows they updated override it.
+     * @param tasks
+     * @param updatedStatus
+     * @param acquiredBy the name to use when identifying the lock acquirer for the update
+     * @return the updated tasks
+     * @throws AcquireException if any of the tasks is held by someone else, the related tasks are the ones that are held
+     */
+    default Set<Task> setTaskStatusAndGet(Set<Task> tasks, TaskStatus updatedStatus, String acquiredBy) throws TaskManagerException {
+        setTaskStatus(tasks, updatedStatus, acquiredBy);
+        final Set<Task> updated = new LinkedHashSet<>();
+        for (Task task : tasks) {
+            final Task current = getTask(task.getName(), task.getBucketTime());
+            if (current != null) {
+                updated.add(current);
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Sets the priority of the task(s) that satisfy the specified task query, which orders acquisition by {@link TaskOrder#PRIORITY}.
+     * Tasks currently held by someone else are left as they are.
+     * The order, keyset, and limit of the query are ignored.
+     * @param taskQuery
+     * @param priority the new priority, higher first
+     * @return the number of tasks updated
+     * @throws TaskManagerException
+     * @throws UnsupportedOperationException if this task manager does not support priorities
+     */
+    default int setTaskPriority(TaskQuery taskQuery, int priority) throws TaskManagerException {
+        String message = MessageFormat.format("Task priorities are not supported by {0}", getClass().getName());
+        throw new UnsupportedOperationException(message);
+    }
+
+    /**
+     * The watermark of a task name: every task with that name and an earlier bucket time is COMPLETE or SKIP.
+     * A watermark may lag behind the tasks, but never runs ahead of them, so a backlog query may start from it.
+     * @param name
+     * @return the watermark, or <code>null</code> if this task manager does not maintain one for the name
+     * @throws TaskManagerException
+     */
+    default Instant getWatermark(String name) throws TaskManagerException {
+        return null;
+    }
 
 //    /**
 //     * Marks the specified task status as RUNNING.
@@ -23,6 +23,12 @@ public class TaskManagerException extends Exception {
         this.relatedTaskQuery = relatedTaskQuery;
     }
 
+    public TaskManagerException(String message, Task[] relatedTasks, TaskQuery relatedTaskQuery) {
+        super(message);
+        this.relatedTasks = relatedTasks;
+        this.relatedTaskQuery = relatedTaskQuery;
+    }
+
     public TaskManagerException(String message) {
         super(message);
         this.relatedTasks = null;
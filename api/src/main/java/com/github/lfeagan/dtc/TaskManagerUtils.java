@@ -2,12 +2,66 @@ package com.github.lfeagan.dtc;
 
 import org.threeten.extra.PeriodDuration;
 
+import java.text.MessageFormat;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 public final class TaskManagerUtils {
 
+    /**
+     * The order of the counts returned by {@link TaskManager#countTasksGrouped}: by name, range start, and status.
+     */
+    public static final Comparator<TaskCount> TASK_COUNT_ORDER = Comparator.comparing(TaskCount::getName)
+            .thenComparing(TaskCount::getRangeStart, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(TaskCount::getStatus);
+
+    /**
+     * The order of tasks returned in the specified order, with ties broken by name.
+     * @param order
+     * @return
+     */
+    public static Comparator<Task> taskComparator(TaskOrder order) {
+        final Comparator<Task> oldestFirst = Comparator.comparing(Task::getBucketTime).thenComparing(Task::getName);
+        switch (order) {
+            case OLDEST_FIRST:
+                return oldestFirst;
+            case NEWEST_FIRST:
+                return oldestFirst.reversed();
+            case PRIORITY:
+                return Comparator.comparing(Task::getPriority, Comparator.reverseOrder()).thenComparing(oldestFirst);
+            default:
+                throw new IllegalArgumentException("Unknown task order " + order);
+        }
+    }
+
+    /**
+     * Validates the width of the sub-ranges counted by {@link TaskManager#countTasksGrouped}.
+     * @param rangeWidth
+     * @return the width in seconds
+     */
+    public static long rangeWidthSeconds(Duration rangeWidth) {
+        if (rangeWidth.getSeconds() < 1 || rangeWidth.getNano() != 0) {
+            String message = MessageFormat.format("Range width must be a positive number of whole seconds but was {0}", rangeWidth);
+            throw new IllegalArgumentException(message);
+        }
+        return rangeWidth.getSeconds();
+    }
+
+    /**
+     * Validates the interval between the buckets filled by {@link TaskManager#fillGaps}, which may have months and days as well as a duration,
+     * so it is checked by the signs of its parts instead of by adding it to an instant.
+     * @param interval
+     * @throws IllegalArgumentException unless no part of the interval is negative and at least one is positive
+     */
+    public static void requirePositive(PeriodDuration interval) {
+        if (interval.getPeriod().isNegative() || interval.getDuration().isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("Interval must be positive but was " + interval);
+        }
+    }
+
     /**
      * Attempts to create tasks with the specified name over the time range from bucket_time to bucket_time + bucket_count * bucket_interval.
      * Returns a list of the tasks that were actually created.
@@ -21,15 +75,10 @@ public final class TaskManagerUtils {
      * @return a list of the tasks that were actually created
      */
     public static List<Task> createTasksInTimeRange(TaskManager taskManager, String taskName, Instant bucket_time, PeriodDuration bucket_interval, int bucket_count, String createdBy) throws TaskManagerException {
-        List<Task> createdTasks = new ArrayList<>(bucket_count);
+        List<Instant> bucketTimes = new ArrayList<>(bucket_count);
         for (int i=0; i < bucket_count; ++i) {
-            try {
-                Task createdTask = taskManager.createTask(taskName, bucket_time.plus(bucket_interval.multipliedBy(i)), bucket_interval, createdBy);
-                createdTasks.add(createdTask);
-            } catch (DuplicateTaskException e) {
-                // do nothing
-            }
+            bucketTimes.add(bucket_time.plus(bucket_interval.multipliedBy(i)));
         }
-        return createdTasks;
+        return taskManager.createTasks(taskName, bucketTimes, bucket_interval, createdBy);
     }
 }
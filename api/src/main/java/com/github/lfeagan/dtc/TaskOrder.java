@@ -0,0 +1,20 @@
+package com.github.lfeagan.dtc;
+
+/**
+ * The order in which tasks are returned or acquired.
+ * Among tasks that compare equal, tasks are returned by name; the order in which they are acquired is left to the implementation.
+ */
+public enum TaskOrder {
+    /**
+     * By bucket time, earliest first.
+     */
+    OLDEST_FIRST,
+    /**
+     * By bucket time, latest first.
+     */
+    NEWEST_FIRST,
+    /**
+     * By {@link Task#getPriority() priority}, highest first, and then by bucket time, earliest first.
+     */
+    PRIORITY
+}
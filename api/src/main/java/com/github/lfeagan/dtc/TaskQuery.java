@@ -7,12 +7,50 @@ import java.time.Instant;
 import java.util.Set;
 
 @Data
-@Builder
+@Builder(toBuilder = true)
 public class TaskQuery {
     private String name;
+    /**
+     * Matches tasks with any of these names, so one statement serves many task names. Cannot be combined with {@link #name}.
+     */
+    private Set<String> names;
     private Instant bucketStartTime;
     private Instant bucketEndTime;
     private Instant acquiredAtStartTime;
     private Instant acquiredAtEndTime;
     private Set<TaskStatus> statuses;
+    /**
+     * The order of the tasks returned by {@link TaskManager#getTasks} and {@link TaskManager#streamTasks},
+     * and in which {@link TaskManager#getAndAcquireFirstTask} and {@link TaskManager#getAndAcquireTasks} pick tasks,
+     * or <code>null</code> for no particular order.
+     */
+    private TaskOrder orderBy;
+    /**
+     * How {@link TaskManager#getAndAcquireFirstTask} and {@link TaskManager#getAndAcquireTasks} share tasks among the {@link #names},
+     * each name giving up its tasks in the {@link #orderBy} order, or oldest first if none is specified.
+     * Without a fairness policy, tasks are acquired as the order alone dictates. Ignored by queries that do not acquire tasks.
+     */
+    private TaskFairness fairness;
+    /**
+     * Only tasks following this one in the order are returned, which is {@link TaskOrder#OLDEST_FIRST} unless specified.
+     * Passing the last task of one page fetches the next page without scanning the pages before it.
+     * Only the name and bucket time of the task are used, so it cannot be combined with {@link TaskOrder#PRIORITY}.
+     */
+    private Task after;
+    /**
+     * The maximum number of tasks returned by {@link TaskManager#getTasks} and {@link TaskManager#streamTasks}, or <code>null</code> for all of them.
+     */
+    private Integer limit;
+
+    /**
+     * The order of the returned tasks, taking keyset pagination into account.
+     * @return
+     * @throws IllegalArgumentException if keyset pagination is combined with {@link TaskOrder#PRIORITY}
+     */
+    public TaskOrder effectiveOrder() {
+        if (after != null && orderBy == TaskOrder.PRIORITY) {
+            throw new IllegalArgumentException("Keyset pagination is not supported in priority order");
+        }
+        return orderBy == null && after != null ? TaskOrder.OLDEST_FIRST : orderBy;
+    }
 }
@@ -32,6 +32,13 @@ public class TaskSpecification {
     @NonNull
     private final Duration backlogWindowSize;
 
+    /**
+     * When set, the backlog query, task creation, and acquisition are delegated to {@link TaskManager#findOrCreateAndAcquire},
+     * which a task manager may answer with a single round trip.
+     */
+    @Builder.Default
+    private final boolean singleRoundTrip = false;
+
     public Task findOrCreateAndAcquire() throws TaskManagerException {
         Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucketInterval);
         final TaskQuery availableWorkQuery = TaskQuery.builder()
@@ -40,7 +47,15 @@ public class TaskSpecification {
                 .statuses(ImmutableSet.of(TaskStatus.AVAILABLE))
                 .build();
 
-        Task acquiredTask = taskManager.getAndAcquireFirstTask(availableWorkQuery);
+        if (singleRoundTrip) {
+            Task acquiredTask = taskManager.findOrCreateAndAcquire(availableWorkQuery, bucket_time, PeriodDuration.of(bucketInterval), workerName);
+            if (acquiredTask != null) {
+                LOGGER.info("Worker {} acquired task {}", workerName, acquiredTask);
+            }
+            return acquiredTask;
+        }
+
+        Task acquiredTask = taskManager.getAndAcquireFirstTask(availableWorkQuery, workerName);
         if (acquiredTask == null) { // backlog query returned nothing
             // try to create for current bucket
             try {
@@ -0,0 +1,166 @@
+package com.github.lfeagan.dtc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Runs the find-or-create, acquire, and process loop of many {@link TaskSpecification}s, one thread per specification.
+ * On a JVM with virtual threads (Java 21 and later) the loops run on virtual threads, so hundreds of them cost little more than the tasks they hold;
+ * otherwise they fall back to daemon platform threads.
+ *
+ * Each acquired task holds a database connection until it is finished, so the number of loops that may be acquiring or processing at once
+ * is capped by a permit count, which should be sized to the connection pool behind the task manager.
+ * Loops that find no work sleep for the idle interval before trying again.
+ */
+public class TaskWorkerRuntime implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TaskWorkerRuntime.class);
+
+    private final Semaphore permits;
+    private final Duration idleInterval;
+    private final ThreadFactory threadFactory;
+    private final CountDownLatch draining = new CountDownLatch(1);
+    private final List<Thread> threads = new ArrayList<>();
+
+    /**
+     * @param maxConcurrentTasks the number of loops that may hold a task at once, at most the size of the connection pool
+     * @param idleInterval how long a loop waits after finding no work
+     */
+    public TaskWorkerRuntime(final int maxConcurrentTasks, final Duration idleInterval) {
+        if (maxConcurrentTasks <= 0) {
+            throw new IllegalArgumentException("maxConcurrentTasks must be greater than zero");
+        }
+        this.permits = new Semaphore(maxConcurrentTasks, true);
+        this.idleInterval = idleInterval;
+        this.threadFactory = createThreadFactory();
+    }
+
+    /**
+     * Creates a virtual thread factory when the running JVM provides one. Looked up reflectively, since the library targets Java 11.
+     * @return
+     */
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "dtc-worker-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            return r -> {
+                Thread thread = new Thread(r, "dtc-worker-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    /**
+     * Starts a loop that repeatedly acquires and processes tasks for the specification until the runtime is drained.
+     * @param taskSpecification
+     * @param successFunction called with each acquired task, returning the completion message
+     * @param failureFunction called when the success function throws, returning the failure message
+     */
+    public void submit(TaskSpecification taskSpecification, Function<Task,String> successFunction, BiFunction<Task,Exception,String> failureFunction) {
+        synchronized (threads) {
+            if (isDraining()) {
+                throw new IllegalStateException("Runtime is draining");
+            }
+            Thread thread = threadFactory.newThread(() -> run(taskSpecification, successFunction, failureFunction));
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    private void run(TaskSpecification taskSpecification, Function<Task,String> successFunction, BiFunction<Task,Exception,String> failureFunction) {
+        while (!isDraining()) {
+            Task acquiredTask = null;
+            try {
+                permits.acquire();
+                try {
+                    if (isDraining()) {
+                        break;
+                    }
+                    acquiredTask = taskSpecification.findOrCreateAndAcquire();
+                    if (acquiredTask != null) {
+                        taskSpecification.process(acquiredTask, successFunction, failureFunction);
+                    }
+                } finally {
+                    permits.release();
+                }
+                if (acquiredTask == null) {
+                    draining.await(idleInterval.toNanos(), TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                LOGGER.error("Worker {} failed to acquire task {}", taskSpecification.getWorkerName(), taskSpecification.getTaskName(), e);
+                try {
+                    draining.await(idleInterval.toNanos(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public boolean isDraining() {
+        return draining.getCount() == 0;
+    }
+
+    /**
+     * Stops the loops from acquiring new tasks and waits for the tasks they hold to finish.
+     * @param timeout how long to wait for the held tasks
+     * @return <code>true</code> if every loop stopped within the timeout
+     * @throws InterruptedException
+     */
+    public boolean drain(Duration timeout) throws InterruptedException {
+        final List<Thread> running;
+        synchronized (threads) {
+            draining.countDown();
+            running = new ArrayList<>(threads);
+        }
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        for (Thread thread : running) {
+            final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return false;
+            }
+            thread.join(remainingMillis);
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drains for up to a minute and then interrupts any loop still running.
+     * A task interrupted mid-processing is released when its connection closes.
+     */
+    @Override
+    public void close() {
+        try {
+            if (drain(Duration.ofMinutes(1))) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (threads) {
+            threads.forEach(Thread::interrupt);
+        }
+    }
+}
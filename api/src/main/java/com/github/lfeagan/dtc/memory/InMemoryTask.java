@@ -0,0 +1,133 @@
+package com.github.lfeagan.dtc.memory;
+
+import com.github.lfeagan.dtc.Task;
+import com.github.lfeagan.dtc.TaskStatus;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.ToString;
+import org.threeten.extra.PeriodDuration;
+
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * A task of an {@link InMemoryTaskManager}. Like a row read from the database, it is a copy of the task's state when it was read,
+ * updated by this instance's own changes; the instance that acquired a task is the only one that can complete, fail, or skip it.
+ */
+@Data
+@Builder
+public class InMemoryTask implements Task {
+
+    @NonNull
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private transient final TaskRecord record;
+
+    @NonNull
+    private final String name;
+
+    @NonNull
+    private final Instant bucketTime;
+
+    @NonNull
+    private final PeriodDuration bucketInterval;
+
+    private String createdBy;
+    private Instant createdAt;
+    private String acquiredBy;
+    private Instant acquiredAt;
+    private Instant completedAt;
+    private String message;
+    @Builder.Default
+    private int failCount = 0;
+    @Builder.Default
+    private int priority = 0;
+
+    @Builder.Default
+    private TaskStatus status = TaskStatus.AVAILABLE;
+
+    @Override
+    public void acquire(String acquiredBy) {
+        if (isAcquired()) {
+            throw new IllegalStateException("Attempt to re-acquire a lock that has already been acquired");
+        }
+        Objects.requireNonNull(acquiredBy, "must specify acquired_by");
+        if (!record.tryHold(this)) {
+            String message = MessageFormat.format("Unable to acquire lock on task name {0} bucket time {1}", name, bucketTime);
+            throw new RuntimeException(message);
+        }
+        acquired(acquiredBy, Instant.now());
+    }
+
+    /**
+     * Updates the local state of a task that this instance has just taken hold of.
+     */
+    void acquired(String acquiredBy, Instant acquiredAt) {
+        final TaskState committed = record.state();
+        this.acquiredBy = acquiredBy;
+        this.acquiredAt = acquiredAt;
+        this.status = TaskStatus.ACQUIRED;
+        this.completedAt = committed.completedAt;
+        this.message = committed.message;
+        this.failCount = committed.failCount;
+        this.priority = committed.priority;
+    }
+
+    @Override
+    public boolean isAcquired() {
+        return record.isHeldBy(this);
+    }
+
+    @Override
+    public void completed(String message) {
+        if (!isAcquired()) {
+            throw new IllegalStateException("Lock must be acquired before trying to complete");
+        }
+        final Instant now = Instant.now();
+        commit(record.state().completed(acquiredBy, acquiredAt, now, message));
+        this.status = TaskStatus.COMPLETE;
+        this.completedAt = now;
+        this.message = message;
+    }
+
+    @Override
+    public void failed(String message) {
+        if (!isAcquired()) {
+            throw new IllegalStateException("Lock must be acquired before trying to fail");
+        }
+        final TaskState failed = record.state().failed(acquiredBy, acquiredAt, message);
+        commit(failed);
+        this.status = TaskStatus.AVAILABLE;
+        this.message = message;
+        this.failCount = failed.failCount;
+    }
+
+    @Override
+    public void skip(String message) {
+        if (!isAcquired()) {
+            throw new IllegalStateException("Lock must be acquired before trying to skip");
+        }
+        commit(record.state().skipped(acquiredBy, acquiredAt, message));
+        this.status = TaskStatus.SKIP;
+        this.message = message;
+    }
+
+    private void commit(TaskState state) {
+        if (!record.commit(this, state)) {
+            // another thread finished this task through the same instance
+            String message = MessageFormat.format("Task name {0} bucket time {1} is no longer held", name, bucketTime);
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * Releases the task if it is still held, leaving its state as it was before it was acquired.
+     */
+    @Override
+    public void close() {
+        record.release(this);
+    }
+}
@@ -0,0 +1,460 @@
+package com.github.lfeagan.dtc.memory;
+
+import com.github.lfeagan.dtc.AcquireException;
+import com.github.lfeagan.dtc.DuplicateTaskException;
+import com.github.lfeagan.dtc.NameTurns;
+import com.github.lfeagan.dtc.Task;
+import com.github.lfeagan.dtc.TaskManager;
+import com.github.lfeagan.dtc.TaskManagerException;
+import com.github.lfeagan.dtc.TaskManagerUtils;
+import com.github.lfeagan.dtc.TaskOrder;
+import com.github.lfeagan.dtc.TaskQuery;
+import com.github.lfeagan.dtc.TaskStatus;
+import org.threeten.extra.PeriodDuration;
+
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A {@link TaskManager} that keeps its tasks in memory, for single-node deployments, as a test double, and as a baseline for benchmarks.
+ *
+ * Tasks are kept in concurrent sorted maps, by name and then by bucket time, with two more maps per name holding only the available tasks,
+ * one by bucket time and one by priority, so the backlog query does not scan past completed tasks, and an ordered acquisition walks
+ * the tasks in order and stops once it holds enough of them.
+ * A task is held by a compare-and-set that fails, rather than waits, when another owner holds it, so acquisition skips held tasks
+ * and status updates fail on them, as <code>FOR UPDATE SKIP LOCKED</code> does for <code>PostgresqlTaskManager</code>.
+ * Like its default <code>TRANSACTION</code> mode, holding a task is not visible to queries,
+ * which see the state committed by the last completion, failure, skip, or status update, and closing a held task leaves its state unchanged.
+ * Tasks are acquired in name and bucket time order, unless the query specifies an order or a fairness policy.
+ *
+ * Nothing is persisted, and tasks are never removed.
+ */
+public class InMemoryTaskManager implements TaskManager {
+
+    private final ConcurrentSkipListMap<String, TaskTimeline> timelines = new ConcurrentSkipListMap<>();
+    private final NameTurns nameTurns = new NameTurns();
+
+    /**
+     * The tasks with one name, by bucket time.
+     */
+    private static final class TaskTimeline {
+        private final ConcurrentSkipListMap<Instant, TaskRecord> tasks = new ConcurrentSkipListMap<>();
+        private final ConcurrentSkipListMap<Instant, TaskRecord> available = new ConcurrentSkipListMap<>();
+        private final ConcurrentSkipListMap<TaskRecord.PriorityKey, TaskRecord> availableByPriority = new ConcurrentSkipListMap<>();
+    }
+
+    @Override
+    public Task createTask(String name, Instant bucketTime, PeriodDuration bucketInterval, String createdBy) throws DuplicateTaskException, TaskManagerException {
+        Objects.requireNonNull(name, "must specify name");
+        Objects.requireNonNull(bucketTime, "must specify bucket time");
+        Objects.requireNonNull(bucketInterval, "must specify bucket interval");
+        final TaskTimeline timeline = timelines.computeIfAbsent(name, n -> new TaskTimeline());
+        final TaskRecord record = new TaskRecord(name, bucketTime, bucketInterval, createdBy, Instant.now(), timeline.available, timeline.availableByPriority);
+        if (timeline.tasks.putIfAbsent(bucketTime, record) != null) {
+            String message = MessageFormat.format("Task with name {0} and bucket_time {1} already exists", name, bucketTime);
+            throw new DuplicateTaskException(message);
+        }
+        record.indexAvailable();
+        return record.snapshot();
+    }
+
+    @Override
+    public Task getAndAcquireFirstTask(TaskQuery taskQuery) throws TaskManagerException {
+        return getAndAcquireFirstTask(taskQuery, null);
+    }
+
+    @Override
+    public Task getAndAcquireFirstTask(TaskQuery taskQuery, String acquiredBy) throws TaskManagerException {
+        final List<Task> acquired = getAndAcquireTasks(taskQuery, 1, acquiredBy);
+        return acquired.isEmpty() ? null : acquired.get(0);
+    }
+
+    @Override
+    public List<Task> getAndAcquireTasks(TaskQuery taskQuery, int maxTasks) throws TaskManagerException {
+        return getAndAcquireTasks(taskQuery, maxTasks, null);
+    }
+
+    @Override
+    public List<Task> getAndAcquireTasks(TaskQuery taskQuery, int maxTasks, String acquiredBy) throws TaskManagerException {
+        final List<Task> acquired = new ArrayList<>(Math.min(maxTasks, 16));
+        if (maxTasks <= 0) {
+            return acquired;
+        }
+        final Instant now = Instant.now();
+        final List<String> turns = nameTurns.turns(taskQuery);
+        if (turns != null) {
+            acquireInTurns(turns, taskQuery, maxTasks, acquiredBy, now, acquired);
+            nameTurns.served(acquired);
+            return acquired;
+        }
+        if (taskQuery.getOrderBy() != null) {
+            for (Iterator<InMemoryTask> candidates = orderedCandidates(timelines(taskQuery), taskQuery); candidates.hasNext(); ) {
+                final InMemoryTask task = candidates.next();
+                if (tryAcquire(task.getRecord(), task, taskQuery, acquiredBy, now)) {
+                    acquired.add(task);
+                    if (acquired.size() == maxTasks) {
+                        return acquired;
+                    }
+                }
+            }
+            return acquired;
+        }
+        for (TaskTimeline timeline : timelines(taskQuery)) {
+            for (TaskRecord record : candidates(timeline, taskQuery)) {
+                if (!matches(record.state(), taskQuery)) {
+                    continue;
+                }
+                final InMemoryTask task = record.snapshot();
+                if (tryAcquire(record, task, taskQuery, acquiredBy, now)) {
+                    acquired.add(task);
+                    if (acquired.size() == maxTasks) {
+                        return acquired;
+                    }
+                }
+            }
+        }
+        return acquired;
+    }
+
+    /**
+     * Takes one task from each name in turn, until enough tasks are held or every name has run out of candidates.
+     */
+    private void acquireInTurns(List<String> turns, TaskQuery taskQuery, int maxTasks, String acquiredBy, Instant now, List<Task> acquired) {
+        final TaskQuery withinName = taskQuery.getOrderBy() == null ? taskQuery.toBuilder().orderBy(TaskOrder.OLDEST_FIRST).build() : taskQuery;
+        final List<Iterator<InMemoryTask>> queues = new ArrayList<>(turns.size());
+        for (String name : turns) {
+            final TaskTimeline timeline = timelines.get(name);
+            if (timeline != null) {
+                queues.add(orderedCandidates(Collections.singletonList(timeline), withinName));
+            }
+        }
+        while (!queues.isEmpty()) {
+            for (Iterator<Iterator<InMemoryTask>> turn = queues.iterator(); turn.hasNext(); ) {
+                final Iterator<InMemoryTask> queue = turn.next();
+                boolean held = false;
+                while (!held && queue.hasNext()) {
+                    final InMemoryTask task = queue.next();
+                    held = tryAcquire(task.getRecord(), task, taskQuery, acquiredBy, now);
+                    if (held) {
+                        acquired.add(task);
+                    }
+                }
+                if (!held) {
+                    turn.remove();
+                } else if (acquired.size() == maxTasks) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The matching tasks in the order of the query, found as they are asked for, so an acquisition stops looking once it holds enough tasks.
+     * Each name is walked in order, and the names are merged on their next task, so tasks are acquired in that order across names.
+     */
+    private static Iterator<InMemoryTask> orderedCandidates(Collection<TaskTimeline> timelines, TaskQuery taskQuery) {
+        final Comparator<Task> order = TaskManagerUtils.taskComparator(taskQuery.getOrderBy());
+        final PriorityQueue<OrderedCandidates> heads = new PriorityQueue<>(Comparator.comparing(OrderedCandidates::peek, order));
+        for (TaskTimeline timeline : timelines) {
+            final OrderedCandidates candidates = new OrderedCandidates(orderedRecords(timeline, taskQuery), taskQuery);
+            if (candidates.hasNext()) {
+                heads.add(candidates);
+            }
+        }
+        return new Iterator<InMemoryTask>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public InMemoryTask next() {
+                final OrderedCandidates candidates = heads.remove();
+                final InMemoryTask task = candidates.next();
+                if (candidates.hasNext()) {
+                    heads.add(candidates);
+                }
+                return task;
+            }
+        };
+    }
+
+    /**
+     * The tasks of one name in the order of the query: by bucket time in either direction, or from the index of available tasks by priority.
+     * Only available tasks are indexed by priority, so other queries in priority order sort the tasks of the name instead.
+     */
+    private static Iterator<TaskRecord> orderedRecords(TaskTimeline timeline, TaskQuery taskQuery) {
+        switch (taskQuery.getOrderBy()) {
+            case NEWEST_FIRST:
+                return candidateRange(timeline, taskQuery).descendingMap().values().iterator();
+            case PRIORITY:
+                if (isAvailableOnly(taskQuery)) {
+                    return timeline.availableByPriority.values().iterator();
+                }
+                final List<InMemoryTask> tasks = new ArrayList<>();
+                for (TaskRecord record : candidates(timeline, taskQuery)) {
+                    tasks.add(record.snapshot());
+                }
+                tasks.sort(TaskManagerUtils.taskComparator(TaskOrder.PRIORITY));
+                return tasks.stream().map(InMemoryTask::getRecord).iterator();
+            default:
+                return candidateRange(timeline, taskQuery).values().iterator();
+        }
+    }
+
+    /**
+     * Snapshots the records that match the query and fall within its bucket time range, one ahead of the caller.
+     */
+    private static final class OrderedCandidates implements Iterator<InMemoryTask> {
+        private final Iterator<TaskRecord> records;
+        private final TaskQuery taskQuery;
+        private InMemoryTask next;
+
+        OrderedCandidates(Iterator<TaskRecord> records, TaskQuery taskQuery) {
+            this.records = records;
+            this.taskQuery = taskQuery;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && records.hasNext()) {
+                final TaskRecord record = records.next();
+                if (isInRange(record.bucketTime, taskQuery) && matches(record.state(), taskQuery)) {
+                    next = record.snapshot();
+                }
+            }
+        }
+
+        InMemoryTask peek() {
+            return next;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public InMemoryTask next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final InMemoryTask task = next;
+            advance();
+            return task;
+        }
+    }
+
+    /**
+     * Takes hold of the task for the snapshot, if it is free and still matches the query.
+     * @return <code>true</code> if the task is now held by the snapshot
+     */
+    private static boolean tryAcquire(TaskRecord record, InMemoryTask task, TaskQuery taskQuery, String acquiredBy, Instant now) {
+        if (!record.tryHold(task)) {
+            return false;
+        }
+        // the state may have changed between the check and taking hold
+        if (!matches(record.state(), taskQuery)) {
+            record.release(task);
+            return false;
+        }
+        task.acquired(acquiredBy, now);
+        return true;
+    }
+
+    @Override
+    public Task getTask(String name, Instant bucketTime) throws TaskManagerException {
+        final TaskRecord record = record(name, bucketTime);
+        return record == null ? null : record.snapshot();
+    }
+
+    /**
+     * Collects every matching task before ordering them and applying the keyset and limit, which is fine for the task counts kept in memory.
+     */
+    @Override
+    public List<Task> getTasks(TaskQuery taskQuery) throws TaskManagerException {
+        List<Task> tasks = new ArrayList<>();
+        for (TaskTimeline timeline : timelines(taskQuery)) {
+            for (TaskRecord record : candidates(timeline, taskQuery)) {
+                if (matches(record.state(), taskQuery)) {
+                    tasks.add(record.snapshot());
+                }
+            }
+        }
+        final TaskOrder order = taskQuery.effectiveOrder();
+        if (order != null) {
+            final Comparator<Task> comparator = TaskManagerUtils.taskComparator(order);
+            tasks.sort(comparator);
+            if (taskQuery.getAfter() != null) {
+                final Task after = taskQuery.getAfter();
+                final Comparator<Task> keyset = comparator;
+                tasks.removeIf(task -> keyset.compare(task, after) <= 0);
+            }
+        }
+        if (taskQuery.getLimit() != null) {
+            if (taskQuery.getLimit() < 1) {
+                throw new IllegalArgumentException("Limit must be greater than 0 (zero) but was " + taskQuery.getLimit());
+            }
+            if (tasks.size() > taskQuery.getLimit()) {
+                tasks = new ArrayList<>(tasks.subList(0, taskQuery.getLimit()));
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Holds every task before changing any of them. If any task is held by someone else, nothing is updated
+     * and the {@link AcquireException} lists the tasks that could not be held. Tasks that do not exist are ignored.
+     */
+    @Override
+    public void setTaskStatus(Set<Task> tasks, TaskStatus updatedStatus, String acquiredBy) throws TaskManagerException {
+        setTaskStatusAndGet(tasks, updatedStatus, acquiredBy);
+    }
+
+    /**
+     * Returns snapshots taken while each task was still held for the update.
+     */
+    @Override
+    public Set<Task> setTaskStatusAndGet(Set<Task> tasks, TaskStatus updatedStatus, String acquiredBy) throws TaskManagerException {
+        if (tasks.stream().filter(t -> t.isAcquired()).count() > 0) {
+            throw new IllegalArgumentException("Cannot call set task status on tasks that are already acquired");
+        }
+        final Object owner = new Object();
+        final Set<TaskRecord> held = new LinkedHashSet<>();
+        final List<Task> locked = new ArrayList<>();
+        for (Task task : tasks) {
+            final TaskRecord record = record(task.getName(), task.getBucketTime());
+            if (record == null || held.contains(record)) {
+                continue;
+            }
+            if (record.tryHold(owner)) {
+                held.add(record);
+            } else {
+                locked.add(record.snapshot());
+            }
+        }
+        if (!locked.isEmpty()) {
+            held.forEach(record -> record.release(owner));
+            String message = MessageFormat.format("Unable to set status {0}, {1} of {2} tasks are locked", updatedStatus, locked.size(), tasks.size());
+            throw new AcquireException(message, locked.toArray(new Task[0]));
+        }
+        final Instant now = Instant.now();
+        final Set<Task> updated = new LinkedHashSet<>();
+        for (TaskRecord record : held) {
+            record.commit(owner, record.state().withStatus(updatedStatus, acquiredBy, now));
+            updated.add(record.snapshot());
+        }
+        return updated;
+    }
+
+    /**
+     * Holds each matching task in turn while changing its priority, skipping tasks held by someone else.
+     */
+    @Override
+    public int setTaskPriority(TaskQuery taskQuery, int priority) throws TaskManagerException {
+        final Object owner = new Object();
+        int updated = 0;
+        for (TaskTimeline timeline : timelines(taskQuery)) {
+            for (TaskRecord record : candidates(timeline, taskQuery)) {
+                if (!matches(record.state(), taskQuery) || !record.tryHold(owner)) {
+                    continue;
+                }
+                if (matches(record.state(), taskQuery)) {
+                    record.commit(owner, record.state().withPriority(priority));
+                    ++updated;
+                } else {
+                    record.release(owner);
+                }
+            }
+        }
+        return updated;
+    }
+
+    private TaskRecord record(String name, Instant bucketTime) {
+        final TaskTimeline timeline = timelines.get(name);
+        return timeline == null ? null : timeline.tasks.get(bucketTime);
+    }
+
+    private Collection<TaskTimeline> timelines(TaskQuery taskQuery) {
+        if (taskQuery.getNames() != null) {
+            if (taskQuery.getName() != null) {
+                throw new IllegalArgumentException("Query cannot specify both a name and a set of names");
+            }
+            final List<TaskTimeline> named = new ArrayList<>(taskQuery.getNames().size());
+            for (String name : new TreeSet<>(taskQuery.getNames())) {
+                final TaskTimeline timeline = timelines.get(name);
+                if (timeline != null) {
+                    named.add(timeline);
+                }
+            }
+            return named;
+        }
+        if (taskQuery.getName() == null) {
+            return timelines.values();
+        }
+        final TaskTimeline timeline = timelines.get(taskQuery.getName());
+        return timeline == null ? Collections.emptyList() : Collections.singletonList(timeline);
+    }
+
+    /**
+     * The tasks in the query's bucket time range, taken from the available tasks alone when those are all the query wants.
+     * The range is inclusive of the start and exclusive of the end, as in the SQL predicates.
+     */
+    private static Collection<TaskRecord> candidates(TaskTimeline timeline, TaskQuery taskQuery) {
+        return candidateRange(timeline, taskQuery).values();
+    }
+
+    private static ConcurrentNavigableMap<Instant, TaskRecord> candidateRange(TaskTimeline timeline, TaskQuery taskQuery) {
+        final ConcurrentNavigableMap<Instant, TaskRecord> tasks = isAvailableOnly(taskQuery) ? timeline.available : timeline.tasks;
+        final Instant start = taskQuery.getBucketStartTime();
+        final Instant end = taskQuery.getBucketEndTime();
+        if (start != null && end != null) {
+            // an empty range, rather than the exception subMap throws when the start is after the end
+            return start.isBefore(end) ? tasks.subMap(start, true, end, false) : tasks.subMap(start, true, start, false);
+        } else if (start != null) {
+            return tasks.tailMap(start, true);
+        } else if (end != null) {
+            return tasks.headMap(end, false);
+        }
+        return tasks;
+    }
+
+    private static boolean isInRange(Instant bucketTime, TaskQuery taskQuery) {
+        return (taskQuery.getBucketStartTime() == null || !bucketTime.isBefore(taskQuery.getBucketStartTime()))
+                && (taskQuery.getBucketEndTime() == null || bucketTime.isBefore(taskQuery.getBucketEndTime()));
+    }
+
+    /**
+     * Whether the state satisfies the conditions of the query other than the name and bucket time range.
+     */
+    private static boolean matches(TaskState state, TaskQuery taskQuery) {
+        if (taskQuery.getAcquiredAtStartTime() != null && (state.acquiredAt == null || state.acquiredAt.isBefore(taskQuery.getAcquiredAtStartTime()))) {
+            return false;
+        }
+        if (taskQuery.getAcquiredAtEndTime() != null && (state.acquiredAt == null || !state.acquiredAt.isBefore(taskQuery.getAcquiredAtEndTime()))) {
+            return false;
+        }
+        return taskQuery.getStatuses() == null || taskQuery.getStatuses().isEmpty() || taskQuery.getStatuses().contains(state.status);
+    }
+
+    private static boolean isAvailableOnly(TaskQuery taskQuery) {
+        return taskQuery.getStatuses() != null
+                && taskQuery.getStatuses().size() == 1
+                && taskQuery.getStatuses().contains(TaskStatus.AVAILABLE);
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.lfeagan.dtc.memory;
+
+import com.github.lfeagan.dtc.TaskStatus;
+import org.threeten.extra.PeriodDuration;
+
+import java.time.Instant;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One task held by an {@link InMemoryTaskManager}: its key and creation details, its committed state, and the owner holding it, if any.
+ * Holding is a compare-and-set of the owner, which fails rather than waits when the task is held by someone else,
+ * the in-memory equivalent of <code>FOR UPDATE SKIP LOCKED</code> and <code>NOWAIT</code>.
+ * Only the owner changes the state, so the state and the indexes of available tasks are updated without locks.
+ */
+final class TaskRecord {
+
+    /**
+     * Holds the task while its owner commits, so no one else can hold it until the new state is visible.
+     */
+    private static final Object COMMITTING = new Object();
+
+    /**
+     * The key of a task in the index of available tasks by priority: highest priority first, and then earliest bucket time first.
+     */
+    static final class PriorityKey implements Comparable<PriorityKey> {
+        final int priority;
+        final Instant bucketTime;
+
+        PriorityKey(int priority, Instant bucketTime) {
+            this.priority = priority;
+            this.bucketTime = bucketTime;
+        }
+
+        @Override
+        public int compareTo(PriorityKey other) {
+            final int byPriority = Integer.compare(other.priority, priority);
+            return byPriority != 0 ? byPriority : bucketTime.compareTo(other.bucketTime);
+        }
+    }
+
+    final String name;
+    final Instant bucketTime;
+    final PeriodDuration bucketInterval;
+    final String createdBy;
+    final Instant createdAt;
+
+    private final ConcurrentNavigableMap<Instant, TaskRecord> available;
+    private final ConcurrentNavigableMap<PriorityKey, TaskRecord> availableByPriority;
+    private final AtomicReference<Object> owner = new AtomicReference<>();
+    private volatile TaskState state = TaskState.CREATED;
+
+    TaskRecord(String name, Instant bucketTime, PeriodDuration bucketInterval, String createdBy, Instant createdAt,
+               ConcurrentNavigableMap<Instant, TaskRecord> available, ConcurrentNavigableMap<PriorityKey, TaskRecord> availableByPriority) {
+        this.name = name;
+        this.bucketTime = bucketTime;
+        this.bucketInterval = bucketInterval;
+        this.createdBy = createdBy;
+        this.createdAt = createdAt;
+        this.available = available;
+        this.availableByPriority = availableByPriority;
+    }
+
+    /**
+     * Adds a newly created task to the indexes of available tasks.
+     */
+    void indexAvailable() {
+        available.put(bucketTime, this);
+        availableByPriority.put(new PriorityKey(state.priority, bucketTime), this);
+    }
+
+    TaskState state() {
+        return state;
+    }
+
+    /**
+     * @return <code>true</code> if the task was free and is now held by the owner
+     */
+    boolean tryHold(Object owner) {
+        return this.owner.compareAndSet(null, owner);
+    }
+
+    boolean isHeldBy(Object owner) {
+        return this.owner.get() == owner;
+    }
+
+    /**
+     * Publishes the state and releases the task.
+     * @return <code>false</code> if the task is not held by the owner, in which case nothing changes
+     */
+    boolean commit(Object owner, TaskState state) {
+        if (!this.owner.compareAndSet(owner, COMMITTING)) {
+            return false;
+        }
+        final TaskState previous = this.state;
+        this.state = state;
+        if (previous.priority != state.priority) {
+            availableByPriority.remove(new PriorityKey(previous.priority, bucketTime), this);
+        }
+        if (state.status == TaskStatus.AVAILABLE) {
+            available.put(bucketTime, this);
+            availableByPriority.put(new PriorityKey(state.priority, bucketTime), this);
+        } else {
+            available.remove(bucketTime, this);
+            availableByPriority.remove(new PriorityKey(state.priority, bucketTime), this);
+        }
+        this.owner.set(null);
+        return true;
+    }
+
+    /**
+     * Releases the task without changing its state, the equivalent of a rollback. Has no effect unless the task is held by the owner.
+     */
+    void release(Object owner) {
+        this.owner.compareAndSet(owner, null);
+    }
+
+    /**
+     * A task reflecting the committed state, not holding the task.
+     */
+    InMemoryTask snapshot() {
+        final TaskState current = state;
+        return InMemoryTask.builder()
+                .record(this)
+                .name(name)
+                .bucketTime(bucketTime)
+                .bucketInterval(bucketInterval)
+                .createdBy(createdBy)
+                .createdAt(createdAt)
+                .acquiredBy(current.acquiredBy)
+                .acquiredAt(current.acquiredAt)
+                .completedAt(current.completedAt)
+                .message(current.message)
+                .failCount(current.failCount)
+                .priority(current.priority)
+                .status(current.status)
+                .build();
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.lfeagan.dtc.memory;
+
+import com.github.lfeagan.dtc.TaskStatus;
+
+import java.time.Instant;
+
+/**
+ * The committed, immutable state of an in-memory task. Every change replaces the whole state, so readers never see half of one.
+ */
+final class TaskState {
+
+    static final TaskState CREATED = new TaskState(TaskStatus.AVAILABLE, null, null, null, null, 0, 0);
+
+    final TaskStatus status;
+    final String acquiredBy;
+    final Instant acquiredAt;
+    final Instant completedAt;
+    final String message;
+    final int failCount;
+    final int priority;
+
+    private TaskState(TaskStatus status, String acquiredBy, Instant acquiredAt, Instant completedAt, String message, int failCount, int priority) {
+        this.status = status;
+        this.acquiredBy = acquiredBy;
+        this.acquiredAt = acquiredAt;
+        this.completedAt = completedAt;
+        this.message = message;
+        this.failCount = failCount;
+        this.priority = priority;
+    }
+
+    TaskState withStatus(TaskStatus status, String acquiredBy, Instant acquiredAt) {
+        return new TaskState(status, acquiredBy, acquiredAt, completedAt, message, failCount, priority);
+    }
+
+    TaskState withPriority(int priority) {
+        return new TaskState(status, acquiredBy, acquiredAt, completedAt, message, failCount, priority);
+    }
+
+    TaskState completed(String acquiredBy, Instant acquiredAt, Instant completedAt, String message) {
+        return new TaskState(TaskStatus.COMPLETE, acquiredBy, acquiredAt, completedAt, message, failCount, priority);
+    }
+
+    TaskState failed(String acquiredBy, Instant acquiredAt, String message) {
+        return new TaskState(TaskStatus.AVAILABLE, acquiredBy, acquiredAt, completedAt, message, failCount + 1, priority);
+    }
+
+    TaskState skipped(String acquiredBy, Instant acquiredAt, String message) {
+        return new TaskState(TaskStatus.SKIP, acquiredBy, acquiredAt, completedAt, message, failCount, priority);
+    }
+}
@@ -0,0 +1,312 @@
+package com.github.lfeagan.dtc.memory;
+
+import com.github.lfeagan.dtc.AcquireException;
+import com.github.lfeagan.dtc.DuplicateTaskException;
+import com.github.lfeagan.dtc.Task;
+import com.github.lfeagan.dtc.TaskCount;
+import com.github.lfeagan.dtc.TaskFairness;
+import com.github.lfeagan.dtc.TaskManagerException;
+import com.github.lfeagan.dtc.TaskOrder;
+import com.github.lfeagan.dtc.TaskQuery;
+import com.github.lfeagan.dtc.TaskStatus;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.threeten.extra.PeriodDuration;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.Period;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class InMemoryTaskManagerTest {
+
+   private static final PeriodDuration BUCKET_INTERVAL = PeriodDuration.of(Duration.ofMinutes(5));
+   private static final Instant BUCKET_TIME = Instant.parse("2024-01-01T00:00:00Z");
+
+   private static TaskQuery available(String name) {
+      return TaskQuery.builder()
+            .name(name)
+            .statuses(EnumSet.of(TaskStatus.AVAILABLE))
+            .build();
+   }
+
+   @Test
+   public void createAndGet() throws TaskManagerException {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      Task created = tm.createTask("createAndGet", BUCKET_TIME, BUCKET_INTERVAL, "test");
+      Assert.assertEquals(created.getStatus(), TaskStatus.AVAILABLE);
+      Assert.assertFalse(created.isAcquired());
+      try {
+         tm.createTask("createAndGet", BUCKET_TIME, BUCKET_INTERVAL, "test");
+         Assert.fail("created the same task twice");
+      } catch (DuplicateTaskException e) {
+         // expected
+      }
+      Task fetched = tm.getTask("createAndGet", BUCKET_TIME);
+      Assert.assertEquals(fetched.getName(), "createAndGet");
+      Assert.assertEquals(fetched.getBucketTime(), BUCKET_TIME);
+      Assert.assertEquals(fetched.getCreatedBy(), "test");
+      Assert.assertNull(tm.getTask("createAndGet", BUCKET_TIME.plusSeconds(1)));
+   }
+
+   @Test
+   public void acquireSkipsHeldTasks() throws TaskManagerException {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      tm.createTask("skipHeld", BUCKET_TIME, BUCKET_INTERVAL, "test");
+      tm.createTask("skipHeld", BUCKET_TIME.plusSeconds(300), BUCKET_INTERVAL, "test");
+
+      Task first = tm.getAndAcquireFirstTask(available("skipHeld"), "worker1");
+      Assert.assertEquals(first.getBucketTime(), BUCKET_TIME);
+      Assert.assertEquals(first.getStatus(), TaskStatus.ACQUIRED);
+      Task second = tm.getAndAcquireFirstTask(available("skipHeld"), "worker2");
+      Assert.assertEquals(second.getBucketTime(), BUCKET_TIME.plusSeconds(300));
+      Assert.assertNull(tm.getAndAcquireFirstTask(available("skipHeld"), "worker3"));
+
+      // holding is not visible to queries, only the committed state is
+      Assert.assertEquals(tm.getTask("skipHeld", BUCKET_TIME).getStatus(), TaskStatus.AVAILABLE);
+      try {
+         tm.getTask("skipHeld", BUCKET_TIME).acquire("worker3");
+         Assert.fail("acquired a held task");
+      } catch (RuntimeException e) {
+         // expected
+      }
+
+      first.completed("done");
+      Assert.assertFalse(first.isAcquired());
+      Assert.assertEquals(tm.getTask("skipHeld", BUCKET_TIME).getStatus(), TaskStatus.COMPLETE);
+      Assert.assertEquals(tm.getTask("skipHeld", BUCKET_TIME).getAcquiredBy(), "worker1");
+      Assert.assertNull(tm.getAndAcquireFirstTask(available("skipHeld"), "worker3"));
+   }
+
+   @Test
+   public void failAndCloseReturnTaskToBacklog() throws Exception {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      Task task = tm.createTask("failAndClose", BUCKET_TIME, BUCKET_INTERVAL, "test");
+      task.acquire("worker1");
+      task.failed("failed by test");
+      Assert.assertEquals(task.getFailCount(), 1);
+      try {
+         task.failed("again");
+         Assert.fail("was able to fail twice");
+      } catch (IllegalStateException e) {
+         // expected, the task is no longer held
+      }
+
+      Task reacquired = tm.getAndAcquireFirstTask(available("failAndClose"), "worker2");
+      Assert.assertEquals(reacquired.getFailCount(), 1);
+      reacquired.close();
+      Assert.assertFalse(reacquired.isAcquired());
+
+      Task abandoned = tm.getTask("failAndClose", BUCKET_TIME);
+      Assert.assertEquals(abandoned.getStatus(), TaskStatus.AVAILABLE);
+      Assert.assertEquals(abandoned.getAcquiredBy(), "worker1");
+      Assert.assertNotNull(tm.getAndAcquireFirstTask(available("failAndClose"), "worker3"));
+   }
+
+   @Test
+   public void setTaskStatusFailsOnHeldTasks() throws Exception {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      Set<Task> tasks = new HashSet<>();
+      for (int i = 0; i < 3; i++) {
+         tasks.add(tm.createTask("setStatus", BUCKET_TIME.plusSeconds(300L * i), BUCKET_INTERVAL, "test"));
+      }
+      Task held = tm.getAndAcquireFirstTask(available("setStatus"), "worker1");
+      try {
+         tm.setTaskStatus(tasks, TaskStatus.SKIP, "admin");
+         Assert.fail("updated a held task");
+      } catch (AcquireException e) {
+         Assert.assertEquals(e.getRelatedTasks().length, 1);
+      }
+      Assert.assertEquals(tm.getTasks(TaskQuery.builder().name("setStatus").statuses(EnumSet.of(TaskStatus.SKIP)).build()).size(), 0);
+
+      held.close();
+      Set<Task> updated = tm.setTaskStatusAndGet(tasks, TaskStatus.SKIP, "admin");
+      Assert.assertEquals(updated.size(), 3);
+      Assert.assertEquals(tm.getTasks(TaskQuery.builder().name("setStatus").statuses(EnumSet.of(TaskStatus.SKIP)).build()).size(), 3);
+      Assert.assertNull(tm.getAndAcquireFirstTask(available("setStatus"), "worker1"));
+   }
+
+   @Test
+   public void queryRanges() throws TaskManagerException {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      for (int i = 0; i < 10; i++) {
+         tm.createTask("ranges", BUCKET_TIME.plusSeconds(300L * i), BUCKET_INTERVAL, "test");
+      }
+      tm.createTask("other", BUCKET_TIME, BUCKET_INTERVAL, "test");
+      List<Task> tasks = tm.getTasks(TaskQuery.builder()
+            .name("ranges")
+            .bucketStartTime(BUCKET_TIME.plusSeconds(300))
+            .bucketEndTime(BUCKET_TIME.plusSeconds(1500))
+            .build());
+      Assert.assertEquals(tasks.size(), 4);
+      Assert.assertEquals(tasks.get(0).getBucketTime(), BUCKET_TIME.plusSeconds(300));
+      Assert.assertEquals(tm.getTasks(TaskQuery.builder().build()).size(), 11);
+      Assert.assertEquals(tm.getAndAcquireTasks(available("ranges"), 4, "worker").size(), 4);
+   }
+
+   @Test
+   public void fillGaps() throws TaskManagerException {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      tm.createTask("fillGaps", BUCKET_TIME.plusSeconds(600), BUCKET_INTERVAL, "test");
+      Instant end = BUCKET_TIME.plusSeconds(3000);
+      Assert.assertEquals(tm.fillGaps("fillGaps", BUCKET_TIME, end, BUCKET_INTERVAL, "test"), 9);
+      Assert.assertEquals(tm.fillGaps("fillGaps", BUCKET_TIME, end, BUCKET_INTERVAL, "test"), 0);
+      Assert.assertEquals(tm.getTasks(TaskQuery.builder().name("fillGaps").build()).size(), 10);
+
+      PeriodDuration monthly = PeriodDuration.of(Period.ofMonths(1));
+      Instant january = Instant.parse("2026-01-01T00:00:00Z");
+      Assert.assertEquals(tm.fillGaps("monthly", january, Instant.parse("2026-04-01T00:00:00Z"), monthly, "test"), 3);
+      Assert.assertNotNull(tm.getTask("monthly", Instant.parse("2026-03-01T00:00:00Z")));
+      Assert.assertThrows(IllegalArgumentException.class, () -> tm.fillGaps("monthly", january, january, PeriodDuration.of(Period.ofMonths(-1)), "test"));
+      Assert.assertThrows(IllegalArgumentException.class, () -> tm.fillGaps("monthly", january, january, PeriodDuration.ZERO, "test"));
+   }
+
+   @Test
+   public void pagesThroughTasks() throws TaskManagerException {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      tm.fillGaps("a", BUCKET_TIME, BUCKET_TIME.plusSeconds(300 * 7), BUCKET_INTERVAL, "test");
+      tm.fillGaps("b", BUCKET_TIME, BUCKET_TIME.plusSeconds(300 * 3), BUCKET_INTERVAL, "test");
+      TaskQuery firstPage = TaskQuery.builder().orderBy(TaskOrder.NEWEST_FIRST).limit(4).build();
+      List<Task> seen = new ArrayList<>();
+      List<Task> page = tm.getTasks(firstPage);
+      while (!page.isEmpty()) {
+         seen.addAll(page);
+         page = tm.getTasks(firstPage.toBuilder().after(page.get(page.size() - 1)).build());
+      }
+      Assert.assertEquals(seen.size(), 10);
+      Assert.assertEquals(seen.get(0).getBucketTime(), BUCKET_TIME.plusSeconds(300 * 6));
+      Assert.assertEquals(seen.get(4).getName(), "b", "ties are broken by name");
+      Assert.assertEquals(seen.get(9).getName(), "a");
+      Assert.assertEquals(seen.get(9).getBucketTime(), BUCKET_TIME);
+   }
+
+   @Test
+   public void countsTasks() throws TaskManagerException {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      tm.fillGaps("count", BUCKET_TIME, BUCKET_TIME.plusSeconds(300 * 24), BUCKET_INTERVAL, "test");
+      tm.getAndAcquireFirstTask(available("count"), "test").completed("done");
+      Assert.assertEquals(tm.countTasks(available("count")), 23);
+      List<TaskCount> counts = tm.countTasksGrouped(TaskQuery.builder().build(), Duration.ofHours(1));
+      Assert.assertEquals(counts, List.of(
+              TaskCount.builder().name("count").status(TaskStatus.AVAILABLE).rangeStart(BUCKET_TIME).count(11).build(),
+              TaskCount.builder().name("count").status(TaskStatus.COMPLETE).rangeStart(BUCKET_TIME).count(1).build(),
+              TaskCount.builder().name("count").status(TaskStatus.AVAILABLE).rangeStart(BUCKET_TIME.plusSeconds(3600)).count(12).build()));
+   }
+
+   @Test
+   public void acquiresInRequestedOrder() throws Exception {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      tm.fillGaps("orderA", BUCKET_TIME, BUCKET_TIME.plusSeconds(3000), BUCKET_INTERVAL, "test");
+      tm.fillGaps("orderB", BUCKET_TIME.plusSeconds(600), BUCKET_TIME.plusSeconds(3300), BUCKET_INTERVAL, "test");
+
+      Task newest = tm.getAndAcquireFirstTask(available(null).toBuilder().orderBy(TaskOrder.NEWEST_FIRST).build(), "worker");
+      Assert.assertEquals(newest.getName(), "orderB");
+      Assert.assertEquals(newest.getBucketTime(), BUCKET_TIME.plusSeconds(3000));
+      newest.completed("done");
+
+      Assert.assertEquals(tm.setTaskPriority(available("orderB").toBuilder().bucketStartTime(BUCKET_TIME.plusSeconds(1500)).build(), 2), 5);
+      Task held = tm.getAndAcquireFirstTask(available("orderA").toBuilder().orderBy(TaskOrder.OLDEST_FIRST).build(), "worker");
+      Assert.assertEquals(held.getBucketTime(), BUCKET_TIME);
+      Assert.assertEquals(tm.setTaskPriority(available("orderA").toBuilder().bucketEndTime(BUCKET_TIME.plusSeconds(600)).build(), 1), 1, "held tasks are skipped");
+      held.close();
+      Assert.assertEquals(tm.getTask("orderA", BUCKET_TIME).getPriority(), 0);
+
+      List<Task> byPriority = tm.getAndAcquireTasks(available(null).toBuilder().orderBy(TaskOrder.PRIORITY).build(), 7, "worker");
+      Assert.assertEquals(byPriority.size(), 7);
+      Assert.assertEquals(byPriority.get(0).getName(), "orderB");
+      Assert.assertEquals(byPriority.get(0).getBucketTime(), BUCKET_TIME.plusSeconds(1500));
+      Assert.assertEquals(byPriority.get(4).getBucketTime(), BUCKET_TIME.plusSeconds(2700));
+      Assert.assertEquals(byPriority.get(5).getName(), "orderA");
+      Assert.assertEquals(byPriority.get(5).getBucketTime(), BUCKET_TIME.plusSeconds(300));
+      Assert.assertEquals(byPriority.get(5).getPriority(), 1);
+      Assert.assertEquals(byPriority.get(6).getBucketTime(), BUCKET_TIME);
+
+      // the index by priority follows failures and priority changes, and a range only narrows it
+      byPriority.get(1).failed("retry");
+      Assert.assertEquals(tm.setTaskPriority(available("orderA").toBuilder().bucketStartTime(BUCKET_TIME.plusSeconds(2400)).build(), 3), 2);
+      List<Task> inRange = tm.getAndAcquireTasks(available(null).toBuilder().orderBy(TaskOrder.PRIORITY).bucketEndTime(BUCKET_TIME.plusSeconds(2700)).build(), 3, "worker");
+      Assert.assertEquals(inRange.stream().map(t -> t.getName() + "@" + Duration.between(BUCKET_TIME, t.getBucketTime()).getSeconds()).collect(Collectors.toList()),
+              List.of("orderA@2400", "orderB@1800", "orderA@600"));
+      Assert.assertThrows(IllegalArgumentException.class,
+              () -> tm.getTasks(TaskQuery.builder().orderBy(TaskOrder.PRIORITY).after(newest).build()));
+   }
+
+   @Test
+   public void acquiresFairlyAcrossNames() throws Exception {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      tm.fillGaps("fairHot", BUCKET_TIME, BUCKET_TIME.plusSeconds(6000), BUCKET_INTERVAL, "test");
+      tm.fillGaps("fairB", BUCKET_TIME, BUCKET_TIME.plusSeconds(900), BUCKET_INTERVAL, "test");
+      tm.fillGaps("fairC", BUCKET_TIME, BUCKET_TIME.plusSeconds(900), BUCKET_INTERVAL, "test");
+      tm.fillGaps("other", BUCKET_TIME, BUCKET_TIME.plusSeconds(900), BUCKET_INTERVAL, "test");
+      TaskQuery available = available(null).toBuilder().names(Set.of("fairHot", "fairB", "fairC")).build();
+      Assert.assertEquals(tm.countTasks(available), 26);
+
+      TaskQuery roundRobin = available.toBuilder().fairness(TaskFairness.ROUND_ROBIN).build();
+      Task held = tm.getAndAcquireFirstTask(available("fairB"), "other worker");
+      List<Task> batch = tm.getAndAcquireTasks(roundRobin, 6, "worker");
+      Assert.assertEquals(batch.stream().map(Task::getName).collect(Collectors.toList()),
+              List.of("fairB", "fairC", "fairHot", "fairB", "fairC", "fairHot"));
+      Assert.assertEquals(batch.get(0).getBucketTime(), BUCKET_TIME.plusSeconds(300), "held tasks are skipped");
+      Assert.assertEquals(batch.get(1).getBucketTime(), BUCKET_TIME);
+      held.close();
+      for (Task task : batch) {
+         task.completed("done");
+      }
+      Assert.assertEquals(tm.getAndAcquireFirstTask(roundRobin, "worker").getName(), "fairC");
+      Assert.assertEquals(tm.getAndAcquireFirstTask(roundRobin, "worker").getName(), "fairHot");
+
+      // fairB was served longest ago, and once it runs out the others share the batch
+      TaskQuery leastRecentlyServed = available.toBuilder().fairness(TaskFairness.LEAST_RECENTLY_SERVED).build();
+      Assert.assertEquals(tm.getAndAcquireFirstTask(leastRecentlyServed, "worker").getName(), "fairB");
+      Assert.assertEquals(tm.getAndAcquireTasks(leastRecentlyServed, 3, "worker").stream().map(Task::getName).collect(Collectors.toList()),
+              List.of("fairHot", "fairHot", "fairHot"));
+
+      Assert.assertThrows(IllegalArgumentException.class, () -> tm.getTasks(available("fairB").toBuilder().names(Set.of("fairC")).build()));
+      Assert.assertThrows(IllegalArgumentException.class, () -> tm.getAndAcquireFirstTask(available("fairB").toBuilder().fairness(TaskFairness.ROUND_ROBIN).build()));
+   }
+
+   @Test
+   public void concurrentWorkersCompleteEachTaskOnce() throws Exception {
+      InMemoryTaskManager tm = new InMemoryTaskManager();
+      final int taskCount = 10_000;
+      for (int i = 0; i < taskCount; i++) {
+         tm.createTask("concurrent", BUCKET_TIME.plusSeconds(i), BUCKET_INTERVAL, "test");
+      }
+      final Set<Instant> completed = ConcurrentHashMap.newKeySet();
+      final AtomicInteger duplicates = new AtomicInteger();
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+         List<Future<?>> futures = new ArrayList<>();
+         for (int w = 0; w < 8; w++) {
+            final String worker = "worker" + w;
+            futures.add(executor.submit(() -> {
+               Task task;
+               while ((task = tm.getAndAcquireFirstTask(available("concurrent"), worker)) != null) {
+                  if (!completed.add(task.getBucketTime())) {
+                     duplicates.incrementAndGet();
+                  }
+                  task.completed(null);
+               }
+               return null;
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+      Assert.assertEquals(duplicates.get(), 0);
+      Assert.assertEquals(completed.size(), taskCount);
+   }
+}
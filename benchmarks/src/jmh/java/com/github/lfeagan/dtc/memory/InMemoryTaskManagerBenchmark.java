@@ -0,0 +1,91 @@
+package com.github.lfeagan.dtc.memory;
+
+import com.github.lfeagan.dtc.Task;
+import com.github.lfeagan.dtc.TaskManagerException;
+import com.github.lfeagan.dtc.TaskQuery;
+import com.github.lfeagan.dtc.TaskStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.threeten.extra.PeriodDuration;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The same operations as the PostgreSQL <code>TaskManagerBenchmark</code> against {@link InMemoryTaskManager},
+ * the upper bound on what the task manager API can sustain.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class InMemoryTaskManagerBenchmark {
+
+    private static final String TASK_NAME = "benchmark";
+    private static final PeriodDuration BUCKET_INTERVAL = PeriodDuration.of(Duration.ofMinutes(1));
+    private static final Instant BUCKET_ORIGIN = Instant.parse("2000-01-01T00:00:00Z");
+
+    @Param({"1000", "100000"})
+    public int tableSize;
+
+    private InMemoryTaskManager tm;
+    private TaskQuery availableQuery;
+    private final AtomicLong nextBucket = new AtomicLong();
+
+    @Setup(Level.Iteration)
+    public void setup() throws TaskManagerException {
+        tm = new InMemoryTaskManager();
+        nextBucket.set(0);
+        for (int i = 0; i < tableSize; i++) {
+            tm.createTask(TASK_NAME, bucketTime(nextBucket.getAndIncrement()), BUCKET_INTERVAL, "benchmark");
+        }
+        availableQuery = TaskQuery.builder()
+                .name(TASK_NAME)
+                .statuses(EnumSet.of(TaskStatus.AVAILABLE))
+                .build();
+    }
+
+    private static Instant bucketTime(long index) {
+        return BUCKET_ORIGIN.plus(Duration.ofMinutes(index));
+    }
+
+    @Benchmark
+    public Task createTask() throws TaskManagerException {
+        return tm.createTask(TASK_NAME, bucketTime(nextBucket.getAndIncrement()), BUCKET_INTERVAL, "benchmark");
+    }
+
+    /**
+     * Acquires the first available task and fails it, which returns it to the backlog, so the backlog stays the same size.
+     */
+    @Benchmark
+    public Task acquireAndFail() throws TaskManagerException {
+        Task task = tm.getAndAcquireFirstTask(availableQuery, "benchmark");
+        if (task != null) {
+            task.failed("benchmark");
+        }
+        return task;
+    }
+
+    /**
+     * Acquires the first available task and completes it, refilling the backlog with a new task, so the backlog stays the same size
+     * while completed tasks accumulate as they would in a table.
+     */
+    @Benchmark
+    public Task acquireAndComplete() throws TaskManagerException {
+        Task task = tm.getAndAcquireFirstTask(availableQuery, "benchmark");
+        if (task != null) {
+            task.completed("benchmark");
+        }
+        tm.createTask(TASK_NAME, bucketTime(nextBucket.getAndIncrement()), BUCKET_INTERVAL, "benchmark");
+        return task;
+    }
+}
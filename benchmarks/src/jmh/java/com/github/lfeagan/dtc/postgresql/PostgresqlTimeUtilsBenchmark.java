@@ -0,0 +1,63 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.postgresql.util.PGInterval;
+import org.threeten.extra.PeriodDuration;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.Period;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversions between java.time values and their PostgreSQL representations, done for every bound interval and every decoded row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PostgresqlTimeUtilsBenchmark {
+
+    private Instant instant;
+    private PeriodDuration periodDuration;
+    private PGInterval interval;
+
+    @Setup
+    public void setup() throws SQLException {
+        instant = Instant.parse("2024-01-02T03:04:05.678Z");
+        periodDuration = PeriodDuration.of(Period.ofDays(1), Duration.ofMinutes(5).plusMillis(250));
+        interval = new PGInterval("1 day 00:05:00.250");
+    }
+
+    @Benchmark
+    public String toPostgresqlTimestampWithTz() {
+        return PostgresqlTimeUtils.toPostgresqlTimestampWithTz(instant);
+    }
+
+    @Benchmark
+    public String toPostgresqlInterval() {
+        return PostgresqlTimeUtils.toPostgresqlInterval(periodDuration);
+    }
+
+    @Benchmark
+    public String toMinifiedPostgresqlInterval() {
+        return PostgresqlTimeUtils.toMinifiedPostgresqlInterval(periodDuration);
+    }
+
+    @Benchmark
+    public PeriodDuration periodDurationFromPGInterval() {
+        return PostgresqlTimeUtils.periodDurationFromPGInterval(interval);
+    }
+
+    @Benchmark
+    public PGInterval pgIntervalFromString() throws SQLException {
+        // how createTask binds the bucket interval
+        return new PGInterval(periodDuration.toString());
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import com.github.lfeagan.dtc.TaskStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.postgresql.ds.PGSimpleDataSource;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of one row into a task by {@link PostgresqlTaskManager#currentRowToTask(ResultSet)},
+ * over an in-memory result set holding a typical acquired row, so only the decoding is measured.
+ * Run with <code>-PjmhProfilers=gc</code> to compare the bytes allocated per row with and without the decoder caches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RowDecodingBenchmark {
+
+    @Param({"0", "256"})
+    public int rowDecoderCacheSize;
+
+    private PostgresqlTaskManager ptm;
+    private ResultSet resultSet;
+
+    @Setup
+    public void setup() throws SQLException {
+        // never connects, the data source is only needed to construct the task manager
+        ptm = new PostgresqlTaskManager(new PGSimpleDataSource(), PostgresqlTaskManagerConfig.builder()
+                .rowDecoderCacheSize(rowDecoderCacheSize)
+                .build());
+        final OffsetDateTime now = OffsetDateTime.parse("2024-01-02T03:04:05.678Z");
+        final Object[] row = {
+                "benchmark",
+                now,
+                "00:05:00",
+                TaskStatus.ACQUIRED.name(),
+                "creator",
+                now,
+                "worker",
+                now,
+                null,
+                null,
+                null,
+                null,
+                0
+        };
+        resultSet = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getString":
+                    // a fresh copy, as the driver decodes each row into new strings
+                    final String value = (String) row[(Integer) args[0] - 1];
+                    return value == null ? null : new String(value);
+                case "getObject":
+                    return row[(Integer) args[0] - 1];
+                case "getInt":
+                    return row[(Integer) args[0] - 1];
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @Benchmark
+    public PostgresqlTask currentRowToTask() throws SQLException {
+        return ptm.currentRowToTask(resultSet);
+    }
+}
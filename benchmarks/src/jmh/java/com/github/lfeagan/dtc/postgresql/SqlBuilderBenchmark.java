@@ -0,0 +1,70 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import com.github.lfeagan.dtc.TaskQuery;
+import com.github.lfeagan.dtc.TaskStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statement generation for the acquire and query paths: the per-call lookup in the statement catalog,
+ * and the cost of building a statement the first time its shape is seen.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SqlBuilderBenchmark {
+
+    private SqlBuilder sqlBuilder;
+    private TaskQuery backlogQuery;
+    private TaskQuery rangeQuery;
+
+    @Setup
+    public void setup() {
+        sqlBuilder = new SqlBuilder("tasks", 32, true, false, false);
+        backlogQuery = TaskQuery.builder()
+                .name("benchmark")
+                .bucketStartTime(Instant.now().minusSeconds(3600))
+                .statuses(EnumSet.of(TaskStatus.AVAILABLE))
+                .build();
+        rangeQuery = TaskQuery.builder()
+                .name("benchmark")
+                .bucketStartTime(Instant.now().minusSeconds(3600))
+                .bucketEndTime(Instant.now())
+                .statuses(EnumSet.of(TaskStatus.AVAILABLE, TaskStatus.SKIP))
+                .build();
+    }
+
+    @Benchmark
+    public String cachedUpdateAcquiredFirst() {
+        return sqlBuilder.updateAcquiredFirst(backlogQuery);
+    }
+
+    @Benchmark
+    public String cachedUpdateAcquiredBatch() {
+        return sqlBuilder.updateAcquiredBatch(backlogQuery);
+    }
+
+    @Benchmark
+    public String cachedSelect() {
+        return sqlBuilder.taskQueryToSql(rangeQuery);
+    }
+
+    @Benchmark
+    public String uncachedUpdateAcquiredFirst() {
+        return new SqlBuilder("tasks", 32, true, false, false).updateAcquiredFirst(backlogQuery);
+    }
+
+    @Benchmark
+    public String uncachedSelect() {
+        return new SqlBuilder("tasks", 32, true, false, false).taskQueryToSql(rangeQuery);
+    }
+}
@@ -0,0 +1,183 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import com.github.lfeagan.dtc.Task;
+import com.github.lfeagan.dtc.TaskManagerException;
+import com.github.lfeagan.dtc.TaskQuery;
+import com.github.lfeagan.dtc.TaskStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.postgresql.ds.PGSimpleDataSource;
+import org.threeten.extra.PeriodDuration;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end operations of {@link PostgresqlTaskManager} against a running PostgreSQL server.
+ * The table is recreated and filled with <code>tableSize</code> available tasks before each trial,
+ * and every task is made available again before each iteration.
+ * Run with <code>-PjmhThreads=N</code> to measure contention between concurrent workers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TaskManagerBenchmark {
+
+    private static final String TABLE_NAME = "bench_tasks";
+    private static final String TASK_NAME = "benchmark";
+    private static final PeriodDuration BUCKET_INTERVAL = PeriodDuration.of(Duration.ofMinutes(1));
+    private static final Instant BUCKET_ORIGIN = Instant.parse("2000-01-01T00:00:00Z");
+
+    @Param({"1000", "100000"})
+    public int tableSize;
+
+    private PGSimpleDataSource dataSource;
+    private PostgresqlTaskManager ptm;
+    private TaskQuery availableQuery;
+    private final AtomicLong nextBucket = new AtomicLong();
+    private final AtomicInteger nextStatusName = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException, TaskManagerException {
+        dataSource = new PGSimpleDataSource();
+        dataSource.setServerNames(new String[] {System.getProperty("dtc.benchmark.host", "localhost")});
+        dataSource.setPortNumbers(new int[] {Integer.getInteger("dtc.benchmark.port", 5432)});
+        dataSource.setDatabaseName(System.getProperty("dtc.benchmark.database", "test"));
+        dataSource.setUser(System.getProperty("dtc.benchmark.user", "test"));
+        dataSource.setPassword(System.getProperty("dtc.benchmark.password", "test"));
+
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS " + TABLE_NAME + " CASCADE");
+        }
+        ptm = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.builder().tableName(TABLE_NAME).build());
+        ptm.initialize();
+
+        List<Instant> bucketTimes = new ArrayList<>(tableSize);
+        for (int i = 0; i < tableSize; i++) {
+            bucketTimes.add(bucketTime(nextBucket.getAndIncrement()));
+        }
+        ptm.createTasks(TASK_NAME, bucketTimes, BUCKET_INTERVAL, "benchmark");
+
+        availableQuery = TaskQuery.builder()
+                .name(TASK_NAME)
+                .statuses(EnumSet.of(TaskStatus.AVAILABLE))
+                .build();
+    }
+
+    /**
+     * The tasks one thread of the status benchmark moves between SKIP and AVAILABLE, never leaving them acquired.
+     * Each thread has a task name of its own, so no thread updates a row another holds, and the acquire benchmarks never see them.
+     * The batch size is a parameter of this state only, so it does not multiply the other benchmarks.
+     */
+    @State(Scope.Thread)
+    public static class StatusBatch {
+
+        @Param({"1", "100"})
+        public int batchSize;
+
+        private Set<Task> tasks;
+        private boolean skipped;
+
+        @Setup(Level.Trial)
+        public void setup(TaskManagerBenchmark benchmark) throws TaskManagerException {
+            final String name = "status" + benchmark.nextStatusName.getAndIncrement();
+            List<Instant> bucketTimes = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                bucketTimes.add(bucketTime(i));
+            }
+            tasks = new HashSet<>(benchmark.ptm.createTasks(name, bucketTimes, BUCKET_INTERVAL, "benchmark"));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetBacklog() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE " + TABLE_NAME + " SET status='AVAILABLE' WHERE status<>'AVAILABLE'");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ptm.close();
+    }
+
+    private static Instant bucketTime(long index) {
+        return BUCKET_ORIGIN.plus(Duration.ofMinutes(index));
+    }
+
+    /**
+     * Inserts a task with a bucket time no other call has used.
+     */
+    @Benchmark
+    public Task createTask() throws TaskManagerException {
+        return ptm.createTask(TASK_NAME, bucketTime(nextBucket.getAndIncrement()), BUCKET_INTERVAL, "benchmark");
+    }
+
+    /**
+     * Acquires the first available task and completes it.
+     * The backlog shrinks during an iteration, so the iteration time should be short enough not to exhaust <code>tableSize</code> tasks.
+     */
+    @Benchmark
+    public Task acquireAndComplete() throws TaskManagerException, IOException {
+        Task task = ptm.getAndAcquireFirstTask(availableQuery, "benchmark");
+        if (task != null) {
+            try {
+                task.completed("benchmark");
+            } finally {
+                task.close();
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Acquires the first available task and fails it, which returns it to the backlog, so the table stays the same size.
+     */
+    @Benchmark
+    public Task acquireAndFail() throws TaskManagerException, IOException {
+        Task task = ptm.getAndAcquireFirstTask(availableQuery, "benchmark");
+        if (task != null) {
+            try {
+                task.failed("benchmark");
+            } finally {
+                task.close();
+            }
+        }
+        return task;
+    }
+
+    @Benchmark
+    public Task getTask() throws TaskManagerException {
+        return ptm.getTask(TASK_NAME, bucketTime(ThreadLocalRandom.current().nextInt(tableSize)));
+    }
+
+    /**
+     * Updates the status of <code>batchSize</code> tasks in one call.
+     */
+    @Benchmark
+    public Set<Task> setTaskStatus(StatusBatch batch) throws TaskManagerException {
+        batch.skipped = !batch.skipped;
+        return ptm.setTaskStatusAndGet(batch.tasks, batch.skipped ? TaskStatus.SKIP : TaskStatus.AVAILABLE, "benchmark");
+    }
+}
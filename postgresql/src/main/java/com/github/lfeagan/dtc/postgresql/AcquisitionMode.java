@@ -0,0 +1,33 @@
+package com.github.lfeagan.dtc.postgresql;
+
+/**
+ * Determines how a {@link PostgresqlTaskManager} holds on to the tasks it has acquired.
+ */
+public enum AcquisitionMode {
+
+    /**
+     * The row lock on an acquired task is held by an open transaction until the task is completed, failed, or skipped.
+     * Each acquired task pins one connection, and a worker that dies releases its lock when the TCP connection drops.
+     * The ACQUIRED status, acquired_by, and acquired_at are written in that same transaction, so other sessions,
+     * including monitoring queries, only see them once the task has finished, and never see a task as in flight.
+     * Committing them earlier would leave the task of a dead worker ACQUIRED for good, as nothing in this mode tells that its holder is gone.
+     * Use {@link #LEASE} or {@link #ADVISORY_LOCK} when in-flight tasks must be visible.
+     */
+    TRANSACTION,
+
+    /**
+     * Acquiring a task commits a lease (lease_owner and lease_expires_at) and returns the connection immediately.
+     * Leases are renewed by a heartbeat while the task is held, and a task whose lease has expired may be reclaimed by another worker.
+     * Since the ACQUIRED status, acquired_by, and acquired_at are committed with the lease, other sessions see the task in flight.
+     */
+    LEASE,
+
+    /**
+     * Each acquired task is held by a session-level advisory lock, keyed on its name and bucket time,
+     * taken on one long-lived connection that the task manager shares between all of its tasks.
+     * The acquired status is committed through short pooled transactions, so hundreds of held tasks cost a single connection,
+     * and a worker that dies still releases its locks when the TCP connection drops. Its ACQUIRED tasks are then reclaimed by the next backlog query.
+     * Other sessions see a held task as ACQUIRED, along with acquired_by and acquired_at, as soon as it is acquired.
+     */
+    ADVISORY_LOCK
+}
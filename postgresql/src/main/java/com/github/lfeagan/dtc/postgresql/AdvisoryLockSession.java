@@ -0,0 +1,266 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import com.github.lfeagan.dtc.NameTurns;
+import com.github.lfeagan.dtc.Task;
+import com.github.lfeagan.dtc.TaskQuery;
+import com.github.lfeagan.dtc.TaskStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.github.lfeagan.dtc.postgresql.JdbcUtils.closeWithoutException;
+
+/**
+ * The long-lived connection holding the advisory locks on every task a {@link PostgresqlTaskManager} has acquired in {@link AcquisitionMode#ADVISORY_LOCK} mode.
+ * Advisory locks are reentrant within a session, so the session also tracks which tasks it holds and never acquires one of them twice.
+ * Use of the connection is serialized, and if it is lost, every task it held is marked as no longer acquired, since its locks went with it.
+ */
+class AdvisoryLockSession implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdvisoryLockSession.class);
+
+    private final PostgresqlTaskManager ptm;
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock
+    private Connection conn;
+    private final Map<TaskKey, PostgresqlTask> heldTasks = new HashMap<>();
+
+    AdvisoryLockSession(final PostgresqlTaskManager ptm) {
+        this.ptm = ptm;
+    }
+
+    private Connection connection() throws SQLException {
+        if (conn == null) {
+            conn = ptm.getConnection();
+            conn.setAutoCommit(true);
+        }
+        return conn;
+    }
+
+    /**
+     * Locks and marks acquired up to <code>maxTasks</code> tasks satisfying the query, including ACQUIRED tasks whose holder has gone away.
+     * @param taskQuery
+     * @param maxTasks
+     * @param acquiredBy
+     * @return the acquired tasks
+     * @throws SQLException
+     */
+    List<Task> acquire(TaskQuery taskQuery, int maxTasks, String acquiredBy) throws SQLException {
+        List<PostgresqlTask> lostTasks = Collections.emptyList();
+        lock.lock();
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            final String token = UUID.randomUUID().toString();
+            final List<String> turns = ptm.nameTurns.turns(taskQuery);
+            pstmt = ptm.prepareStatement(connection(), ptm.sqlBuilder.updateAcquiredAdvisoryLockBatch(taskQuery));
+            int index = ptm.sqlBuilder.bindAcquirableRows(pstmt, 1, taskQuery, true, turns, maxTasks, heldTasks.values());
+            pstmt.setInt(index++, maxTasks);
+            bindAcquired(pstmt, index, acquiredBy, token);
+            resultSet = pstmt.executeQuery();
+            final List<Task> tasks = new ArrayList<>(maxTasks);
+            while (resultSet.next()) {
+                PostgresqlTask task = heldRowToTask(resultSet, null);
+                if (task != null) {
+                    tasks.add(task);
+                }
+            }
+            if (turns != null) {
+                NameTurns.sortInTurns(tasks, turns, taskQuery.getOrderBy());
+            }
+            return tasks;
+        } catch (SQLException e) {
+            lostTasks = invalidateIfBroken();
+            throw e;
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+            lock.unlock();
+            lostTasks.forEach(PostgresqlTask::leaseLost);
+        }
+    }
+
+    /**
+     * Locks and marks acquired a specific task. The task itself is registered as the holder of the lock.
+     * @param task
+     * @param acquiredBy
+     * @return the acquired row, or <code>null</code> if the task is held by someone else or does not exist
+     * @throws SQLException
+     */
+    PostgresqlTask acquire(PostgresqlTask task, String acquiredBy) throws SQLException {
+        List<PostgresqlTask> lostTasks = Collections.emptyList();
+        lock.lock();
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            if (heldTasks.containsKey(new TaskKey(task))) {
+                return null;
+            }
+            final String token = UUID.randomUUID().toString();
+            pstmt = ptm.prepareStatement(connection(), ptm.sqlBuilder.updateAcquiredAdvisoryLock());
+            pstmt.setString(1, task.getName());
+            pstmt.setTimestamp(2, Timestamp.from(task.getBucketTime()));
+            bindAcquired(pstmt, 3, acquiredBy, token);
+            resultSet = pstmt.executeQuery();
+            PostgresqlTask acquiredTask = null;
+            while (resultSet.next()) {
+                acquiredTask = heldRowToTask(resultSet, task);
+            }
+            return acquiredTask;
+        } catch (SQLException e) {
+            lostTasks = invalidateIfBroken();
+            throw e;
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+            lock.unlock();
+            lostTasks.forEach(PostgresqlTask::leaseLost);
+        }
+    }
+
+    private static void bindAcquired(PreparedStatement pstmt, int index, String acquiredBy, String token) throws SQLException {
+        pstmt.setString(index++, TaskStatus.ACQUIRED.name());
+        pstmt.setString(index++, acquiredBy);
+        pstmt.setTimestamp(index++, Timestamp.from(Instant.now()));
+        pstmt.setString(index, token);
+    }
+
+    /**
+     * Registers the task locked on the current row, or releases the lock if the task could not be marked acquired.
+     * @param resultSet
+     * @param holder the instance to register as holding the lock, or <code>null</code> for the task converted from the row
+     */
+    private PostgresqlTask heldRowToTask(ResultSet resultSet, PostgresqlTask holder) throws SQLException {
+        if (!resultSet.getBoolean(15)) {
+            unlock(ptm.taskNames.name(resultSet, 1), resultSet.getTimestamp(2));
+            return null;
+        }
+        PostgresqlTask task = ptm.currentRowToTask(resultSet);
+        task.setLeaseHeld(true);
+        if (holder == null) {
+            ptm.heldTask(task);
+        }
+        heldTasks.put(new TaskKey(task), holder == null ? task : holder);
+        return task;
+    }
+
+    private void unlock(String name, Timestamp bucketTime) throws SQLException {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = ptm.prepareStatement(connection(), ptm.sqlBuilder.advisoryUnlock());
+            pstmt.setString(1, name);
+            pstmt.setTimestamp(2, bucketTime);
+            pstmt.execute();
+        } finally {
+            closeWithoutException(pstmt);
+        }
+    }
+
+    /**
+     * Releases the advisory lock on a task, once its final status has been committed.
+     * Releasing a task that is not held has no effect.
+     * @param task
+     */
+    void release(PostgresqlTask task) {
+        List<PostgresqlTask> lostTasks = Collections.emptyList();
+        lock.lock();
+        try {
+            final TaskKey key = new TaskKey(task);
+            if (heldTasks.get(key) != task) {
+                return;
+            }
+            heldTasks.remove(key);
+            unlock(task.getName(), Timestamp.from(task.getBucketTime()));
+        } catch (SQLException e) {
+            LOGGER.error("Unable to release advisory lock on task name {} bucket time {}", task.getName(), task.getBucketTime(), e);
+            lostTasks = invalidateIfBroken();
+        } finally {
+            lock.unlock();
+            lostTasks.forEach(PostgresqlTask::leaseLost);
+        }
+    }
+
+    /**
+     * A statement error leaves an autocommit session usable, but a lost connection takes every advisory lock with it.
+     * @return the tasks whose locks were lost, to be told so once the session lock is released,
+     * since their own locks may be held by threads waiting on this session
+     */
+    private List<PostgresqlTask> invalidateIfBroken() {
+        try {
+            if (conn != null && conn.isValid(1)) {
+                return Collections.emptyList();
+            }
+        } catch (SQLException e) {
+            // treat as broken
+        }
+        return invalidate();
+    }
+
+    private List<PostgresqlTask> invalidate() {
+        closeWithoutException(conn);
+        conn = null;
+        List<PostgresqlTask> lostTasks = new ArrayList<>(heldTasks.values());
+        for (PostgresqlTask task : lostTasks) {
+            LOGGER.warn("Advisory lock lost on task name {} bucket time {}", task.getName(), task.getBucketTime());
+        }
+        heldTasks.clear();
+        return lostTasks;
+    }
+
+    /**
+     * Closes the session connection, releasing every advisory lock it holds. Tasks that are still held are left ACQUIRED for the next backlog query to reclaim.
+     */
+    @Override
+    public void close() {
+        final List<PostgresqlTask> lostTasks;
+        lock.lock();
+        try {
+            lostTasks = invalidate();
+        } finally {
+            lock.unlock();
+        }
+        lostTasks.forEach(PostgresqlTask::leaseLost);
+    }
+
+    private static final class TaskKey {
+        private final String name;
+        private final Instant bucketTime;
+
+        TaskKey(Task task) {
+            this.name = task.getName();
+            this.bucketTime = task.getBucketTime();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TaskKey)) {
+                return false;
+            }
+            TaskKey other = (TaskKey) o;
+            return name.equals(other.name) && bucketTime.equals(other.bucketTime);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, bucketTime);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.lfeagan.dtc.postgresql.JdbcUtils.closeWithoutException;
+
+/**
+ * The heartbeat that keeps the leases held by a {@link PostgresqlTaskManager} from expiring.
+ * All leases are renewed with a single batch on one pooled connection, which is returned as soon as the batch completes.
+ * A task whose lease could not be renewed (because it expired and was reclaimed) is told it has lost its lease.
+ */
+class LeaseRenewer implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeaseRenewer.class);
+
+    private final PostgresqlTaskManager ptm;
+    // tasks are mutable and compare by value, so track them by identity
+    private final Map<PostgresqlTask, Boolean> leasedTasks = Collections.synchronizedMap(new IdentityHashMap<>());
+    private ScheduledExecutorService executor;
+
+    LeaseRenewer(final PostgresqlTaskManager ptm) {
+        this.ptm = ptm;
+    }
+
+    synchronized void register(PostgresqlTask task) {
+        leasedTasks.put(task, Boolean.TRUE);
+        if (executor == null) {
+            final long periodMillis = ptm.config.getLeaseRenewalInterval().toMillis();
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "dtc-lease-renewer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::renewAll, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void unregister(PostgresqlTask task) {
+        leasedTasks.remove(task);
+    }
+
+    void renewAll() {
+        final List<PostgresqlTask> tasks;
+        synchronized (leasedTasks) {
+            tasks = new ArrayList<>(leasedTasks.keySet());
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+        final long leaseMillis = ptm.config.getLeaseDuration().toMillis();
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = ptm.getConnection();
+            conn.setAutoCommit(true);
+            pstmt = ptm.prepareStatement(conn, ptm.sqlBuilder.updateLeaseExpiry());
+            for (PostgresqlTask task : tasks) {
+                pstmt.setLong(1, leaseMillis);
+                pstmt.setString(2, task.getName());
+                pstmt.setTimestamp(3, Timestamp.from(task.getBucketTime()));
+                pstmt.setString(4, task.getLeaseOwner());
+                pstmt.addBatch();
+            }
+            final Instant renewedAt = Instant.now();
+            int[] updateCounts = pstmt.executeBatch();
+            for (int i = 0; i < updateCounts.length; ++i) {
+                PostgresqlTask task = tasks.get(i);
+                if (updateCounts[i] == 0) {
+                    LOGGER.warn("Lease lost on task name {} bucket time {}", task.getName(), task.getBucketTime());
+                    leasedTasks.remove(task);
+                    task.leaseLost();
+                } else {
+                    task.leaseRenewed(renewedAt.plusMillis(leaseMillis));
+                }
+            }
+        } catch (SQLException e) {
+            // leave the tasks registered, the next heartbeat will try again
+            LOGGER.error("Unable to renew {} leases", tasks.size(), e);
+        } finally {
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        leasedTasks.clear();
+    }
+}
@@ -0,0 +1,223 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.lfeagan.dtc.postgresql.JdbcUtils.closeWithoutException;
+
+/**
+ * Keeps the partitions of a task table that is range partitioned on bucket time ahead of the clock,
+ * and drops the partitions that have passed the retention, so old tasks are removed without deleting them row by row.
+ * Each partition is created or dropped in a transaction of its own, holding a transaction-scoped advisory lock on the table,
+ * so task managers sharing the table do not get in each other's way, and with a lock timeout,
+ * so maintenance gives up until its next run rather than leaving workers queued behind it.
+ */
+class PartitionMaintainer implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionMaintainer.class);
+
+    // PostgreSQL error lock_not_available, raised when the lock timeout expires
+    private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+    private final PostgresqlTaskManager ptm;
+    private ScheduledExecutorService executor;
+
+    PartitionMaintainer(final PostgresqlTaskManager ptm) {
+        this.ptm = ptm;
+    }
+
+    synchronized void start() {
+        if (executor == null) {
+            final long periodMillis = ptm.config.getPartitionMaintenanceInterval().toMillis();
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "dtc-partition-maintainer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::maintainQuietly, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void maintainQuietly() {
+        try {
+            maintain(Instant.now());
+        } catch (SQLException e) {
+            // the partitions created ahead of time leave room for the next run to try again
+            LOGGER.error("Unable to maintain the partitions of {}", ptm.config.getTableName(), e);
+        }
+    }
+
+    /**
+     * Creates the partition covering the specified time and those following it, unless they exist,
+     * then drops every partition whose range ended longer than the retention before the specified time.
+     * @param now
+     * @throws SQLException
+     */
+    void maintain(Instant now) throws SQLException {
+        final long intervalSeconds = intervalSeconds();
+        final Instant first = Instant.ofEpochSecond(Math.floorDiv(now.getEpochSecond(), intervalSeconds) * intervalSeconds);
+        Connection conn = null;
+        try {
+            conn = ptm.getConnection();
+            conn.setAutoCommit(true);
+            final Set<Instant> existing = selectPartitionStarts(conn);
+            for (int i = 0; i <= ptm.config.getPartitionsAhead(); ++i) {
+                final Instant start = first.plusSeconds(intervalSeconds * i);
+                if (!existing.contains(start)) {
+                    createPartition(conn, start, start.plusSeconds(intervalSeconds));
+                }
+            }
+            final Duration retention = ptm.config.getPartitionRetention();
+            if (retention != null) {
+                final Instant cutoff = now.minus(retention);
+                for (Instant start : existing) {
+                    if (!start.plusSeconds(intervalSeconds).isAfter(cutoff)) {
+                        dropPartition(conn, start);
+                    }
+                }
+            }
+        } finally {
+            closeWithoutException(conn);
+        }
+    }
+
+    private long intervalSeconds() {
+        final Duration interval = ptm.config.getPartitionInterval();
+        if (interval.getSeconds() < 1 || interval.getNano() != 0) {
+            String message = MessageFormat.format("Partition interval must be a positive number of whole seconds but was {0}", interval);
+            throw new IllegalArgumentException(message);
+        }
+        return interval.getSeconds();
+    }
+
+    private Set<Instant> selectPartitionStarts(Connection conn) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            pstmt = ptm.prepareStatement(conn, ptm.sqlBuilder.selectPartitions());
+            pstmt.setString(1, ptm.config.getTableName());
+            resultSet = pstmt.executeQuery();
+            Set<Instant> starts = new TreeSet<>();
+            while (resultSet.next()) {
+                final Instant start = ptm.sqlBuilder.partitionStart(resultSet.getString(1));
+                if (start != null) {
+                    starts.add(start);
+                }
+            }
+            return starts;
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+        }
+    }
+
+    /**
+     * Creates the partition as a standalone table, moves any tasks for its range out of the default partition, and attaches it.
+     */
+    private void createPartition(Connection conn, Instant start, Instant end) throws SQLException {
+        Statement stmt = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn.setAutoCommit(false);
+            stmt = conn.createStatement();
+            if (!lock(conn, stmt) || exists(conn, start)) {
+                conn.rollback();
+                return;
+            }
+            stmt.execute(ptm.sqlBuilder.createPartitionTable(start));
+            pstmt = ptm.prepareStatement(conn, ptm.sqlBuilder.moveFromDefaultPartition(start));
+            pstmt.setTimestamp(1, Timestamp.from(start));
+            pstmt.setTimestamp(2, Timestamp.from(end));
+            final int moved = pstmt.executeUpdate();
+            stmt.execute(ptm.sqlBuilder.attachPartition(start, end));
+            conn.commit();
+            LOGGER.info("Created partition {} moving {} tasks from the default partition", ptm.sqlBuilder.partitionName(start), moved);
+        } catch (SQLException e) {
+            conn.rollback();
+            if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState())) {
+                throw e;
+            }
+            LOGGER.warn("Timed out waiting for a lock to create partition {}", ptm.sqlBuilder.partitionName(start));
+        } finally {
+            closeWithoutException(pstmt);
+            closeWithoutException(stmt);
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private void dropPartition(Connection conn, Instant start) throws SQLException {
+        Statement stmt = null;
+        try {
+            conn.setAutoCommit(false);
+            stmt = conn.createStatement();
+            if (!lock(conn, stmt) || !exists(conn, start)) {
+                conn.rollback();
+                return;
+            }
+            stmt.execute(ptm.sqlBuilder.detachPartition(start));
+            stmt.execute(ptm.sqlBuilder.dropPartition(start));
+            conn.commit();
+            LOGGER.info("Dropped partition {}", ptm.sqlBuilder.partitionName(start));
+        } catch (SQLException e) {
+            conn.rollback();
+            if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState())) {
+                throw e;
+            }
+            LOGGER.warn("Timed out waiting for a lock to drop partition {}", ptm.sqlBuilder.partitionName(start));
+        } finally {
+            closeWithoutException(stmt);
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Sets the lock timeout of the transaction and takes the advisory lock serializing partition maintenance of the table.
+     * @return whether the advisory lock was taken, <code>false</code> if another task manager is maintaining the partitions
+     */
+    private boolean lock(Connection conn, Statement stmt) throws SQLException {
+        stmt.execute(ptm.sqlBuilder.setLocalLockTimeout(ptm.config.getPartitionLockTimeout()));
+        return selectBoolean(conn, ptm.sqlBuilder.tryPartitionMaintenanceLock(), ptm.config.getTableName());
+    }
+
+    private boolean exists(Connection conn, Instant start) throws SQLException {
+        return selectBoolean(conn, ptm.sqlBuilder.selectPartitionExists(), ptm.sqlBuilder.partitionName(start));
+    }
+
+    private boolean selectBoolean(Connection conn, String sql, String parameter) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            pstmt = ptm.prepareStatement(conn, sql);
+            pstmt.setString(1, parameter);
+            resultSet = pstmt.executeQuery();
+            return resultSet.next() && resultSet.getBoolean(1);
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
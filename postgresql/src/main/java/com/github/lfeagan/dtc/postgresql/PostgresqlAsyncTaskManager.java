@@ -0,0 +1,138 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import com.github.lfeagan.dtc.*;
+import org.threeten.extra.PeriodDuration;
+
+import java.io.Closeable;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs the blocking calls of a {@link PostgresqlTaskManager} on a bounded pool of
+ * {@link PostgresqlTaskManagerConfig#getAsyncPoolSize()} threads, which should not exceed the connections the data source can hand out.
+ * At most {@link PostgresqlTaskManagerConfig#getAsyncQueueCapacity()} operations wait for a thread,
+ * and further operations complete exceptionally with a {@link RejectedExecutionException} rather than blocking the caller.
+ * Futures complete on the pool's threads, so dependent stages should be quick or supply their own executor.
+ */
+public class PostgresqlAsyncTaskManager implements AsyncTaskManager, Closeable {
+
+    @FunctionalInterface
+    private interface TaskManagerCall<T> {
+        T call() throws TaskManagerException;
+    }
+
+    private final PostgresqlTaskManager taskManager;
+    private final ThreadPoolExecutor executor;
+
+    public PostgresqlAsyncTaskManager(final PostgresqlTaskManager taskManager) {
+        this.taskManager = taskManager;
+        final PostgresqlTaskManagerConfig config = taskManager.getConfig();
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(config.getAsyncPoolSize(), config.getAsyncPoolSize(),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getAsyncQueueCapacity()),
+                r -> {
+                    Thread thread = new Thread(r, "dtc-async-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public PostgresqlTaskManager getTaskManager() {
+        return taskManager;
+    }
+
+    private <T> CompletableFuture<T> submit(TaskManagerCall<T> call) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call();
+                } catch (TaskManagerException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private CompletableFuture<Task> submit(Task task, Consumer<Task> update) {
+        return submit(() -> {
+            update.accept(task);
+            return task;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Task> createTask(String name, Instant bucketTime, PeriodDuration bucketInterval, String createdBy) {
+        return submit(() -> taskManager.createTask(name, bucketTime, bucketInterval, createdBy));
+    }
+
+    @Override
+    public CompletableFuture<List<Task>> createTasks(String name, Collection<Instant> bucketTimes, PeriodDuration bucketInterval, String createdBy) {
+        return submit(() -> taskManager.createTasks(name, bucketTimes, bucketInterval, createdBy));
+    }
+
+    @Override
+    public CompletableFuture<Task> getAndAcquireFirstTask(TaskQuery taskQuery, String acquiredBy) {
+        return submit(() -> taskManager.getAndAcquireFirstTask(taskQuery, acquiredBy));
+    }
+
+    @Override
+    public CompletableFuture<List<Task>> getAndAcquireTasks(TaskQuery taskQuery, int maxTasks, String acquiredBy) {
+        return submit(() -> taskManager.getAndAcquireTasks(taskQuery, maxTasks, acquiredBy));
+    }
+
+    @Override
+    public CompletableFuture<Task> getTask(String name, Instant bucketTime) {
+        return submit(() -> taskManager.getTask(name, bucketTime));
+    }
+
+    @Override
+    public CompletableFuture<List<Task>> getTasks(TaskQuery taskQuery) {
+        return submit(() -> taskManager.getTasks(taskQuery));
+    }
+
+    @Override
+    public CompletableFuture<Set<Task>> setTaskStatus(Set<Task> tasks, TaskStatus updatedStatus, String acquiredBy) {
+        return submit(() -> taskManager.setTaskStatusAndGet(tasks, updatedStatus, acquiredBy));
+    }
+
+    @Override
+    public CompletableFuture<Task> completed(Task task, String message) {
+        return submit(task, t -> t.completed(message));
+    }
+
+    @Override
+    public CompletableFuture<Task> failed(Task task, String message) {
+        return submit(task, t -> t.failed(message));
+    }
+
+    @Override
+    public CompletableFuture<Task> skip(Task task, String message) {
+        return submit(task, t -> t.skip(message));
+    }
+
+    /**
+     * Stops accepting operations and waits briefly for those already submitted. Does not close the underlying task manager.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -2,7 +2,9 @@ package com.github.lfeagan.dtc.postgresql;
 
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NonNull;
+import lombok.ToString;
 import com.github.lfeagan.dtc.Task;
 import com.github.lfeagan.dtc.TaskStatus;
 import org.threeten.extra.PeriodDuration;
@@ -12,6 +14,8 @@ import java.sql.*;
 import java.text.MessageFormat;
 import java.time.Instant;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.github.lfeagan.dtc.postgresql.JdbcUtils.closeWithoutException;
 
@@ -40,6 +44,8 @@ public class PostgresqlTask implements Task {
     private String message;
     @Builder.Default
     private int failCount = 0;
+    @Builder.Default
+    private int priority = 0;
 
     @Builder.Default
     private TaskStatus status = TaskStatus.AVAILABLE;
@@ -49,6 +55,36 @@ public class PostgresqlTask implements Task {
     @Builder.Default
     private int exceptionCount = 0;
 
+    /**
+     * The lease token, only used in {@link AcquisitionMode#LEASE} and {@link AcquisitionMode#ADVISORY_LOCK} modes.
+     */
+    private String leaseOwner;
+    private Instant leaseExpiresAt;
+
+    /**
+     * Set when this instance took the lease, or advisory lock, identified by {@link #leaseOwner}.
+     */
+    private transient boolean leaseHeld;
+
+    /**
+     * Set when this task shares its connection and transaction with other tasks acquired in the same batch.
+     */
+    private transient TaskBatch batch;
+
+    /**
+     * Guards state changes. A lock rather than monitors, so a virtual thread blocked on JDBC while holding it does not pin its carrier thread.
+     */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private transient final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * When this instance acquired the task, by {@link System#nanoTime()}, or zero if it does not hold it.
+     */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private transient long heldSinceNanos;
+
     @Override
     public String getCreatedBy() {
         return createdBy;
@@ -60,87 +96,290 @@ public class PostgresqlTask implements Task {
     }
 
     @Override
-    public synchronized void acquire(String acquiredBy) {
-        if (isAcquired()) {
-            throw new IllegalStateException("Attempt to re-acquire a lock that has already been acquired");
-        }
-        Objects.requireNonNull(acquiredBy, "must specify acquired_by");
-        PreparedStatement pstmt = null;
-        ResultSet resultSet = null;
+    public void acquire(String acquiredBy) {
+        lock.lock();
         try {
-            this.conn = ptm.getConnection();
-            this.conn.setAutoCommit(false);
-            pstmt = this.conn.prepareStatement(ptm.sqlBuilder.selectForUpdateNoWait());
-            pstmt.setString(1, this.name);
-            pstmt.setTimestamp(2, Timestamp.from(bucketTime));
-            resultSet = pstmt.executeQuery();
-            if (resultSet.next()) {
-                // acquired
-                closeWithoutException(pstmt);
-                this.acquiredBy = acquiredBy;
-                this.acquiredAt = Instant.now();
-                pstmt = conn.prepareStatement(ptm.sqlBuilder.updateAcquired());
+            if (isAcquired()) {
+                throw new IllegalStateException("Attempt to re-acquire a lock that has already been acquired");
+            }
+            Objects.requireNonNull(acquiredBy, "must specify acquired_by");
+            if (ptm.config.getAcquisitionMode() == AcquisitionMode.LEASE) {
+                acquireLease(acquiredBy);
+                return;
+            }
+            if (ptm.config.getAcquisitionMode() == AcquisitionMode.ADVISORY_LOCK) {
+                acquireAdvisoryLock(acquiredBy);
+                return;
+            }
+            PreparedStatement pstmt = null;
+            ResultSet resultSet = null;
+            try {
+                final Instant now = Instant.now();
+                this.conn = ptm.getConnection();
+                this.conn.setAutoCommit(false);
+                // locks the row, failing immediately if someone else holds it, and marks it acquired in one round trip
+                pstmt = ptm.prepareStatement(this.conn, ptm.sqlBuilder.updateAcquired());
                 pstmt.setString(1, TaskStatus.ACQUIRED.name());
                 pstmt.setString(2, acquiredBy);
-                pstmt.setTimestamp(3, Timestamp.from(acquiredAt));
-                pstmt.setString(4, name);
+                pstmt.setTimestamp(3, Timestamp.from(now));
+                pstmt.setString(4, this.name);
                 pstmt.setTimestamp(5, Timestamp.from(bucketTime));
-                pstmt.executeUpdate();
-            } else {
-                closeWithoutException(conn);
+                resultSet = pstmt.executeQuery();
+                if (resultSet.next()) {
+                    // acquired
+                    this.acquiredBy = acquiredBy;
+                    this.acquiredAt = now;
+                    this.status = TaskStatus.ACQUIRED;
+                    ptm.heldTask(this);
+                } else {
+                    closeWithoutException(conn);
+                    this.conn = null;
+                    throw new RuntimeException("No rows returned from acquire");
+                }
+            } catch (SQLException e) {
+                // if we failed to acquire, close the connection
+                closeWithoutException(this.conn);
                 this.conn = null;
-                throw new RuntimeException("No rows returned from acquire");
+                String message = MessageFormat.format("Unable to acquire lock on task name {0} bucket time {1}", name, bucketTime);
+                throw new RuntimeException(message, e);
+            } finally {
+                // always close statement but leave connection open in transaction when no exception
+                closeWithoutException(resultSet);
+                closeWithoutException(pstmt);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commits the held transaction or, for a task acquired in a batch, releases it from the shared transaction.
+     */
+    private void commit() throws SQLException {
+        if (batch == null) {
+            this.conn.commit();
+        } else {
+            batch.release(this);
+        }
+    }
+
+    /**
+     * Applies a status change on the held connection or, for a task acquired in a batch, in a savepoint of the shared transaction.
+     */
+    private void executeStatusChange(PreparedStatement pstmt) throws SQLException {
+        if (batch == null) {
+            pstmt.executeUpdate();
+        } else {
+            batch.execute(this, pstmt);
+        }
+    }
+
+    private void closeConnection() {
+        if (batch == null) {
+            if (conn != null) {
+                closeWithoutException(conn);
+                ptm.metrics.connectionReleased();
             }
+        } else {
+            // the shared connection is closed by the batch once its last task is released
+            batch.releaseWithoutException(this);
+            batch = null;
+        }
+        this.conn = null;
+    }
+
+    private void acquireLease(String acquiredBy) {
+        Connection leaseConn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            final String token = UUID.randomUUID().toString();
+            final Instant now = Instant.now();
+            leaseConn = ptm.getConnection();
+            leaseConn.setAutoCommit(true);
+            pstmt = ptm.prepareStatement(leaseConn, ptm.sqlBuilder.updateAcquiredLease());
+            pstmt.setString(1, TaskStatus.ACQUIRED.name());
+            pstmt.setString(2, acquiredBy);
+            pstmt.setTimestamp(3, Timestamp.from(now));
+            pstmt.setString(4, token);
+            pstmt.setLong(5, ptm.config.getLeaseDuration().toMillis());
+            pstmt.setString(6, this.name);
+            pstmt.setTimestamp(7, Timestamp.from(bucketTime));
+            resultSet = pstmt.executeQuery();
+            if (!resultSet.next()) {
+                String message = MessageFormat.format("Unable to acquire lease on task name {0} bucket time {1}", name, bucketTime);
+                throw new RuntimeException(message);
+            }
+            this.acquiredBy = acquiredBy;
+            this.acquiredAt = now;
+            this.status = TaskStatus.ACQUIRED;
+            this.leaseOwner = token;
+            this.leaseExpiresAt = resultSet.getTimestamp(1).toInstant();
+            this.leaseHeld = true;
+            ptm.leaseRenewer.register(this);
+            ptm.metrics.held(this);
         } catch (SQLException e) {
-            // if we failed to acquire, close the connection
-            closeWithoutException(this.conn);
-            this.conn = null;
-            String message = MessageFormat.format("Unable to acquire lock on task name {0} bucket time {1}", name, bucketTime);
+            String message = MessageFormat.format("Unable to acquire lease on task name {0} bucket time {1}", name, bucketTime);
             throw new RuntimeException(message, e);
         } finally {
-            // always close statement but leave connection open in transaction when no exception
+            // the lease is committed, so the connection always goes back to the pool
             closeWithoutException(resultSet);
             closeWithoutException(pstmt);
+            closeWithoutException(leaseConn);
+        }
+    }
+
+    private void acquireAdvisoryLock(String acquiredBy) {
+        final PostgresqlTask acquiredTask;
+        try {
+            acquiredTask = ptm.advisoryLockSession.acquire(this, acquiredBy);
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to acquire advisory lock on task name {0} bucket time {1}", name, bucketTime);
+            throw new RuntimeException(message, e);
+        }
+        if (acquiredTask == null) {
+            String message = MessageFormat.format("Unable to acquire advisory lock on task name {0} bucket time {1}", name, bucketTime);
+            throw new RuntimeException(message);
+        }
+        this.acquiredBy = acquiredTask.getAcquiredBy();
+        this.acquiredAt = acquiredTask.getAcquiredAt();
+        this.status = TaskStatus.ACQUIRED;
+        this.leaseOwner = acquiredTask.getLeaseOwner();
+        this.leaseExpiresAt = acquiredTask.getLeaseExpiresAt();
+        this.leaseHeld = true;
+        ptm.metrics.held(this);
+    }
+
+    /**
+     * Stops keeping the lease alive or, in {@link AcquisitionMode#ADVISORY_LOCK} mode, releases the advisory lock.
+     * Called once the final status has been committed.
+     */
+    private void unregisterLease() {
+        if (ptm.config.getAcquisitionMode() == AcquisitionMode.ADVISORY_LOCK) {
+            ptm.advisoryLockSession.release(this);
+        } else {
+            ptm.leaseRenewer.unregister(this);
+        }
+    }
+
+    /**
+     * Executes a status update that also releases the lease held by this task.
+     * The bind parameters for the statement must be set by the caller, except for the trailing name, bucket time, and lease owner.
+     */
+    private void releaseLease(PreparedStatement pstmt, int firstKeyIndex) throws SQLException {
+        pstmt.setString(firstKeyIndex, this.name);
+        pstmt.setTimestamp(firstKeyIndex + 1, Timestamp.from(bucketTime));
+        pstmt.setString(firstKeyIndex + 2, this.leaseOwner);
+        final int updated = pstmt.executeUpdate();
+        unregisterLease();
+        this.leaseHeld = false;
+        if (updated == 0) {
+            String message = MessageFormat.format("Lease on task name {0} bucket time {1} expired and was reclaimed", name, bucketTime);
+            throw new IllegalStateException(message);
+        }
+        this.leaseOwner = null;
+        this.leaseExpiresAt = null;
+    }
+
+    void leaseRenewed(Instant leaseExpiresAt) {
+        lock.lock();
+        try {
+            this.leaseExpiresAt = leaseExpiresAt;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void leaseLost() {
+        lock.lock();
+        try {
+            this.leaseHeld = false;
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public synchronized boolean isAcquired() {
-        return this.conn != null;
+    public boolean isAcquired() {
+        lock.lock();
+        try {
+            return this.conn != null || this.leaseHeld;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized void completed(String message) {
-        if (!isAcquired()) {
-            throw new IllegalStateException("Lock must be acquired before trying to complete");
+    public void completed(String message) {
+        lock.lock();
+        try {
+            if (!isAcquired()) {
+                throw new IllegalStateException("Lock must be acquired before trying to complete");
+            }
+            if (this.conn == null) {
+                completedLease(message);
+                ptm.metrics.released(this, TaskManagerMetrics.COMPLETED);
+                return;
+            }
+            PreparedStatement pstmt = null;
+            try {
+                // this.conn is already has auto-commit set to false
+                // and the lock on the task has already been acquired
+                final Instant now = Instant.now();
+                pstmt = ptm.prepareStatement(this.conn, ptm.sqlBuilder.updateStatusMessageCompletedAt());
+                pstmt.setString(1, TaskStatus.COMPLETE.name());
+                pstmt.setTimestamp(2,Timestamp.from(now));
+                if (message == null) {
+                    pstmt.setNull(3, Types.CLOB);
+                } else {
+                    pstmt.setString(3, message);
+                }
+                pstmt.setString(4, this.name);
+                pstmt.setTimestamp(5, Timestamp.from(bucketTime));
+                executeStatusChange(pstmt);
+                commit();
+                // only update the local state after the transaction succeeds
+                this.status = TaskStatus.COMPLETE;
+                this.completedAt = now;
+                this.message = message;
+                ptm.metrics.released(this, TaskManagerMetrics.COMPLETED);
+            } catch (SQLException e) {
+                String errorMessage = MessageFormat.format("Unable to complete task name {0} bucket time {1}", name, bucketTime);
+                throw new RuntimeException(errorMessage, e);
+            } finally {
+                closeWithoutException(pstmt);
+                closeConnection();
+            }
+        } finally {
+            lock.unlock();
         }
+    }
+
+    private void completedLease(String message) {
+        Connection leaseConn = null;
         PreparedStatement pstmt = null;
         try {
-            // this.conn is already has auto-commit set to false
-            // and the lock on the task has already been acquired
             final Instant now = Instant.now();
-            pstmt = this.conn.prepareStatement(ptm.sqlBuilder.updateStatusMessageCompletedAt());
+            leaseConn = ptm.getConnection();
+            leaseConn.setAutoCommit(true);
+            pstmt = ptm.prepareStatement(leaseConn, ptm.sqlBuilder.updateStatusMessageCompletedAtReleaseLease());
             pstmt.setString(1, TaskStatus.COMPLETE.name());
-            pstmt.setTimestamp(2,Timestamp.from(now));
+            pstmt.setTimestamp(2, Timestamp.from(now));
             if (message == null) {
                 pstmt.setNull(3, Types.CLOB);
             } else {
                 pstmt.setString(3, message);
             }
-            pstmt.setString(4, this.name);
-            pstmt.setTimestamp(5, Timestamp.from(bucketTime));
-            pstmt.executeUpdate();
-            this.conn.commit();
-            // only update the local state after the transaction succeeds
+            releaseLease(pstmt, 4);
+            this.status = TaskStatus.COMPLETE;
             this.completedAt = now;
             this.message = message;
         } catch (SQLException e) {
             String errorMessage = MessageFormat.format("Unable to complete task name {0} bucket time {1}", name, bucketTime);
-            throw new RuntimeException(message, e);
+            throw new RuntimeException(errorMessage, e);
         } finally {
             closeWithoutException(pstmt);
-            closeWithoutException(conn);
-            this.conn = null;
+            closeWithoutException(leaseConn);
         }
     }
 
@@ -150,73 +389,180 @@ public class PostgresqlTask implements Task {
     }
 
     @Override
-    public synchronized void failed(String message) {
-        if (!isAcquired()) {
-            throw new IllegalStateException("Lock must be acquired before trying to fail");
+    public void failed(String message) {
+        lock.lock();
+        try {
+            if (!isAcquired()) {
+                throw new IllegalStateException("Lock must be acquired before trying to fail");
+            }
+            if (this.conn == null) {
+                failedLease(message);
+                ptm.metrics.released(this, TaskManagerMetrics.FAILED);
+                return;
+            }
+            PreparedStatement pstmt = null;
+            try {
+                // this.conn is already has auto-commit set to false
+                // and the lock on the task has already been acquired
+                pstmt = ptm.prepareStatement(this.conn, ptm.sqlBuilder.updateStatusAndMessageIncrementFailCount());
+                pstmt.setString(1, TaskStatus.AVAILABLE.name());
+                if (message == null) {
+                    pstmt.setNull(2, Types.CLOB);
+                } else {
+                    pstmt.setString(2, message);
+                }
+                pstmt.setString(3, this.name);
+                pstmt.setTimestamp(4, Timestamp.from(bucketTime));
+                executeStatusChange(pstmt);
+                commit();
+                // only update the local state after the transaction succeeds
+                this.status = TaskStatus.AVAILABLE;
+                this.message = message;
+                ++this.failCount;
+                ptm.metrics.failCountIncremented(name);
+                ptm.metrics.released(this, TaskManagerMetrics.FAILED);
+            } catch (SQLException e) {
+                String errorMessage = MessageFormat.format("Unable to fail task name {0} bucket time {1}", name, bucketTime);
+                throw new RuntimeException(errorMessage, e);
+            } finally {
+                closeWithoutException(pstmt);
+                closeConnection();
+            }
+        } finally {
+            lock.unlock();
         }
+    }
+
+    private void failedLease(String message) {
+        Connection leaseConn = null;
         PreparedStatement pstmt = null;
         try {
-            // this.conn is already has auto-commit set to false
-            // and the lock on the task has already been acquired
-            pstmt = this.conn.prepareStatement(ptm.sqlBuilder.updateStatusAndMessageIncrementFailCount());
+            leaseConn = ptm.getConnection();
+            leaseConn.setAutoCommit(true);
+            pstmt = ptm.prepareStatement(leaseConn, ptm.sqlBuilder.updateStatusAndMessageIncrementFailCountReleaseLease());
             pstmt.setString(1, TaskStatus.AVAILABLE.name());
             if (message == null) {
                 pstmt.setNull(2, Types.CLOB);
             } else {
                 pstmt.setString(2, message);
             }
-            pstmt.setString(3, this.name);
-            pstmt.setTimestamp(4, Timestamp.from(bucketTime));
-            pstmt.executeUpdate();
-            this.conn.commit();
-            // only update the local state after the transaction succeeds
+            releaseLease(pstmt, 3);
+            this.status = TaskStatus.AVAILABLE;
             this.message = message;
             ++this.failCount;
+            ptm.metrics.failCountIncremented(name);
         } catch (SQLException e) {
             String errorMessage = MessageFormat.format("Unable to fail task name {0} bucket time {1}", name, bucketTime);
-            throw new RuntimeException(message, e);
+            throw new RuntimeException(errorMessage, e);
         } finally {
             closeWithoutException(pstmt);
-            closeWithoutException(conn);
-            this.conn = null;
+            closeWithoutException(leaseConn);
         }
     }
 
     @Override
-    public synchronized void skip(String message) {
-        if (!isAcquired()) {
-            throw new IllegalStateException("Lock must be acquired before trying to skip");
+    public void skip(String message) {
+        lock.lock();
+        try {
+            if (!isAcquired()) {
+                throw new IllegalStateException("Lock must be acquired before trying to skip");
+            }
+            if (this.conn == null) {
+                skipLease(message);
+                ptm.metrics.released(this, TaskManagerMetrics.SKIPPED);
+                return;
+            }
+            PreparedStatement pstmt = null;
+            try {
+                // this.conn is already has auto-commit set to false
+                // and the lock on the task has already been acquired
+                pstmt = ptm.prepareStatement(this.conn, ptm.sqlBuilder.updateStatusAndMessage());
+                pstmt.setString(1, TaskStatus.SKIP.name());
+                if (message == null) {
+                    pstmt.setNull(2, Types.CLOB);
+                } else {
+                    pstmt.setString(2, message);
+                }
+                pstmt.setString(3, this.name);
+                pstmt.setTimestamp(4, Timestamp.from(bucketTime));
+                executeStatusChange(pstmt);
+                commit();
+                // only update the local state after the transaction succeeds
+                this.status = TaskStatus.SKIP;
+                this.message = message;
+                ptm.metrics.released(this, TaskManagerMetrics.SKIPPED);
+            } catch (SQLException e) {
+                String errorMessage = MessageFormat.format("Unable to fail task name {0} bucket time {1}", name, bucketTime);
+                throw new RuntimeException(errorMessage, e);
+            } finally {
+                closeWithoutException(pstmt);
+                closeConnection();
+            }
+        } finally {
+            lock.unlock();
         }
+    }
+
+    private void skipLease(String message) {
+        Connection leaseConn = null;
         PreparedStatement pstmt = null;
         try {
-            // this.conn is already has auto-commit set to false
-            // and the lock on the task has already been acquired
-            pstmt = this.conn.prepareStatement(ptm.sqlBuilder.updateStatusAndMessage());
+            leaseConn = ptm.getConnection();
+            leaseConn.setAutoCommit(true);
+            pstmt = ptm.prepareStatement(leaseConn, ptm.sqlBuilder.updateStatusAndMessageReleaseLease());
             pstmt.setString(1, TaskStatus.SKIP.name());
             if (message == null) {
                 pstmt.setNull(2, Types.CLOB);
             } else {
                 pstmt.setString(2, message);
             }
-            pstmt.setString(3, this.name);
-            pstmt.setTimestamp(4, Timestamp.from(bucketTime));
-            pstmt.executeUpdate();
-            this.conn.commit();
-            // only update the local state after the transaction succeeds
+            releaseLease(pstmt, 3);
+            this.status = TaskStatus.SKIP;
             this.message = message;
         } catch (SQLException e) {
-            String errorMessage = MessageFormat.format("Unable to fail task name {0} bucket time {1}", name, bucketTime);
-            throw new RuntimeException(message, e);
+            String errorMessage = MessageFormat.format("Unable to skip task name {0} bucket time {1}", name, bucketTime);
+            throw new RuntimeException(errorMessage, e);
         } finally {
             closeWithoutException(pstmt);
-            closeWithoutException(conn);
-            this.conn = null;
+            closeWithoutException(leaseConn);
         }
     }
 
     @Override
     public void close() throws IOException {
-        closeWithoutException(conn);
-        this.conn = null;
+        ptm.metrics.released(this, TaskManagerMetrics.ABANDONED);
+        if (this.batch != null && this.conn != null) {
+            // the rest of the batch still commits, so this task must not be left marked acquired
+            batch.abandonWithoutException(this);
+            this.batch = null;
+            this.conn = null;
+        }
+        closeConnection();
+        if (this.leaseHeld) {
+            // the equivalent of a rollback is to expire the lease so another worker can reclaim the task right away
+            if (ptm.config.getAcquisitionMode() == AcquisitionMode.LEASE) {
+                ptm.leaseRenewer.unregister(this);
+            }
+            this.leaseHeld = false;
+            Connection leaseConn = null;
+            PreparedStatement pstmt = null;
+            try {
+                leaseConn = ptm.getConnection();
+                leaseConn.setAutoCommit(true);
+                pstmt = ptm.prepareStatement(leaseConn, ptm.sqlBuilder.expireLease());
+                pstmt.setString(1, this.name);
+                pstmt.setTimestamp(2, Timestamp.from(bucketTime));
+                pstmt.setString(3, this.leaseOwner);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new IOException("Unable to release lease", e);
+            } finally {
+                closeWithoutException(pstmt);
+                closeWithoutException(leaseConn);
+                if (ptm.config.getAcquisitionMode() == AcquisitionMode.ADVISORY_LOCK) {
+                    ptm.advisoryLockSession.release(this);
+                }
+            }
+        }
     }
 }
@@ -1,69 +1,266 @@
 package com.github.lfeagan.dtc.postgresql;
 
 import com.github.lfeagan.dtc.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.postgresql.PGStatement;
 import org.postgresql.util.PGInterval;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.threeten.extra.PeriodDuration;
 
 import javax.sql.DataSource;
+import java.io.Closeable;
 import java.sql.*;
 import java.text.MessageFormat;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static com.github.lfeagan.dtc.postgresql.JdbcUtils.closeWithoutException;
 
-public class PostgresqlTaskManager implements TaskManager {
+public class PostgresqlTaskManager implements TaskManager, Closeable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PostgresqlTaskManager.class);
 
     protected final DataSource dataSource;
+    protected final PostgresqlTaskManagerConfig config;
     protected final SqlBuilder sqlBuilder;
+    final LeaseRenewer leaseRenewer;
+    final TaskAvailabilityListener availabilityListener;
+    final AdvisoryLockSession advisoryLockSession;
+    final PartitionMaintainer partitionMaintainer;
+    final RetentionService retentionService;
+    final TaskManagerMetrics metrics;
+    final TaskRowDecoder rowDecoder;
+    final TaskNames taskNames;
+    final NameTurns nameTurns = new NameTurns();
 
     public PostgresqlTaskManager(final DataSource dataSource) {
+        this(dataSource, PostgresqlTaskManagerConfig.defaults());
+    }
+
+    public PostgresqlTaskManager(final DataSource dataSource, final PostgresqlTaskManagerConfig config) {
+        this(dataSource, config, Metrics.globalRegistry);
+    }
+
+    /**
+     * @param dataSource
+     * @param config
+     * @param meterRegistry where to record the metrics described by {@link TaskManagerMetrics}
+     */
+    public PostgresqlTaskManager(final DataSource dataSource, final PostgresqlTaskManagerConfig config, final MeterRegistry meterRegistry) {
         this.dataSource = dataSource;
-        this.sqlBuilder = new SqlBuilder("tasks", 32);
+        this.config = config;
+        this.sqlBuilder = new SqlBuilder(config.getTableName(), config.getIdLength(), config.isWatermarks(), config.getPartitionInterval() != null,
+                config.isCompactSchema());
+        this.leaseRenewer = new LeaseRenewer(this);
+        this.availabilityListener = new TaskAvailabilityListener(this);
+        this.advisoryLockSession = new AdvisoryLockSession(this);
+        this.partitionMaintainer = new PartitionMaintainer(this);
+        this.retentionService = new RetentionService(this);
+        this.metrics = new TaskManagerMetrics(meterRegistry, config.getTableName());
+        this.rowDecoder = new TaskRowDecoder(this, config.getRowDecoderCacheSize());
+        this.taskNames = new TaskNames(this);
+    }
+
+    public PostgresqlTaskManagerConfig getConfig() {
+        return config;
     }
 
+    /**
+     * Creates the task table, its indexes, and the functions and triggers enabled by the configuration.
+     * When the table is partitioned, also creates the partitions for the current and upcoming buckets
+     * and keeps maintaining them in the background until this task manager is closed.
+     * Likewise starts archiving and skipping old tasks in the background when retention is enabled.
+     * @throws TaskManagerException
+     */
     public void initialize() throws TaskManagerException {
         Connection conn = null;
         Statement stmt = null;
         try {
             conn = getConnection();
             stmt = conn.createStatement();
+            if (config.isCompactSchema()) {
+                stmt.execute(sqlBuilder.createStatusType());
+                stmt.execute(sqlBuilder.createNameTable());
+            }
             stmt.execute(sqlBuilder.createTaskTable());
+            if (config.getPartitionInterval() != null) {
+                stmt.execute(sqlBuilder.createDefaultPartition());
+            }
+            for (TaskIndex index : config.getIndexes()) {
+                stmt.execute(sqlBuilder.createIndex(index));
+            }
+            if (config.isWatermarks()) {
+                stmt.execute(sqlBuilder.createWatermarkTable());
+                for (String sql : sqlBuilder.createWatermarkMaintenance()) {
+                    stmt.execute(sql);
+                }
+            }
+            stmt.execute(sqlBuilder.createFindOrCreateAndAcquireFunction());
+            if (config.getArchiveAfter() != null) {
+                stmt.execute(sqlBuilder.createArchiveTable());
+            }
+            final List<String> availabilityNotifications = config.isAvailabilityNotifications()
+                    ? sqlBuilder.createAvailabilityNotifications() : sqlBuilder.dropAvailabilityNotifications();
+            for (String sql : availabilityNotifications) {
+                stmt.execute(sql);
+            }
         } catch (SQLException e) {
             throw new TaskManagerException("Unable to initialize", e);
         } finally {
             closeWithoutException(stmt);
             closeWithoutException(conn);
         }
+        if (config.getPartitionInterval() != null) {
+            maintainPartitions();
+            partitionMaintainer.start();
+        }
+        if (config.getArchiveAfter() != null || config.getSkipAvailableAfter() != null) {
+            retentionService.start();
+        }
+    }
+
+    /**
+     * Creates the partitions for the current bucket and the {@link PostgresqlTaskManagerConfig#getPartitionsAhead()} following it, unless they exist,
+     * and drops the partitions that ended longer than {@link PostgresqlTaskManagerConfig#getPartitionRetention()} ago.
+     * Runs periodically once {@link #initialize()} has been called, so there is rarely a need to call it directly.
+     * Has no effect unless the table is partitioned.
+     * @throws TaskManagerException
+     */
+    public void maintainPartitions() throws TaskManagerException {
+        maintainPartitions(Instant.now());
+    }
+
+    void maintainPartitions(Instant now) throws TaskManagerException {
+        if (config.getPartitionInterval() == null) {
+            return;
+        }
+        try {
+            partitionMaintainer.maintain(now);
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to maintain the partitions of {0}", config.getTableName());
+            throw new TaskManagerException(message, e);
+        }
+    }
+
+    /**
+     * Moves the COMPLETE and SKIP tasks whose bucket time is older than {@link PostgresqlTaskManagerConfig#getArchiveAfter()} into the archive table,
+     * in batches that each commit on their own. Runs periodically once {@link #initialize()} has been called.
+     * Has no effect unless archiving is enabled.
+     * @return the number of tasks archived
+     * @throws TaskManagerException
+     */
+    public int archiveFinishedTasks() throws TaskManagerException {
+        if (config.getArchiveAfter() == null) {
+            return 0;
+        }
+        return archiveFinishedTasks(Instant.now().minus(config.getArchiveAfter()));
+    }
+
+    int archiveFinishedTasks(Instant cutoff) throws TaskManagerException {
+        try {
+            return retentionService.archiveFinishedTasks(cutoff);
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to archive tasks with a bucket time before {0}", cutoff);
+            throw new TaskManagerException(message, e);
+        }
+    }
+
+    /**
+     * Sets the AVAILABLE tasks whose bucket time is older than {@link PostgresqlTaskManagerConfig#getSkipAvailableAfter()} to SKIP,
+     * in batches that each commit on their own. Runs periodically once {@link #initialize()} has been called.
+     * Has no effect unless skipping stale tasks is enabled.
+     * @return the number of tasks skipped
+     * @throws TaskManagerException
+     */
+    public int skipStaleTasks() throws TaskManagerException {
+        if (config.getSkipAvailableAfter() == null) {
+            return 0;
+        }
+        return skipStaleTasks(Instant.now().minus(config.getSkipAvailableAfter()));
+    }
+
+    int skipStaleTasks(Instant cutoff) throws TaskManagerException {
+        try {
+            return retentionService.skipStaleTasks(cutoff);
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to skip tasks with a bucket time before {0}", cutoff);
+            throw new TaskManagerException(message, e);
+        }
     }
 
     protected Connection getConnection() throws SQLException {
         return dataSource.getConnection();
     }
 
+    /**
+     * Prepares one of the statements from the catalog.
+     * The statement is switched to a named server-side prepared statement after {@link PostgresqlTaskManagerConfig#getPrepareThreshold()} executions,
+     * which pgjdbc caches per connection, so pooled connections parse and plan each statement shape once.
+     * @param conn
+     * @param sql
+     * @return
+     * @throws SQLException
+     */
+    PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement(sql);
+        if (pstmt.isWrapperFor(PGStatement.class)) {
+            pstmt.unwrap(PGStatement.class).setPrepareThreshold(config.getPrepareThreshold());
+        }
+        return pstmt;
+    }
+
+    /**
+     * Binds a bucket interval, as an interval or, with the compact schema, a number of microseconds.
+     * @param pstmt
+     * @param index
+     * @param bucketInterval
+     * @throws SQLException
+     */
+    void setBucketInterval(PreparedStatement pstmt, int index, PeriodDuration bucketInterval) throws SQLException {
+        if (config.isCompactSchema()) {
+            pstmt.setLong(index, PostgresqlTimeUtils.microsFromPeriodDuration(bucketInterval));
+        } else {
+            pstmt.setObject(index, new PGInterval(bucketInterval.toString()));
+        }
+    }
+
     @Override
     public Task createTask(String name, Instant bucketTime, PeriodDuration bucketInterval, String createdBy) throws DuplicateTaskException, TaskManagerException {
+        final Timer.Sample sample = metrics.start();
+        String outcome = TaskManagerMetrics.ERROR;
         Connection conn = null;
         PreparedStatement pstmt = null;
         try {
+            taskNames.register(name);
             conn = getConnection();
             conn.setAutoCommit(false);
-            pstmt = conn.prepareStatement(sqlBuilder.insertMinimalTask());
+            pstmt = prepareStatement(conn, sqlBuilder.insertMinimalTask());
             pstmt.setString(1, name);
             pstmt.setTimestamp(2, Timestamp.from(bucketTime));
-            org.postgresql.util.PGInterval interval = new PGInterval(bucketInterval.toString());
-            pstmt.setObject(3, interval);
+            setBucketInterval(pstmt, 3, bucketInterval);
             pstmt.setString(4, TaskStatus.AVAILABLE.name());
             pstmt.setString(5, createdBy);
             pstmt.setTimestamp(6, java.sql.Timestamp.from(Instant.now()));
             pstmt.executeUpdate();
             conn.commit();
+            outcome = TaskManagerMetrics.CREATED;
             return PostgresqlTask.builder()
                     .name(name)
                     .bucketTime(bucketTime)
@@ -73,10 +270,102 @@ public class PostgresqlTaskManager implements TaskManager {
         } catch (SQLException e) {
             // unique constraint violation
             if (e.getSQLState().equals("23505")) {
+                outcome = TaskManagerMetrics.DUPLICATE;
                 String message = MessageFormat.format("Task with name {0} and bucket_time {1} already exists", name, bucketTime);
                 throw new DuplicateTaskException(message, e);
             }
             throw new TaskManagerException("Unable to create task", e);
+        } finally {
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+            metrics.created(sample, name, outcome);
+        }
+    }
+
+    /**
+     * Creates the tasks with multi-row inserts of up to {@link PostgresqlTaskManagerConfig#getBulkInsertBatchSize()} rows,
+     * binding the bucket times as an array so each batch is a single statement with a fixed text.
+     * Existing tasks are skipped by <code>ON CONFLICT DO NOTHING</code>, and the bucket times are inserted in sorted order
+     * so that concurrent bulk creates of overlapping ranges lock the keys in the same order.
+     */
+    @Override
+    public List<Task> createTasks(String name, Collection<Instant> bucketTimes, PeriodDuration bucketInterval, String createdBy) throws TaskManagerException {
+        final List<Instant> sortedBucketTimes = new ArrayList<>(new TreeSet<>(bucketTimes));
+        final List<Task> createdTasks = new ArrayList<>(sortedBucketTimes.size());
+        final int batchSize = config.getBulkInsertBatchSize();
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            taskNames.register(name);
+            conn = getConnection();
+            conn.setAutoCommit(false);
+            pstmt = prepareStatement(conn, sqlBuilder.insertMinimalTasks());
+            for (int from = 0; from < sortedBucketTimes.size(); from += batchSize) {
+                final List<Instant> batch = sortedBucketTimes.subList(from, Math.min(from + batchSize, sortedBucketTimes.size()));
+                final Timestamp[] timestamps = new Timestamp[batch.size()];
+                for (int i = 0; i < timestamps.length; ++i) {
+                    timestamps[i] = Timestamp.from(batch.get(i));
+                }
+                pstmt.setString(1, name);
+                setBucketInterval(pstmt, 2, bucketInterval);
+                pstmt.setString(3, TaskStatus.AVAILABLE.name());
+                pstmt.setString(4, createdBy);
+                pstmt.setTimestamp(5, Timestamp.from(Instant.now()));
+                pstmt.setArray(6, conn.createArrayOf("timestamptz", timestamps));
+                final List<Instant> inserted = new ArrayList<>(batch.size());
+                try (ResultSet resultSet = pstmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        inserted.add(resultSet.getTimestamp(1).toInstant());
+                    }
+                }
+                conn.commit();
+                // RETURNING does not guarantee any order
+                Collections.sort(inserted);
+                for (Instant bucketTime : inserted) {
+                    createdTasks.add(PostgresqlTask.builder()
+                            .name(name)
+                            .bucketTime(bucketTime)
+                            .bucketInterval(bucketInterval)
+                            .status(TaskStatus.AVAILABLE)
+                            .createdBy(createdBy)
+                            .ptm(this).build());
+                }
+            }
+            return createdTasks;
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to create tasks with name {0}, {1} of {2} were created", name, createdTasks.size(), sortedBucketTimes.size());
+            throw new TaskManagerException(message, e);
+        } finally {
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+        }
+    }
+
+    /**
+     * Finds and inserts the missing buckets with a single statement, so neither the existing tasks nor the missing bucket times cross the wire.
+     * Days and months in the interval are added in the session time zone.
+     */
+    @Override
+    public int fillGaps(String name, Instant start, Instant end, PeriodDuration interval, String createdBy) throws TaskManagerException {
+        TaskManagerUtils.requirePositive(interval);
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            taskNames.register(name);
+            conn = getConnection();
+            conn.setAutoCommit(true);
+            pstmt = prepareStatement(conn, sqlBuilder.insertMissingTasks());
+            pstmt.setString(1, TaskStatus.AVAILABLE.name());
+            pstmt.setString(2, createdBy);
+            pstmt.setTimestamp(3, Timestamp.from(Instant.now()));
+            pstmt.setString(4, name);
+            pstmt.setTimestamp(5, Timestamp.from(start));
+            pstmt.setTimestamp(6, Timestamp.from(end));
+            setBucketInterval(pstmt, 7, interval);
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to fill gaps in tasks with name {0} from {1} to {2}", name, start, end);
+            throw new TaskManagerException(message, e);
         } finally {
             closeWithoutException(pstmt);
             closeWithoutException(conn);
@@ -85,29 +374,386 @@ public class PostgresqlTaskManager implements TaskManager {
 
     @Override
     public Task getAndAcquireFirstTask(TaskQuery taskQuery) throws TaskManagerException {
+        return getAndAcquireFirstTask(taskQuery, null);
+    }
+
+    /**
+     * Acquires the first task satisfying the query, recording the acquire latency and, if {@link PostgresqlTaskManagerConfig#isRecordAcquireMisses()},
+     * a miss when nothing was acquired although tasks satisfying the query exist.
+     * In {@link AcquisitionMode#LEASE} and {@link AcquisitionMode#ADVISORY_LOCK} modes, other sessions see the task as ACQUIRED while it is held,
+     * whereas in {@link AcquisitionMode#TRANSACTION} mode they do not see it as ACQUIRED until it has finished.
+     */
+    @Override
+    public Task getAndAcquireFirstTask(TaskQuery taskQuery, String acquiredBy) throws TaskManagerException {
+        final Timer.Sample sample = metrics.start();
+        final Task task;
+        try {
+            task = acquireFirstTask(taskQuery, acquiredBy);
+        } catch (TaskManagerException | RuntimeException e) {
+            metrics.acquired(sample, taskQuery, TaskManagerMetrics.ERROR);
+            throw e;
+        }
+        metrics.acquired(sample, taskQuery, task == null ? TaskManagerMetrics.EMPTY : TaskManagerMetrics.ACQUIRED);
+        if (task == null) {
+            recordMissIfBacklogExists(taskQuery);
+        } else if (taskQuery.getFairness() != null) {
+            nameTurns.served(Collections.singletonList(task));
+        }
+        return task;
+    }
+
+    /**
+     * Finds, locks, and marks the first task acquired with a single statement.
+     * In {@link AcquisitionMode#TRANSACTION} mode the acquired status is written in the transaction holding the lock,
+     * so it is not visible to other sessions while the task is held,
+     * and in {@link AcquisitionMode#LEASE} mode it is committed along with the lease.
+     * In {@link AcquisitionMode#ADVISORY_LOCK} mode it is committed once the session holds the task's advisory lock.
+     */
+    protected Task acquireFirstTask(TaskQuery taskQuery, String acquiredBy) throws TaskManagerException {
+        if (config.getAcquisitionMode() == AcquisitionMode.LEASE) {
+            return getAndLeaseFirstTask(taskQuery, acquiredBy);
+        }
+        if (config.getAcquisitionMode() == AcquisitionMode.ADVISORY_LOCK) {
+            List<Task> tasks = getAndLockTasks(taskQuery, 1, acquiredBy);
+            return tasks.isEmpty() ? null : tasks.get(0);
+        }
+        final List<String> turns = nameTurns.turns(taskQuery);
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(false);
+            pstmt = prepareStatement(conn, sqlBuilder.updateAcquiredFirst(taskQuery));
+            pstmt.setString(1, TaskStatus.ACQUIRED.name());
+            pstmt.setString(2, acquiredBy);
+            pstmt.setTimestamp(3, Timestamp.from(Instant.now()));
+            sqlBuilder.bindAcquirableRows(pstmt, 4, taskQuery, false, turns, 1, null);
+            resultSet = pstmt.executeQuery();
+            if (resultSet.next()) {
+                return heldTask(currentRowToTask(resultSet, conn));
+            } else {
+                closeWithoutException(conn);
+                return null;
+            }
+        } catch (Exception e) {
+            // on exception, close the connection
+            closeWithoutException(conn);
+            String message = MessageFormat.format("Unable to get tasks for query {0}", taskQuery);
+            throw new TaskManagerException(message, e);
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+        }
+    }
+
+    /**
+     * Acquires the first task satisfying the query, waiting up to the timeout for one to become available.
+     * @see #awaitAndAcquire(TaskQuery, Duration, String)
+     */
+    public Task awaitAndAcquire(TaskQuery taskQuery, Duration timeout) throws TaskManagerException, InterruptedException {
+        return awaitAndAcquire(taskQuery, timeout, null);
+    }
+
+    /**
+     * Acquires the first task satisfying the query, waiting up to the timeout for one to become available.
+     * Rather than polling, waiting workers park on a single connection shared by this task manager that listens for the notifications
+     * raised when a task is inserted or returns to AVAILABLE, and query again only when a task with the name they are waiting for appears.
+     * A worker also queries again after {@link PostgresqlTaskManagerConfig#getAwaitPollInterval()} without a notification,
+     * which picks up expired leases and is the only wake-up when notifications are disabled.
+     * @param taskQuery
+     * @param timeout how long to wait for a task
+     * @param acquiredBy who is doing the acquiring
+     * @return the acquired task, or <code>null</code> if none became available before the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Task awaitAndAcquire(TaskQuery taskQuery, Duration timeout, String acquiredBy) throws TaskManagerException, InterruptedException {
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        final long pollIntervalNanos = config.getAwaitPollInterval().toNanos();
+        if (config.isAvailabilityNotifications()) {
+            try {
+                availabilityListener.start();
+            } catch (SQLException e) {
+                throw new TaskManagerException("Unable to listen for available tasks", e);
+            }
+        }
+        while (true) {
+            // observe the generation before querying so a task made available during the query still wakes this worker
+            final long generation = availabilityListener.generation(taskQuery.getName());
+            Task task = getAndAcquireFirstTask(taskQuery, acquiredBy);
+            if (task != null) {
+                return task;
+            }
+            final long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                return null;
+            }
+            final long waitNanos = Math.min(remainingNanos, pollIntervalNanos);
+            if (config.isAvailabilityNotifications()) {
+                availabilityListener.awaitChange(taskQuery.getName(), generation, waitNanos);
+            } else {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+
+    /**
+     * In {@link AcquisitionMode#TRANSACTION} mode, a backlog query on a task name, bucket time window, and the AVAILABLE status
+     * is answered by a single call to the function installed by {@link #initialize()}, on the connection that then holds the task.
+     * The function acquires oldest first. Any other query or order, or lease mode, takes the separate round trips of the default implementation.
+     */
+    @Override
+    public Task findOrCreateAndAcquire(TaskQuery backlogQuery, Instant bucketTime, PeriodDuration bucketInterval, String acquiredBy) throws TaskManagerException {
+        if (config.getAcquisitionMode() != AcquisitionMode.TRANSACTION || !isBacklogQuery(backlogQuery)
+                || (backlogQuery.getOrderBy() != null && backlogQuery.getOrderBy() != TaskOrder.OLDEST_FIRST)) {
+            return TaskManager.super.findOrCreateAndAcquire(backlogQuery, bucketTime, bucketInterval, acquiredBy);
+        }
+        final Timer.Sample sample = metrics.start();
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet resultSet = null;
-        final String sql = sqlBuilder.taskQueryToSql(taskQuery) + " FOR UPDATE SKIP LOCKED LIMIT 1";
         try {
+            taskNames.register(backlogQuery.getName());
             conn = getConnection();
             conn.setAutoCommit(false);
-            pstmt = conn.prepareStatement(sql);
+            pstmt = prepareStatement(conn, sqlBuilder.findOrCreateAndAcquire());
+            pstmt.setString(1, backlogQuery.getName());
+            pstmt.setTimestamp(2, backlogQuery.getBucketStartTime() == null ? null : Timestamp.from(backlogQuery.getBucketStartTime()));
+            pstmt.setTimestamp(3, backlogQuery.getBucketEndTime() == null ? null : Timestamp.from(backlogQuery.getBucketEndTime()));
+            pstmt.setTimestamp(4, Timestamp.from(bucketTime));
+            setBucketInterval(pstmt, 5, bucketInterval);
+            pstmt.setString(6, acquiredBy);
+            pstmt.setTimestamp(7, Timestamp.from(Instant.now()));
             resultSet = pstmt.executeQuery();
             if (resultSet.next()) {
-                return currentRowToTask(resultSet, conn);
+                metrics.acquired(sample, backlogQuery, TaskManagerMetrics.ACQUIRED);
+                return heldTask(currentRowToTask(resultSet, conn));
             } else {
                 closeWithoutException(conn);
+                metrics.acquired(sample, backlogQuery, TaskManagerMetrics.EMPTY);
                 return null;
             }
         } catch (Exception e) {
             // on exception, close the connection
             closeWithoutException(conn);
-            String message = MessageFormat.format("Unable to get tasks for query {0}", sql);
+            metrics.acquired(sample, backlogQuery, TaskManagerMetrics.ERROR);
+            String message = MessageFormat.format("Unable to find or create task for query {0}", backlogQuery);
+            throw new TaskManagerException(message, e);
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+        }
+    }
+
+    private static boolean isBacklogQuery(TaskQuery taskQuery) {
+        return taskQuery.getName() != null
+                && taskQuery.getAcquiredAtStartTime() == null
+                && taskQuery.getAcquiredAtEndTime() == null
+                && taskQuery.getStatuses() != null
+                && taskQuery.getStatuses().size() == 1
+                && taskQuery.getStatuses().contains(TaskStatus.AVAILABLE);
+    }
+
+    @Override
+    public List<Task> getAndAcquireTasks(TaskQuery taskQuery, int maxTasks) throws TaskManagerException {
+        return getAndAcquireTasks(taskQuery, maxTasks, null);
+    }
+
+    /**
+     * Acquires up to <code>maxTasks</code> tasks satisfying the query, recording the acquire latency and, if {@link PostgresqlTaskManagerConfig#isRecordAcquireMisses()},
+     * a miss when nothing was acquired although tasks satisfying the query exist.
+     * <p>
+     * In {@link AcquisitionMode#TRANSACTION} mode the tasks share one transaction:
+     * <ul>
+     *     <li>completing, failing, or skipping a task returns before its status is durable, which happens only once every task in the batch has been released</li>
+     *     <li>every row stays locked until the slowest task in the batch is released</li>
+     *     <li>each status change runs in a savepoint, so one that fails puts only its own task back and the others keep their outcomes</li>
+     *     <li>a dead worker, or a dropped connection, rolls back the status of every task in the batch, finished or not</li>
+     *     <li>closing the last unfinished task commits the statuses of the others</li>
+     * </ul>
+     * Use {@link AcquisitionMode#LEASE} or {@link AcquisitionMode#ADVISORY_LOCK}, where each task commits on its own, when that is not acceptable.
+     */
+    @Override
+    public List<Task> getAndAcquireTasks(TaskQuery taskQuery, int maxTasks, String acquiredBy) throws TaskManagerException {
+        final Timer.Sample sample = metrics.start();
+        final List<Task> tasks;
+        try {
+            tasks = acquireTasks(taskQuery, maxTasks, acquiredBy);
+        } catch (TaskManagerException | RuntimeException e) {
+            metrics.acquired(sample, taskQuery, TaskManagerMetrics.ERROR);
+            throw e;
+        }
+        metrics.acquired(sample, taskQuery, tasks.isEmpty() ? TaskManagerMetrics.EMPTY : TaskManagerMetrics.ACQUIRED);
+        if (tasks.isEmpty()) {
+            recordMissIfBacklogExists(taskQuery);
+        } else if (taskQuery.getFairness() != null) {
+            nameTurns.served(tasks);
+        } else if (taskQuery.getOrderBy() != null) {
+            // the rows are locked in order, but an update returns them in no particular order
+            tasks.sort(TaskManagerUtils.taskComparator(taskQuery.getOrderBy()));
+        }
+        return tasks;
+    }
+
+    /**
+     * Acquires up to <code>maxTasks</code> tasks with one statement on one connection.
+     * In {@link AcquisitionMode#TRANSACTION} mode, the tasks share a single transaction:
+     * each task writes its status as it finishes, and the row locks are released together when the last task has finished.
+     * In {@link AcquisitionMode#LEASE} mode, each task holds its own lease and the connection is returned immediately.
+     * In {@link AcquisitionMode#ADVISORY_LOCK} mode, each task is held by its own advisory lock on the shared session connection.
+     */
+    protected List<Task> acquireTasks(TaskQuery taskQuery, int maxTasks, String acquiredBy) throws TaskManagerException {
+        if (maxTasks < 1) {
+            String message = MessageFormat.format("Maximum number of tasks must be greater than 0 (zero) but was {0}", maxTasks);
+            throw new IllegalArgumentException(message);
+        }
+        if (config.getAcquisitionMode() == AcquisitionMode.LEASE) {
+            return getAndLeaseTasks(taskQuery, maxTasks, acquiredBy);
+        }
+        if (config.getAcquisitionMode() == AcquisitionMode.ADVISORY_LOCK) {
+            return getAndLockTasks(taskQuery, maxTasks, acquiredBy);
+        }
+        final List<String> turns = nameTurns.turns(taskQuery);
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(false);
+            pstmt = prepareStatement(conn, sqlBuilder.updateAcquiredBatch(taskQuery));
+            int index = sqlBuilder.bindAcquirableRows(pstmt, 1, taskQuery, false, turns, maxTasks, null);
+            pstmt.setInt(index++, maxTasks);
+            pstmt.setString(index++, TaskStatus.ACQUIRED.name());
+            pstmt.setString(index++, acquiredBy);
+            pstmt.setTimestamp(index, Timestamp.from(Instant.now()));
+            resultSet = pstmt.executeQuery();
+            final TaskBatch batch = new TaskBatch(this, conn);
+            final List<Task> tasks = new ArrayList<>(maxTasks);
+            while (resultSet.next()) {
+                PostgresqlTask task = currentRowToTask(resultSet, conn);
+                // a member does not hold a connection of its own, the batch does
+                task.setBatch(batch);
+                heldTask(task);
+                batch.add(task, TaskStatus.valueOf(resultSet.getString(14)));
+                tasks.add(task);
+            }
+            if (tasks.isEmpty()) {
+                closeWithoutException(conn);
+            } else {
+                // the batch shares one connection
+                metrics.connectionHeld();
+            }
+            if (turns != null) {
+                // the rows are locked in turns, but an update returns them in no particular order
+                NameTurns.sortInTurns(tasks, turns, taskQuery.getOrderBy());
+            }
+            return tasks;
+        } catch (Exception e) {
+            // on exception, close the connection
+            closeWithoutException(conn);
+            String message = MessageFormat.format("Unable to get tasks for query {0}", taskQuery);
+            throw new TaskManagerException(message, e);
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+        }
+    }
+
+    protected List<Task> getAndLeaseTasks(TaskQuery taskQuery, int maxTasks, String acquiredBy) throws TaskManagerException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            final String token = UUID.randomUUID().toString();
+            conn = getConnection();
+            conn.setAutoCommit(true);
+            final List<String> turns = nameTurns.turns(taskQuery);
+            pstmt = prepareStatement(conn, sqlBuilder.updateAcquiredLeaseBatch(taskQuery));
+            int index = sqlBuilder.bindAcquirableRows(pstmt, 1, taskQuery, true, turns, maxTasks, null);
+            pstmt.setInt(index++, maxTasks);
+            pstmt.setString(index++, TaskStatus.ACQUIRED.name());
+            pstmt.setString(index++, acquiredBy);
+            pstmt.setTimestamp(index++, Timestamp.from(Instant.now()));
+            pstmt.setString(index++, token);
+            pstmt.setLong(index, config.getLeaseDuration().toMillis());
+            resultSet = pstmt.executeQuery();
+            final List<Task> tasks = new ArrayList<>(maxTasks);
+            while (resultSet.next()) {
+                PostgresqlTask task = heldTask(currentRowToTask(resultSet));
+                task.setLeaseHeld(true);
+                leaseRenewer.register(task);
+                tasks.add(task);
+            }
+            if (turns != null) {
+                NameTurns.sortInTurns(tasks, turns, taskQuery.getOrderBy());
+            }
+            return tasks;
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to lease tasks for query {0}", taskQuery);
+            throw new TaskManagerException(message, e);
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+        }
+    }
+
+    /**
+     * Atomically finds up to <code>maxTasks</code> available tasks (or ACQUIRED tasks whose holder has gone away),
+     * takes their advisory locks on the session connection, and commits their acquired status.
+     * @param taskQuery
+     * @param maxTasks
+     * @param acquiredBy who is doing the acquiring, may be <code>null</code>
+     * @return the locked tasks, which is empty if no task was available
+     * @throws TaskManagerException
+     */
+    protected List<Task> getAndLockTasks(TaskQuery taskQuery, int maxTasks, String acquiredBy) throws TaskManagerException {
+        try {
+            return advisoryLockSession.acquire(taskQuery, maxTasks, acquiredBy);
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to lock tasks for query {0}", taskQuery);
+            throw new TaskManagerException(message, e);
+        }
+    }
+
+    /**
+     * Atomically finds the first available task (or task with an expired lease) and commits a lease on it.
+     * The connection is returned to the pool before this method returns and the lease is kept alive by the heartbeat.
+     * @param taskQuery
+     * @param acquiredBy who is doing the acquiring, may be <code>null</code>
+     * @return the leased task or <code>null</code> if no task was available
+     * @throws TaskManagerException
+     */
+    protected Task getAndLeaseFirstTask(TaskQuery taskQuery, String acquiredBy) throws TaskManagerException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            final String token = UUID.randomUUID().toString();
+            conn = getConnection();
+            conn.setAutoCommit(true);
+            pstmt = prepareStatement(conn, sqlBuilder.updateAcquiredLeaseFirst(taskQuery));
+            pstmt.setString(1, TaskStatus.ACQUIRED.name());
+            pstmt.setString(2, acquiredBy);
+            pstmt.setTimestamp(3, Timestamp.from(Instant.now()));
+            pstmt.setString(4, token);
+            pstmt.setLong(5, config.getLeaseDuration().toMillis());
+            sqlBuilder.bindAcquirableRows(pstmt, 6, taskQuery, true, nameTurns.turns(taskQuery), 1, null);
+            resultSet = pstmt.executeQuery();
+            if (resultSet.next()) {
+                PostgresqlTask task = heldTask(currentRowToTask(resultSet));
+                task.setLeaseHeld(true);
+                leaseRenewer.register(task);
+                return task;
+            }
+            return null;
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to lease task for query {0}", taskQuery);
             throw new TaskManagerException(message, e);
         } finally {
             closeWithoutException(resultSet);
             closeWithoutException(pstmt);
+            closeWithoutException(conn);
         }
     }
 
@@ -119,7 +765,7 @@ public class PostgresqlTaskManager implements TaskManager {
         try {
             conn = getConnection();
             conn.setAutoCommit(false);
-            pstmt = conn.prepareStatement(sqlBuilder.selectTask());
+            pstmt = prepareStatement(conn, sqlBuilder.selectTask());
             pstmt.setString(1, name);
             pstmt.setTimestamp(2, Timestamp.from(bucketTime));
             resultSet = pstmt.executeQuery();
@@ -137,6 +783,80 @@ public class PostgresqlTaskManager implements TaskManager {
         }
     }
 
+    /**
+     * A single-row lookup of the watermark maintained when {@link PostgresqlTaskManagerConfig#isWatermarks()} is set.
+     */
+    @Override
+    public Instant getWatermark(String name) throws TaskManagerException {
+        if (!config.isWatermarks()) {
+            return null;
+        }
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(true);
+            pstmt = prepareStatement(conn, sqlBuilder.selectWatermark());
+            pstmt.setString(1, name);
+            resultSet = pstmt.executeQuery();
+            if (resultSet.next()) {
+                return resultSet.getTimestamp(1).toInstant();
+            }
+            return null;
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to get watermark of task name {0}", name);
+            throw new TaskManagerException(message, e);
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+        }
+    }
+
+    /**
+     * Starts the hold timer of a task that has just been acquired and, if it holds a connection of its own, counts the connection.
+     * @param task
+     * @return the task
+     */
+    PostgresqlTask heldTask(PostgresqlTask task) {
+        metrics.held(task);
+        if (task.getConn() != null && task.getBatch() == null) {
+            metrics.connectionHeld();
+        }
+        return task;
+    }
+
+    /**
+     * Counts an acquisition that came back empty while tasks satisfying the query exist, which means they are all held by others.
+     * Takes another round trip, so it is only done after an empty acquisition, when enabled, and a failure only costs the measurement.
+     * @param taskQuery
+     */
+    private void recordMissIfBacklogExists(TaskQuery taskQuery) {
+        if (!config.isRecordAcquireMisses()) {
+            return;
+        }
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(true);
+            pstmt = prepareStatement(conn, sqlBuilder.existsTaskQuery(taskQuery));
+            sqlBuilder.bindTaskQuery(pstmt, 1, taskQuery);
+            resultSet = pstmt.executeQuery();
+            if (resultSet.next() && resultSet.getBoolean(1)) {
+                metrics.acquireMissed(taskQuery);
+            }
+        } catch (SQLException e) {
+            LOGGER.debug("Unable to check for held tasks satisfying query {}", taskQuery, e);
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+        }
+    }
+
     protected PostgresqlTask currentRowToTask(ResultSet resultSet) throws SQLException {
         return currentRowToTask(resultSet, null);
     }
@@ -150,23 +870,7 @@ public class PostgresqlTaskManager implements TaskManager {
          * @throws SQLException
          */
     protected PostgresqlTask currentRowToTask(ResultSet resultSet, Connection conn) throws SQLException {
-        PostgresqlTask.PostgresqlTaskBuilder taskBuilder = PostgresqlTask.builder();
-        taskBuilder.name(resultSet.getString(1));
-        taskBuilder.bucketTime(resultSet.getTimestamp(2).toInstant());
-        Object o = resultSet.getObject(3);
-        if (o instanceof PGInterval) {
-            taskBuilder.bucketInterval( PostgresqlTimeUtils.periodDurationFromPGInterval((PGInterval)o));
-        }
-        taskBuilder.status(TaskStatus.valueOf(resultSet.getString(4)));
-        taskBuilder.createdBy(resultSet.getString(5));
-        taskBuilder.createdAt(resultSet.getTimestamp(6).toInstant());
-        taskBuilder.acquiredBy(resultSet.getString(7));
-        taskBuilder.acquiredAt(resultSet.getTimestamp(8) == null ? null : resultSet.getTimestamp(8).toInstant());
-        taskBuilder.ptm(this);
-        if (conn != null) {
-            taskBuilder.conn(conn);
-        }
-        return taskBuilder.build();
+        return rowDecoder.decode(resultSet, conn);
     }
 
     @Override
@@ -174,11 +878,11 @@ public class PostgresqlTaskManager implements TaskManager {
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet resultSet = null;
-        final String sql = sqlBuilder.taskQueryToSql(taskQuery);
         try {
             conn = getConnection();
             conn.setAutoCommit(false);
-            pstmt = conn.prepareStatement(sql);
+            pstmt = prepareStatement(conn, sqlBuilder.taskQueryToSql(taskQuery));
+            SqlBuilder.bindPage(pstmt, sqlBuilder.bindTaskQuery(pstmt, 1, taskQuery), taskQuery);
             resultSet = pstmt.executeQuery();
             List<Task> tasks = new ArrayList<>();
             while (resultSet.next()) {
@@ -186,7 +890,7 @@ public class PostgresqlTaskManager implements TaskManager {
             }
             return tasks;
         } catch (SQLException e) {
-            String message = MessageFormat.format("Unable to get tasks for query {0}", sql);
+            String message = MessageFormat.format("Unable to get tasks for query {0}", taskQuery);
             throw new TaskManagerException(message, e);
         } finally {
             closeWithoutException(resultSet);
@@ -195,41 +899,218 @@ public class PostgresqlTaskManager implements TaskManager {
         }
     }
 
+    /**
+     * Updates the priorities in a single statement, skipping rows locked by another transaction,
+     * which in {@link AcquisitionMode#TRANSACTION} mode are the tasks held by workers.
+     */
+    @Override
+    public int setTaskPriority(TaskQuery taskQuery, int priority) throws TaskManagerException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(true);
+            pstmt = prepareStatement(conn, sqlBuilder.updatePriority(taskQuery));
+            int index = sqlBuilder.bindTaskQuery(pstmt, 1, taskQuery);
+            pstmt.setInt(index, priority);
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to set priority {0} for query {1}", priority, taskQuery);
+            throw new TaskManagerException(message, e);
+        } finally {
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+        }
+    }
+
+    /**
+     * Counts in a single statement, which reads no more than the key and status of each task.
+     */
+    @Override
+    public long countTasks(TaskQuery taskQuery) throws TaskManagerException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(true);
+            pstmt = prepareStatement(conn, sqlBuilder.countTaskQuery(taskQuery));
+            sqlBuilder.bindTaskQuery(pstmt, 1, taskQuery);
+            resultSet = pstmt.executeQuery();
+            resultSet.next();
+            return resultSet.getLong(1);
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to count tasks for query {0}", taskQuery);
+            throw new TaskManagerException(message, e);
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+        }
+    }
+
+    /**
+     * Counts with a single <code>GROUP BY</code>, so only one row per group is returned whatever the number of tasks.
+     */
+    @Override
+    public List<TaskCount> countTasksGrouped(TaskQuery taskQuery, Duration rangeWidth) throws TaskManagerException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(true);
+            pstmt = prepareStatement(conn, sqlBuilder.countGroupedTaskQuery(taskQuery, rangeWidth != null));
+            int index = 1;
+            if (rangeWidth != null) {
+                final long widthSeconds = TaskManagerUtils.rangeWidthSeconds(rangeWidth);
+                pstmt.setLong(index++, widthSeconds);
+                pstmt.setLong(index++, widthSeconds);
+            }
+            sqlBuilder.bindTaskQuery(pstmt, index, taskQuery);
+            resultSet = pstmt.executeQuery();
+            List<TaskCount> taskCounts = new ArrayList<>();
+            while (resultSet.next()) {
+                taskCounts.add(TaskCount.builder()
+                        .name(taskNames.name(resultSet, 1))
+                        .status(TaskStatus.valueOf(resultSet.getString(2)))
+                        .rangeStart(rangeWidth == null ? null : resultSet.getTimestamp(3).toInstant())
+                        .count(resultSet.getLong(rangeWidth == null ? 3 : 4))
+                        .build());
+            }
+            taskCounts.sort(TaskManagerUtils.TASK_COUNT_ORDER);
+            return taskCounts;
+        } catch (SQLException e) {
+            String message = MessageFormat.format("Unable to count tasks for query {0}", taskQuery);
+            throw new TaskManagerException(message, e);
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+        }
+    }
+
+    /**
+     * Reads the tasks through a server-side cursor, {@link PostgresqlTaskManagerConfig#getStreamFetchSize()} rows at a time,
+     * so only the rows of one fetch are in memory however many tasks satisfy the query.
+     * The stream holds a connection, and the transaction of the cursor open, until it is closed.
+     * A failure while fetching is thrown as a {@link RuntimeException} from the terminal operation.
+     */
+    @Override
+    public Stream<Task> streamTasks(TaskQuery taskQuery) throws TaskManagerException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            conn = getConnection();
+            // the driver only fetches in batches through a cursor inside a transaction
+            conn.setAutoCommit(false);
+            pstmt = prepareStatement(conn, sqlBuilder.taskQueryToSql(taskQuery));
+            pstmt.setFetchSize(config.getStreamFetchSize());
+            SqlBuilder.bindPage(pstmt, sqlBuilder.bindTaskQuery(pstmt, 1, taskQuery), taskQuery);
+            resultSet = pstmt.executeQuery();
+        } catch (SQLException e) {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+            String message = MessageFormat.format("Unable to stream tasks for query {0}", taskQuery);
+            throw new TaskManagerException(message, e);
+        }
+        final Connection streamConn = conn;
+        final PreparedStatement streamPstmt = pstmt;
+        final ResultSet streamResultSet = resultSet;
+        Spliterator<Task> spliterator = new Spliterators.AbstractSpliterator<Task>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Task> action) {
+                try {
+                    if (!streamResultSet.next()) {
+                        return false;
+                    }
+                    action.accept(currentRowToTask(streamResultSet));
+                    return true;
+                } catch (SQLException e) {
+                    String message = MessageFormat.format("Unable to fetch tasks for query {0}", taskQuery);
+                    throw new RuntimeException(message, e);
+                }
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            closeWithoutException(streamResultSet);
+            closeWithoutException(streamPstmt);
+            closeWithoutException(streamConn);
+        });
+    }
+
+    /**
+     * Updates every task with a single statement, binding the keys as arrays, so the statement size does not grow with the number of tasks.
+     * If any task is locked by another transaction, or leased by another worker, nothing is updated
+     * and the {@link AcquireException} lists the tasks that could not be locked.
+     */
     @Override
     public void setTaskStatus(Set<Task> tasks, TaskStatus updatedStatus, String acquiredBy) throws TaskManagerException {
+        setTaskStatusAndGet(tasks, updatedStatus, acquiredBy);
+    }
+
+    /**
+     * Returns the rows the update statement returned.
+     */
+    @Override
+    public Set<Task> setTaskStatusAndGet(Set<Task> tasks, TaskStatus updatedStatus, String acquiredBy) throws TaskManagerException {
         if (tasks.stream().filter(t -> t.isAcquired()).count() > 0) {
             throw new IllegalArgumentException("Cannot call set task status on tasks that are already acquired");
         }
         Connection conn = null;
-        Statement stmt = null;
+        PreparedStatement pstmt = null;
         ResultSet resultSet = null;
-        final String sql = sqlBuilder.selectTasks(tasks) + " FOR UPDATE NOWAIT";
         try {
             conn = getConnection();
             conn.setAutoCommit(false);
-            stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE);
-            resultSet = stmt.executeQuery(sql);
+            pstmt = prepareStatement(conn, sqlBuilder.updateTasksStatus());
+            SqlBuilder.bindTaskKeys(pstmt, 1, tasks);
+            pstmt.setString(3, updatedStatus.name());
+            pstmt.setString(4, acquiredBy);
+            pstmt.setTimestamp(5, Timestamp.from(Instant.now()));
+            resultSet = pstmt.executeQuery();
+            final Set<Task> updated = new LinkedHashSet<>();
+            final List<Task> locked = new ArrayList<>();
             while (resultSet.next()) {
-                resultSet.updateString("status", updatedStatus.name());
-                resultSet.updateTimestamp("acquired_at", java.sql.Timestamp.from(Instant.now()));
-                resultSet.updateString("acquired_by", acquiredBy);
-                resultSet.updateRow();
+                if (resultSet.getBoolean(14)) {
+                    updated.add(currentRowToTask(resultSet));
+                } else {
+                    locked.add(currentRowToTask(resultSet));
+                }
+            }
+            if (!locked.isEmpty()) {
+                conn.rollback();
+                String message = MessageFormat.format("Unable to set status {0}, {1} of {2} tasks are locked", updatedStatus, locked.size(), tasks.size());
+                throw new AcquireException(message, locked.toArray(new Task[0]));
             }
             conn.commit();
+            return updated;
         } catch (SQLException e) {
-            if (e.getSQLState().equals("")) {
-
-            } else {
-                String message = MessageFormat.format("Unable to get tasks for query {0}", sql);
-                throw new TaskManagerException(message, e);
-            }
+            String message = MessageFormat.format("Unable to set status {0} on {1} tasks", updatedStatus, tasks.size());
+            throw new TaskManagerException(message, e);
         } finally {
             closeWithoutException(resultSet);
-            closeWithoutException(stmt);
+            closeWithoutException(pstmt);
             closeWithoutException(conn);
         }
     }
 
+    /**
+     * Stops the lease heartbeat, stops listening for available tasks, stops partition maintenance and retention, and closes the advisory lock session.
+     * Leases that are still held will expire, and tasks still held by advisory locks are released, and either may then be reclaimed by other workers.
+     */
+    @Override
+    public void close() {
+        leaseRenewer.close();
+        availabilityListener.close();
+        partitionMaintainer.close();
+        retentionService.close();
+        advisoryLockSession.close();
+        metrics.close();
+    }
+
     protected static void rollbackWithoutException(Statement stmt, Logger logger) {
         if (stmt != null) {
             try {
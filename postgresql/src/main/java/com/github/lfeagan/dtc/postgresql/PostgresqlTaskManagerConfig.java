@@ -0,0 +1,207 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Settings used to construct a {@link PostgresqlTaskManager}.
+ * Every setting has a default, so <code>PostgresqlTaskManagerConfig.builder().build()</code> is equivalent to the original behavior.
+ */
+@Data
+@Builder
+public class PostgresqlTaskManagerConfig {
+
+    /**
+     * The table name. Can be a one-, two-, or three-part name.
+     */
+    @NonNull
+    @Builder.Default
+    private final String tableName = "tasks";
+
+    /**
+     * The length of identifiers in the table.
+     */
+    @Builder.Default
+    private final int idLength = 32;
+
+    /**
+     * Whether {@link PostgresqlTaskManager#initialize()} creates the task table with the compact schema, for narrower rows and indexes:
+     * the status is a native enum, the bucket interval a number of microseconds, and the task name an id into a lookup table of names.
+     * Bucket intervals must then have a fixed length, with days counted as 24 hours, and are read back as durations.
+     * Must not change once the table has been created.
+     */
+    @Builder.Default
+    private final boolean compactSchema = false;
+
+    /**
+     * The secondary indexes created by {@link PostgresqlTaskManager#initialize()}.
+     */
+    @NonNull
+    @Builder.Default
+    private final Set<TaskIndex> indexes = EnumSet.of(TaskIndex.AVAILABLE, TaskIndex.LEASE_EXPIRES_AT, TaskIndex.ACQUIRED_AT);
+
+    /**
+     * How acquired tasks are held.
+     */
+    @NonNull
+    @Builder.Default
+    private final AcquisitionMode acquisitionMode = AcquisitionMode.TRANSACTION;
+
+    /**
+     * In {@link AcquisitionMode#LEASE} mode, how long a lease lasts without being renewed.
+     */
+    @NonNull
+    @Builder.Default
+    private final Duration leaseDuration = Duration.ofMinutes(5);
+
+    /**
+     * In {@link AcquisitionMode#LEASE} mode, how often the heartbeat renews the leases held by this task manager.
+     * Should be comfortably shorter than the lease duration.
+     */
+    @NonNull
+    @Builder.Default
+    private final Duration leaseRenewalInterval = Duration.ofMinutes(1);
+
+    /**
+     * The maximum number of tasks inserted by a single statement when creating tasks in bulk.
+     * Each batch is committed separately.
+     */
+    @Builder.Default
+    private final int bulkInsertBatchSize = 10000;
+
+    /**
+     * The number of executions of a statement on a connection before the driver switches to a named server-side prepared statement.
+     * The statement catalog keeps the number of distinct statements small, so the default prepares them on first use.
+     * Set to 0 (zero) to disable server-side prepared statements, e.g. behind a transaction-pooling proxy.
+     */
+    @Builder.Default
+    private final int prepareThreshold = 1;
+
+    /**
+     * The number of distinct bucket intervals, and of distinct task and worker names, whose decoded values are cached and shared by the tasks read.
+     * Set to 0 (zero) to decode every row afresh.
+     */
+    @Builder.Default
+    private final int rowDecoderCacheSize = 256;
+
+    /**
+     * The number of rows {@link PostgresqlTaskManager#streamTasks} fetches from its server-side cursor at a time.
+     */
+    @Builder.Default
+    private final int streamFetchSize = 1000;
+
+    /**
+     * Whether an acquisition that comes back empty checks whether tasks satisfying the query exist, all held by others,
+     * and counts a miss in <code>dtc.task.acquire.misses</code> if so. The check is one more query per empty acquisition,
+     * which doubles the load of idle polling, so it is off unless asked for.
+     */
+    @Builder.Default
+    private final boolean recordAcquireMisses = false;
+
+    /**
+     * Whether {@link PostgresqlTaskManager#initialize()} installs the triggers that notify waiting workers when a task becomes available,
+     * or drops them if they were installed before. Every task inserted as, or returning to, AVAILABLE then fires a trigger,
+     * including bulk inserts, so they are only worth it for workers using {@link PostgresqlTaskManager#awaitAndAcquire}.
+     */
+    @Builder.Default
+    private final boolean availabilityNotifications = false;
+
+    /**
+     * Whether {@link PostgresqlTaskManager#initialize()} installs the per-name watermark table and the triggers that maintain it,
+     * and backlog queries for AVAILABLE tasks of one name start from the watermark instead of scanning the whole window.
+     */
+    @Builder.Default
+    private final boolean watermarks = true;
+
+    /**
+     * The width of the bucket time range covered by each partition when the task table is range partitioned on bucket time,
+     * in whole seconds, or <code>null</code> for an ordinary table. Partitions are aligned with the epoch.
+     * Must not change once the table has been created.
+     */
+    @Builder.Default
+    private final Duration partitionInterval = null;
+
+    /**
+     * With a partitioned table, the number of partitions following the current one that are created ahead of time,
+     * so tasks for upcoming buckets never land in the default partition while partition maintenance is briefly not running.
+     */
+    @Builder.Default
+    private final int partitionsAhead = 2;
+
+    /**
+     * With a partitioned table, how long after its range ends a partition is dropped, along with every task in it,
+     * or <code>null</code> to keep partitions forever.
+     */
+    @Builder.Default
+    private final Duration partitionRetention = null;
+
+    /**
+     * With a partitioned table, how often partitions are created ahead of time and dropped after the retention.
+     */
+    @NonNull
+    @Builder.Default
+    private final Duration partitionMaintenanceInterval = Duration.ofHours(1);
+
+    /**
+     * The longest partition maintenance waits for a lock on the task table before giving up until its next run,
+     * so it never leaves workers queued behind it while a long transaction holds tasks.
+     */
+    @NonNull
+    @Builder.Default
+    private final Duration partitionLockTimeout = Duration.ofSeconds(5);
+
+    /**
+     * How long after its bucket time a COMPLETE or SKIP task is moved into the archive table, or <code>null</code> to keep finished tasks in the task table.
+     * Should be longer than any backlog window, or a worker may create the task for an archived bucket again.
+     */
+    @Builder.Default
+    private final Duration archiveAfter = null;
+
+    /**
+     * How long after its bucket time an AVAILABLE task that nobody has picked up is set to SKIP, or <code>null</code> to leave it in the backlog.
+     */
+    @Builder.Default
+    private final Duration skipAvailableAfter = null;
+
+    /**
+     * The maximum number of tasks archived or skipped by one transaction, which bounds how long retention holds its row locks.
+     */
+    @Builder.Default
+    private final int retentionBatchSize = 1000;
+
+    /**
+     * How often finished tasks are archived and stale tasks skipped, when either is enabled.
+     */
+    @NonNull
+    @Builder.Default
+    private final Duration retentionInterval = Duration.ofMinutes(10);
+
+    /**
+     * The longest a worker waiting in {@link PostgresqlTaskManager#awaitAndAcquire} sleeps before querying again without being notified.
+     * Catches work that becomes available without a notification, such as an expired lease.
+     */
+    @NonNull
+    @Builder.Default
+    private final Duration awaitPollInterval = Duration.ofSeconds(30);
+
+    /**
+     * The number of threads a {@link PostgresqlAsyncTaskManager} runs operations on, each of which holds a connection while it runs.
+     */
+    @Builder.Default
+    private final int asyncPoolSize = 8;
+
+    /**
+     * The number of operations a {@link PostgresqlAsyncTaskManager} queues while all of its threads are busy, beyond which operations are rejected.
+     */
+    @Builder.Default
+    private final int asyncQueueCapacity = 1024;
+
+    public static PostgresqlTaskManagerConfig defaults() {
+        return PostgresqlTaskManagerConfig.builder().build();
+    }
+}
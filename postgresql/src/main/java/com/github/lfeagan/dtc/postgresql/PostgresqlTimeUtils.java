@@ -4,10 +4,12 @@ import org.postgresql.util.PGInterval;
 import org.threeten.extra.PeriodDuration;
 
 import java.text.DecimalFormat;
+import java.text.MessageFormat;
 import java.text.NumberFormat;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoUnit;
 import java.util.Locale;
 
 import static java.time.temporal.ChronoField.*;
@@ -176,4 +178,24 @@ public class PostgresqlTimeUtils {
         return PeriodDuration.of(p, d);
     }
 
+    /**
+     * Converts an interval with a fixed length into whole microseconds, counting days as 24 hours.
+     * @param periodDuration
+     * @return
+     * @throws IllegalArgumentException if the interval has months or years, whose length varies
+     */
+    public static long microsFromPeriodDuration(PeriodDuration periodDuration) {
+        final Period p = periodDuration.getPeriod();
+        if (p.getYears() != 0 || p.getMonths() != 0) {
+            String message = MessageFormat.format("Interval must not have months or years to be stored as microseconds but was {0}", periodDuration);
+            throw new IllegalArgumentException(message);
+        }
+        final Duration d = periodDuration.getDuration().plusDays(p.getDays());
+        return Math.addExact(Math.multiplyExact(d.getSeconds(), 1000000L), d.getNano() / 1000);
+    }
+
+    public static PeriodDuration periodDurationFromMicros(long micros) {
+        return PeriodDuration.of(Duration.of(micros, ChronoUnit.MICROS));
+    }
+
 }
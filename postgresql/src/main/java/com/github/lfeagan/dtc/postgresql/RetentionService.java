@@ -0,0 +1,132 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.lfeagan.dtc.postgresql.JdbcUtils.closeWithoutException;
+
+/**
+ * Keeps the task table small by moving old finished tasks into the archive table and skipping AVAILABLE tasks that nobody picked up in time.
+ * Both run as a series of batches of at most {@link PostgresqlTaskManagerConfig#getRetentionBatchSize()} tasks, each committed on its own,
+ * and skip tasks locked by workers, so retention never holds many row locks or waits on a held task.
+ */
+class RetentionService implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetentionService.class);
+
+    static final String STALE_MESSAGE = "skipped by retention, not acquired in time";
+
+    private final PostgresqlTaskManager ptm;
+    private ScheduledExecutorService executor;
+
+    RetentionService(final PostgresqlTaskManager ptm) {
+        this.ptm = ptm;
+    }
+
+    synchronized void start() {
+        if (executor == null) {
+            final long periodMillis = ptm.config.getRetentionInterval().toMillis();
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "dtc-retention");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::runQuietly, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void runQuietly() {
+        final Instant now = Instant.now();
+        try {
+            final Duration skipAvailableAfter = ptm.config.getSkipAvailableAfter();
+            if (skipAvailableAfter != null) {
+                skipStaleTasks(now.minus(skipAvailableAfter));
+            }
+            final Duration archiveAfter = ptm.config.getArchiveAfter();
+            if (archiveAfter != null) {
+                archiveFinishedTasks(now.minus(archiveAfter));
+            }
+        } catch (SQLException e) {
+            // whatever the completed batches moved stays moved, the next run picks up the rest
+            LOGGER.error("Unable to apply retention to {}", ptm.config.getTableName(), e);
+        }
+    }
+
+    /**
+     * Moves the COMPLETE and SKIP tasks with a bucket time before the cutoff into the archive table.
+     * @param cutoff
+     * @return the number of tasks archived
+     * @throws SQLException
+     */
+    int archiveFinishedTasks(Instant cutoff) throws SQLException {
+        final int archived = runBatches(ptm.sqlBuilder.archiveFinishedTasks(), cutoff, null);
+        if (archived > 0) {
+            LOGGER.info("Archived {} tasks with a bucket time before {}", archived, cutoff);
+        }
+        return archived;
+    }
+
+    /**
+     * Sets the AVAILABLE tasks with a bucket time before the cutoff to SKIP.
+     * @param cutoff
+     * @return the number of tasks skipped
+     * @throws SQLException
+     */
+    int skipStaleTasks(Instant cutoff) throws SQLException {
+        final int skipped = runBatches(ptm.sqlBuilder.skipStaleTasks(), cutoff, STALE_MESSAGE);
+        if (skipped > 0) {
+            LOGGER.info("Skipped {} stale tasks with a bucket time before {}", skipped, cutoff);
+        }
+        return skipped;
+    }
+
+    /**
+     * Executes the batch statement in autocommit until a batch comes back short.
+     * @param sql binds the cutoff, the batch size, and, if not <code>null</code>, the message
+     * @return the total number of tasks affected
+     */
+    private int runBatches(String sql, Instant cutoff, String message) throws SQLException {
+        final int batchSize = ptm.config.getRetentionBatchSize();
+        int total = 0;
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = ptm.getConnection();
+            conn.setAutoCommit(true);
+            pstmt = ptm.prepareStatement(conn, sql);
+            int affected;
+            do {
+                pstmt.setTimestamp(1, Timestamp.from(cutoff));
+                pstmt.setInt(2, batchSize);
+                if (message != null) {
+                    pstmt.setString(3, message);
+                }
+                affected = pstmt.executeUpdate();
+                total += affected;
+            } while (affected == batchSize);
+            return total;
+        } finally {
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
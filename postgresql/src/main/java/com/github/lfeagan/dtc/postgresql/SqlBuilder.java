@@ -1,22 +1,45 @@
 package com.github.lfeagan.dtc.postgresql;
 
 import com.google.common.base.Joiner;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
+import lombok.Getter;
+import lombok.experimental.Accessors;
 import com.github.lfeagan.dtc.Task;
+import com.github.lfeagan.dtc.TaskOrder;
 import com.github.lfeagan.dtc.TaskQuery;
+import com.github.lfeagan.dtc.TaskStatus;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.text.MessageFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 @Builder
 @AllArgsConstructor
+@Accessors(fluent = true)
 public class SqlBuilder {
 
-    private static final String ALL_COLUMNS = "name, bucket_time, bucket_interval, status, created_by, created_at, acquired_by, acquired_at, completed_at, message";
+    private static final String ALL_COLUMNS = "name, bucket_time, bucket_interval, status, created_by, created_at, acquired_by, acquired_at, completed_at, message, lease_owner, lease_expires_at, priority";
     private static final String MINIMAL_COLUMNS = "name, bucket_time, bucket_interval, status, created_by, created_at";
+    // the compact schema stores the id of the task name in place of the name
+    private static final String COMPACT_ALL_COLUMNS = "name_id" + ALL_COLUMNS.substring("name".length());
+    private static final String COMPACT_MINIMAL_COLUMNS = "name_id" + MINIMAL_COLUMNS.substring("name".length());
+    private static final String PARTITION_SUFFIX = "_p";
+    private static final DateTimeFormatter PARTITION_START_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
 
     /**
      * The table name. Can be a one-, two-, or three-part name.
@@ -29,6 +52,135 @@ public class SqlBuilder {
     @Builder.Default
     private final int idLength = 32;
 
+    /**
+     * Whether backlog statements start from the per-name watermark maintained by the triggers from {@link #createWatermarkMaintenance()}.
+     */
+    @Builder.Default
+    private final boolean watermarks = false;
+
+    /**
+     * Whether the task table is range partitioned on bucket time, with partitions managed through {@link #attachPartition}.
+     */
+    @Builder.Default
+    private final boolean partitioned = false;
+
+    /**
+     * Whether the task table uses the compact schema from {@link #createTaskTable()}:
+     * the status is an enum, the bucket interval a number of microseconds, and the task name an id into {@link #nameTableName()}.
+     * Statements still bind task names, statuses, and intervals in the same places, and look the ids up themselves.
+     */
+    @Builder.Default
+    private final boolean compact = false;
+
+    /*
+     * The statement catalog. Every statement is built once per SqlBuilder, on first use, and its text never changes,
+     * so the driver can reuse the named server-side prepared statement each time a connection prepares it again.
+     */
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String insertMinimalTask = buildInsertMinimalTask();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String insertMinimalTasks = buildInsertMinimalTasks();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String insertMissingTasks = buildInsertMissingTasks();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String insertFullTask = buildInsertFullTask();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String selectTask = buildSelectTask();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String selectForUpdateNoWait = buildSelectForUpdateNoWait();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String selectForUpdateSkipLocked = buildSelectForUpdateSkipLocked();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateAcquired = buildUpdateAcquired();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateStatus = buildUpdateStatus();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateStatusAndMessage = buildUpdateStatusAndMessage();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateStatusAndMessageIncrementFailCount = buildUpdateStatusAndMessageIncrementFailCount();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateStatusMessageCompletedAt = buildUpdateStatusMessageCompletedAt();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateAcquiredLease = buildUpdateAcquiredLease();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateLeaseExpiry = buildUpdateLeaseExpiry();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String expireLease = buildExpireLease();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateStatusAndMessageReleaseLease = buildUpdateStatusAndMessageReleaseLease();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateStatusAndMessageIncrementFailCountReleaseLease = buildUpdateStatusAndMessageIncrementFailCountReleaseLease();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateStatusMessageCompletedAtReleaseLease = buildUpdateStatusMessageCompletedAtReleaseLease();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateTasksStatus = buildUpdateTasksStatus();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String findOrCreateAndAcquire = buildFindOrCreateAndAcquire();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String updateAcquiredAdvisoryLock = buildUpdateAcquiredAdvisoryLock(Arrays.asList(namePredicate(), "bucket_time=?",
+            // a finished task is never acquired again, and an ACQUIRED one only if its holder's lock is gone
+            "status IN ('" + TaskStatus.AVAILABLE.name() + "', '" + TaskStatus.ACQUIRED.name() + "')"), false, "1", 0);
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String advisoryUnlock = buildAdvisoryUnlock();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String selectWatermark = buildSelectWatermark();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String selectPartitions = buildSelectPartitions();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String selectPartitionExists = buildSelectPartitionExists();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String tryPartitionMaintenanceLock = buildTryPartitionMaintenanceLock();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String archiveFinishedTasks = buildArchiveFinishedTasks();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String skipStaleTasks = buildSkipStaleTasks();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String insertTaskName = buildInsertTaskName();
+    @Getter(value = AccessLevel.PACKAGE, lazy = true)
+    private final String selectTaskNames = buildSelectTaskNames();
+
+    /**
+     * Statements whose predicates depend on which {@link TaskQuery} conditions are set, keyed by statement kind and predicate shape.
+     */
+    private final ConcurrentMap<Integer, String> taskQueryStatements = new ConcurrentHashMap<>();
+
+    // statement kinds with TaskQuery predicates
+    private static final int SELECT = 0;
+    private static final int UPDATE_ACQUIRED_FIRST = 1;
+    private static final int UPDATE_ACQUIRED_BATCH = 2;
+    private static final int UPDATE_ACQUIRED_LEASE_FIRST = 3;
+    private static final int UPDATE_ACQUIRED_LEASE_BATCH = 4;
+    private static final int UPDATE_ACQUIRED_ADVISORY_LOCK_BATCH = 5;
+    private static final int EXISTS = 6;
+    private static final int COUNT = 7;
+    private static final int COUNT_GROUPED = 8;
+    private static final int COUNT_GROUPED_BY_RANGE = 9;
+    private static final int UPDATE_PRIORITY = 10;
+
+    // predicate shapes, one bit for each optional TaskQuery condition
+    private static final int NAME = 1;
+    private static final int NAMES = 1 << 1;
+    private static final int BUCKET_START_TIME = 1 << 2;
+    private static final int BUCKET_END_TIME = 1 << 3;
+    private static final int ACQUIRED_AT_START_TIME = 1 << 4;
+    private static final int ACQUIRED_AT_END_TIME = 1 << 5;
+    private static final int STATUSES = 1 << 6;
+    private static final int RECLAIM_EXPIRED_LEASES = 1 << 7;
+    private static final int AVAILABLE_ONLY = 1 << 8;
+    private static final int RECLAIM_UNLOCKED = 1 << 9;
+    // order shapes, for selects and acquisition
+    private static final int OLDEST_FIRST = 1 << 10;
+    private static final int NEWEST_FIRST = 1 << 11;
+    private static final int PRIORITY_FIRST = 1 << 12;
+    // fairness shape, only for acquisition
+    private static final int IN_TURNS = 1 << 13;
+    // page shapes, only for selects
+    private static final int AFTER = 1 << 14;
+    private static final int LIMIT = 1 << 15;
+    private static final int SHAPE_BITS = 16;
+
+    private static final String AVAILABLE_PREDICATE = "status = '" + TaskStatus.AVAILABLE.name() + "'";
+
     private static void validateTableName(final String tableName) {
 //        expectNonEmpty(tableName);
         if (!tableName.matches("[a-zA-Z0-9_\\.]+")) {
@@ -48,8 +200,35 @@ public class SqlBuilder {
         }
     }
 
+    /**
+     * Creates the SQL for the task table.
+     * The compact schema stores the status as the enum from {@link #createStatusType()}, the bucket interval as a number of microseconds,
+     * and the task name as an id into {@link #nameTableName()}, and orders the columns so fixed-width values are not padded for alignment.
+     * @return
+     */
     String createTaskTable() {
         validateIdLength();
+        if (compact) {
+            return "CREATE TABLE " + tableName
+                    + "("
+                    + "name_id INTEGER NOT NULL, "
+                    + "status " + statusTypeName() + " NOT NULL, "
+                    + "bucket_time TIMESTAMPTZ NOT NULL, "
+                    + "bucket_interval BIGINT NOT NULL, "
+                    + "created_at TIMESTAMPTZ NOT NULL, "
+                    + "acquired_at TIMESTAMPTZ, "
+                    + "completed_at TIMESTAMPTZ, "
+                    + "lease_expires_at TIMESTAMPTZ, "
+                    + "fail_count INT DEFAULT 0, "
+                    + "priority INT NOT NULL DEFAULT 0, "
+                    + "created_by VARCHAR(" + idLength + ") NOT NULL, "
+                    + "acquired_by VARCHAR(" + idLength + "), "
+                    + "lease_owner VARCHAR(36), "
+                    + "message TEXT, "
+                    + "PRIMARY KEY (name_id,bucket_time) "
+                    + ")"
+                    + (partitioned ? " PARTITION BY RANGE (bucket_time)" : "");
+        }
         return "CREATE TABLE " + tableName
                 + "("
                 + "name VARCHAR("+ idLength +") NOT NULL, "
@@ -63,10 +242,539 @@ public class SqlBuilder {
                 + "completed_at TIMESTAMPTZ, "
                 + "fail_count INT DEFAULT 0, "
                 + "message TEXT, "
+                + "lease_owner VARCHAR(36), "
+                + "lease_expires_at TIMESTAMPTZ, "
+                + "priority INT NOT NULL DEFAULT 0, "
                 + "PRIMARY KEY (name,bucket_time) "
+                + ")"
+                + (partitioned ? " PARTITION BY RANGE (bucket_time)" : "");
+    }
+
+    /**
+     * The enum type of the status column in the compact schema, named after the table.
+     */
+    String statusTypeName() {
+        return tableName + "_status";
+    }
+
+    /**
+     * Creates the enum type of the status column in the compact schema, with one label per {@link TaskStatus}, unless it exists.
+     * @return
+     */
+    String createStatusType() {
+        List<String> labels = new ArrayList<>();
+        for (TaskStatus status : TaskStatus.values()) {
+            labels.add("'" + status.name() + "'");
+        }
+        return "DO $$ BEGIN CREATE TYPE " + statusTypeName() + " AS ENUM (" + Joiner.on(", ").join(labels) + ");"
+                + " EXCEPTION WHEN duplicate_object THEN NULL; END $$";
+    }
+
+    /**
+     * The lookup table of task names in the compact schema. Names are only ever added, so an id always refers to the same name.
+     */
+    String nameTableName() {
+        return tableName + "_names";
+    }
+
+    String createNameTable() {
+        validateIdLength();
+        return "CREATE TABLE IF NOT EXISTS " + nameTableName()
+                + "("
+                + "id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                + "name VARCHAR(" + idLength + ") NOT NULL UNIQUE"
+                + ")";
+    }
+
+    /**
+     * Adds the name bound to the parameter to the lookup table, unless it is there, and returns its id.
+     * The no-op update on conflict returns the id of an existing name in the same statement.
+     * @return
+     */
+    private String buildInsertTaskName() {
+        return "INSERT INTO " + nameTableName() + " (name) VALUES (?) ON CONFLICT (name) DO UPDATE SET name = EXCLUDED.name RETURNING id";
+    }
+
+    private String buildSelectTaskNames() {
+        return "SELECT id, name FROM " + nameTableName();
+    }
+
+    /**
+     * The column holding the task name, or with the compact schema its id.
+     */
+    private String nameColumn() {
+        return compact ? "name_id" : "name";
+    }
+
+    /**
+     * The value of the task name bound to a parameter, as stored in {@link #nameColumn()}.
+     * An uncorrelated subquery is evaluated once per statement, so the id bounds an index scan like a parameter.
+     */
+    private String nameParameter() {
+        return compact ? "(SELECT id FROM " + nameTableName() + " WHERE name=?)" : "?";
+    }
+
+    private String namePredicate() {
+        return nameColumn() + "=" + nameParameter();
+    }
+
+    /**
+     * Matches any of the task names bound to the parameter as an array.
+     * With the compact schema, the ids are looked up into an array once per statement, so they bound an index scan like the array itself.
+     */
+    private String namesPredicate() {
+        return compact
+                ? "name_id = ANY(ARRAY(SELECT id FROM " + nameTableName() + " WHERE name = ANY(?::VARCHAR[])))"
+                : "name = ANY(?::VARCHAR[])";
+    }
+
+    /**
+     * The name of the task on the row of the alias, from a trigger or function.
+     */
+    private String nameOf(String alias) {
+        return compact ? "(SELECT name FROM " + nameTableName() + " WHERE id=" + alias + ".name_id)" : alias + ".name";
+    }
+
+    /**
+     * The value of the status name bound to a parameter, as stored in the status column.
+     */
+    private String statusParameter() {
+        return compact ? "?::" + statusTypeName() : "?";
+    }
+
+    private String statusArrayParameter() {
+        return compact ? "?::" + statusTypeName() + "[]" : "?::VARCHAR[]";
+    }
+
+    private String allColumns() {
+        return compact ? COMPACT_ALL_COLUMNS : ALL_COLUMNS;
+    }
+
+    private String minimalColumns() {
+        return compact ? COMPACT_MINIMAL_COLUMNS : MINIMAL_COLUMNS;
+    }
+
+    /**
+     * The partition holding the tasks whose bucket time is not covered by any other partition,
+     * such as backfilled buckets older than the first partition.
+     */
+    String defaultPartitionName() {
+        return tableName + "_default";
+    }
+
+    String createDefaultPartition() {
+        return "CREATE TABLE IF NOT EXISTS " + defaultPartitionName() + " PARTITION OF " + tableName + " DEFAULT";
+    }
+
+    /**
+     * The name of the partition whose range starts at the specified bucket time, which is encoded in the name to the second in UTC.
+     * The partition lives in the schema of the task table.
+     * @param start
+     * @return
+     */
+    String partitionName(Instant start) {
+        return tableName + PARTITION_SUFFIX + PARTITION_START_FORMAT.format(start);
+    }
+
+    /**
+     * The inverse of {@link #partitionName(Instant)} for the unqualified names returned by {@link #selectPartitions()}.
+     * @param unqualifiedName
+     * @return the start of the range, or <code>null</code> if the name is not that of a range partition
+     */
+    Instant partitionStart(String unqualifiedName) {
+        final String prefix = tableName.substring(tableName.lastIndexOf('.') + 1) + PARTITION_SUFFIX;
+        if (!unqualifiedName.startsWith(prefix)) {
+            return null;
+        }
+        try {
+            return Instant.from(PARTITION_START_FORMAT.parse(unqualifiedName.substring(prefix.length())));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Selects the unqualified names of the partitions of the task table, the default partition included.
+     * @return
+     */
+    private String buildSelectPartitions() {
+        return "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = to_regclass(?)";
+    }
+
+    /**
+     * Creates a standalone table with the columns of the task table, which becomes a partition once attached.
+     * @param start
+     * @return
+     */
+    String createPartitionTable(Instant start) {
+        return "CREATE TABLE " + partitionName(start) + " (LIKE " + tableName + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)";
+    }
+
+    /**
+     * Moves the tasks with a bucket time from <code>?</code> up to, but excluding, <code>?</code> out of the default partition
+     * into the standalone table that is about to be attached for that range.
+     * @param start
+     * @return
+     */
+    String moveFromDefaultPartition(Instant start) {
+        return "WITH moved AS (DELETE FROM " + defaultPartitionName() + " WHERE bucket_time >= ? AND bucket_time < ? RETURNING *)"
+                + " INSERT INTO " + partitionName(start) + " SELECT * FROM moved";
+    }
+
+    /**
+     * Attaches the table created by {@link #createPartitionTable(Instant)} as the partition for bucket times from the start up to, but excluding, the end.
+     * Unlike creating the partition in place, attaching it does not block queries on the task table while the default partition is checked.
+     * The indexes and triggers of the task table are created on the partition as it is attached.
+     * @param start
+     * @param end
+     * @return
+     */
+    String attachPartition(Instant start, Instant end) {
+        return "ALTER TABLE " + tableName + " ATTACH PARTITION " + partitionName(start)
+                + " FOR VALUES FROM ('" + start + "') TO ('" + end + "')";
+    }
+
+    String detachPartition(Instant start) {
+        return "ALTER TABLE " + tableName + " DETACH PARTITION " + partitionName(start);
+    }
+
+    String dropPartition(Instant start) {
+        return "DROP TABLE IF EXISTS " + partitionName(start);
+    }
+
+    /**
+     * Whether the partition, or the standalone table about to become one, whose name is bound to the parameter exists.
+     * @return
+     */
+    private String buildSelectPartitionExists() {
+        return "SELECT to_regclass(?) IS NOT NULL";
+    }
+
+    /**
+     * Tries the transaction-scoped advisory lock serializing the partition maintenance of the table whose name is bound to the parameter.
+     * @return
+     */
+    private String buildTryPartitionMaintenanceLock() {
+        return "SELECT pg_try_advisory_xact_lock(hashtext(?), hashtext('partitions'))";
+    }
+
+    String setLocalLockTimeout(Duration timeout) {
+        return "SET LOCAL lock_timeout = " + timeout.toMillis();
+    }
+
+    /**
+     * Creates the SQL for one of the secondary indexes. The index is only created if it does not already exist.
+     * @param index
+     * @return
+     */
+    String createIndex(TaskIndex index) {
+        StringBuilder sb = new StringBuilder("CREATE INDEX IF NOT EXISTS ");
+        // an index always lives in the schema of its table, so its name is never qualified
+        sb.append(tableName.substring(tableName.lastIndexOf('.') + 1));
+        switch (index) {
+            case AVAILABLE:
+                sb.append("_available_idx ON ").append(tableName);
+                sb.append(" (").append(nameColumn()).append(", bucket_time) WHERE status = '").append(TaskStatus.AVAILABLE.name()).append("'");
+                break;
+            case AVAILABLE_PRIORITY:
+                sb.append("_available_priority_idx ON ").append(tableName);
+                sb.append(" (").append(nameColumn()).append(", priority DESC, bucket_time) WHERE status = '").append(TaskStatus.AVAILABLE.name()).append("'");
+                break;
+            case AVAILABLE_ANY_NAME:
+                sb.append("_available_any_name_idx ON ").append(tableName);
+                sb.append(" (bucket_time) WHERE status = '").append(TaskStatus.AVAILABLE.name()).append("'");
+                break;
+            case AVAILABLE_PRIORITY_ANY_NAME:
+                sb.append("_available_priority_any_name_idx ON ").append(tableName);
+                sb.append(" (priority DESC, bucket_time) WHERE status = '").append(TaskStatus.AVAILABLE.name()).append("'");
+                break;
+            case LEASE_EXPIRES_AT:
+                sb.append("_lease_expires_at_idx ON ").append(tableName);
+                sb.append(" (lease_expires_at) WHERE status = '").append(TaskStatus.ACQUIRED.name()).append("'");
+                break;
+            case ACQUIRED_AT:
+                sb.append("_acquired_at_idx ON ").append(tableName);
+                sb.append(" (acquired_at) WHERE acquired_at IS NOT NULL");
+                break;
+            case BUCKET_TIME_BRIN:
+                sb.append("_bucket_time_brin_idx ON ").append(tableName);
+                sb.append(" USING BRIN (bucket_time)");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown index " + index);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The channel notified with the task name whenever a task becomes available.
+     * Channel names are plain identifiers, so any schema qualification of the table is folded into the name,
+     * and the name is lower-cased here, once, because <code>LISTEN</code> folds an unquoted channel while <code>pg_notify</code> does not.
+     * @return
+     */
+    String availabilityChannel() {
+        return tableName.replace("\"", "").replace('.', '_').toLowerCase(Locale.ROOT) + "_available";
+    }
+
+    String listenForAvailability() {
+        return "LISTEN \"" + availabilityChannel() + "\"";
+    }
+
+    /**
+     * Creates the SQL for the trigger function and the triggers that notify {@link #availabilityChannel()}
+     * when a task is inserted as AVAILABLE or transitions back to AVAILABLE, for example after failing.
+     * Postgres folds identical notifications raised by one transaction, so a bulk insert notifies each task name once.
+     * @return the statements, to be executed in order
+     */
+    List<String> createAvailabilityNotifications() {
+        final String unqualifiedTableName = tableName.substring(tableName.lastIndexOf('.') + 1);
+        final String functionName = tableName + "_notify_available";
+        final String available = "NEW.status = '" + TaskStatus.AVAILABLE.name() + "'";
+        List<String> statements = new ArrayList<>();
+        statements.add("CREATE OR REPLACE FUNCTION " + functionName + "() RETURNS TRIGGER LANGUAGE plpgsql AS $$\n"
+                + "BEGIN\n"
+                + "    PERFORM pg_notify('" + availabilityChannel() + "', " + nameOf("NEW") + ");\n"
+                + "    RETURN NULL;\n"
+                + "END\n"
+                + "$$");
+        statements.addAll(dropAvailabilityNotifications());
+        statements.add("CREATE TRIGGER " + unqualifiedTableName + "_available_insert AFTER INSERT ON " + tableName
+                + " FOR EACH ROW WHEN (" + available + ") EXECUTE PROCEDURE " + functionName + "()");
+        statements.add("CREATE TRIGGER " + unqualifiedTableName + "_available_update AFTER UPDATE OF status ON " + tableName
+                + " FOR EACH ROW WHEN (OLD.status IS DISTINCT FROM NEW.status AND " + available + ") EXECUTE PROCEDURE " + functionName + "()");
+        return statements;
+    }
+
+    /**
+     * Drops the triggers created by {@link #createAvailabilityNotifications()}, if they exist.
+     * @return the statements, to be executed in order
+     */
+    List<String> dropAvailabilityNotifications() {
+        final String unqualifiedTableName = tableName.substring(tableName.lastIndexOf('.') + 1);
+        return Arrays.asList(
+                "DROP TRIGGER IF EXISTS " + unqualifiedTableName + "_available_insert ON " + tableName,
+                "DROP TRIGGER IF EXISTS " + unqualifiedTableName + "_available_update ON " + tableName);
+    }
+
+    /**
+     * The table holding one watermark per task name: every task with that name and an earlier bucket time is COMPLETE or SKIP.
+     */
+    String watermarkTableName() {
+        return tableName + "_watermarks";
+    }
+
+    String createWatermarkTable() {
+        validateIdLength();
+        return "CREATE TABLE IF NOT EXISTS " + watermarkTableName()
+                + "("
+                + (compact ? "name_id INTEGER" : "name VARCHAR(" + idLength + ")") + " NOT NULL PRIMARY KEY, "
+                + "bucket_time TIMESTAMPTZ NOT NULL"
                 + ")";
     }
 
+    /**
+     * Creates the SQL for the triggers that maintain the watermarks in the same transaction as the task changes.
+     * <ul>
+     *     <li>A task that is inserted, or returns to, AVAILABLE or ACQUIRED creates the watermark of its name at <code>-infinity</code> if there is none,
+     *     takes a key share lock on it until commit, and lowers it to the task's bucket time if it was later.</li>
+     *     <li>A task that becomes COMPLETE or SKIP advances the watermark, unless the task at the watermark is still unfinished,
+     *     to the bucket time of the next unfinished task or, if there is none, just past the last task.
+     *     The watermark is locked with <code>SKIP LOCKED</code> first, so while another transaction may be adding an unfinished task,
+     *     which this transaction cannot see yet, the watermark is left where it is and advanced by a later completion.</li>
+     * </ul>
+     * Acquiring and failing tasks moves them between unfinished statuses and does not touch the watermark, so held tasks never contend on it.
+     * A watermark may lag behind the tasks, never run ahead of them.
+     * @return
+     */
+    List<String> createWatermarkMaintenance() {
+        final String unqualifiedTableName = tableName.substring(tableName.lastIndexOf('.') + 1);
+        final String watermarkTable = watermarkTableName();
+        final String unfinished = "('" + TaskStatus.AVAILABLE.name() + "', '" + TaskStatus.ACQUIRED.name() + "')";
+        final String finished = "('" + TaskStatus.COMPLETE.name() + "', '" + TaskStatus.SKIP.name() + "')";
+        final String name = nameColumn();
+        List<String> statements = new ArrayList<>();
+        // a statement-level trigger handles a bulk insert with one lock per name rather than one per row
+        statements.add("CREATE OR REPLACE FUNCTION " + tableName + "_watermark_insert() RETURNS TRIGGER LANGUAGE plpgsql AS $$\n"
+                + "BEGIN\n"
+                + "    INSERT INTO " + watermarkTable + " (" + name + ", bucket_time)"
+                + " SELECT DISTINCT n." + name + ", '-infinity'::TIMESTAMPTZ FROM new_tasks n WHERE n.status IN " + unfinished
+                + " ORDER BY n." + name + " ON CONFLICT DO NOTHING;\n"
+                + "    PERFORM 1 FROM " + watermarkTable + " w"
+                + " WHERE w." + name + " IN (SELECT n." + name + " FROM new_tasks n WHERE n.status IN " + unfinished + ")"
+                + " ORDER BY w." + name + " FOR KEY SHARE;\n"
+                + "    UPDATE " + watermarkTable + " w SET bucket_time = n.bucket_time"
+                + " FROM (SELECT " + name + ", min(bucket_time) AS bucket_time FROM new_tasks WHERE status IN " + unfinished + " GROUP BY " + name + ") n"
+                + " WHERE w." + name + " = n." + name + " AND w.bucket_time > n.bucket_time;\n"
+                + "    RETURN NULL;\n"
+                + "END\n"
+                + "$$");
+        statements.add("CREATE OR REPLACE FUNCTION " + tableName + "_watermark_update() RETURNS TRIGGER LANGUAGE plpgsql AS $$\n"
+                + "DECLARE\n"
+                + "    v_watermark TIMESTAMPTZ;\n"
+                + "BEGIN\n"
+                + "    IF NEW.status IN " + unfinished + " THEN\n"
+                + "        INSERT INTO " + watermarkTable + " (" + name + ", bucket_time) VALUES (NEW." + name + ", '-infinity') ON CONFLICT DO NOTHING;\n"
+                + "        PERFORM 1 FROM " + watermarkTable + " WHERE " + name + " = NEW." + name + " FOR KEY SHARE;\n"
+                + "        UPDATE " + watermarkTable + " SET bucket_time = NEW.bucket_time WHERE " + name + " = NEW." + name + " AND bucket_time > NEW.bucket_time;\n"
+                + "        RETURN NULL;\n"
+                + "    END IF;\n"
+                + "    SELECT bucket_time INTO v_watermark FROM " + watermarkTable + " WHERE " + name + " = NEW." + name + " FOR UPDATE SKIP LOCKED;\n"
+                + "    IF NOT FOUND OR EXISTS (SELECT 1 FROM " + tableName
+                + " WHERE " + name + " = NEW." + name + " AND bucket_time = v_watermark AND status IN " + unfinished + ") THEN\n"
+                + "        RETURN NULL;\n"
+                + "    END IF;\n"
+                + "    UPDATE " + watermarkTable + " SET bucket_time = COALESCE("
+                + "(SELECT min(bucket_time) FROM " + tableName + " WHERE " + name + " = NEW." + name + " AND bucket_time > v_watermark AND status IN " + unfinished + "), "
+                + "GREATEST(v_watermark, (SELECT max(bucket_time) FROM " + tableName + " WHERE " + name + " = NEW." + name + ") + INTERVAL '1 microsecond'))"
+                + " WHERE " + name + " = NEW." + name + ";\n"
+                + "    RETURN NULL;\n"
+                + "END\n"
+                + "$$");
+        statements.add("DROP TRIGGER IF EXISTS " + unqualifiedTableName + "_watermark_insert ON " + tableName);
+        statements.add("CREATE TRIGGER " + unqualifiedTableName + "_watermark_insert AFTER INSERT ON " + tableName
+                + " REFERENCING NEW TABLE AS new_tasks FOR EACH STATEMENT EXECUTE PROCEDURE " + tableName + "_watermark_insert()");
+        statements.add("DROP TRIGGER IF EXISTS " + unqualifiedTableName + "_watermark_update ON " + tableName);
+        statements.add("CREATE TRIGGER " + unqualifiedTableName + "_watermark_update AFTER UPDATE OF status ON " + tableName
+                + " FOR EACH ROW WHEN ((OLD.status IN " + finished + ") IS DISTINCT FROM (NEW.status IN " + finished + "))"
+                + " EXECUTE PROCEDURE " + tableName + "_watermark_update()");
+        return statements;
+    }
+
+    /**
+     * Selects the watermark of a task name, or no row if it has none yet or has never advanced.
+     * @return
+     */
+    private String buildSelectWatermark() {
+        return "SELECT bucket_time FROM " + watermarkTableName() + " WHERE " + namePredicate() + " AND bucket_time > '-infinity'";
+    }
+
+    /**
+     * The table finished tasks are moved into once they pass the archive age, with the same columns as the task table.
+     */
+    String archiveTableName() {
+        return tableName + "_archive";
+    }
+
+    String createArchiveTable() {
+        return "CREATE TABLE IF NOT EXISTS " + archiveTableName() + " (LIKE " + tableName + " INCLUDING DEFAULTS)";
+    }
+
+    /**
+     * Moves up to <code>LIMIT ?</code> COMPLETE or SKIP tasks with a bucket time before <code>?</code> into the archive table.
+     * Tasks locked by another transaction are skipped and left for a later batch.
+     * @return
+     */
+    private String buildArchiveFinishedTasks() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("WITH batch AS (SELECT ").append(nameColumn()).append(", bucket_time FROM ");
+        sb.append(tableName);
+        sb.append(" WHERE status IN ('").append(TaskStatus.COMPLETE.name()).append("', '").append(TaskStatus.SKIP.name()).append("')");
+        sb.append(" AND bucket_time < ? LIMIT ? FOR UPDATE SKIP LOCKED),");
+        sb.append(" moved AS (DELETE FROM ");
+        sb.append(tableName);
+        sb.append(" t USING batch WHERE t.").append(nameColumn()).append("=batch.").append(nameColumn());
+        sb.append(" and t.bucket_time=batch.bucket_time RETURNING t.*)");
+        sb.append(" INSERT INTO ");
+        sb.append(archiveTableName());
+        sb.append(" SELECT * FROM moved");
+        return sb.toString();
+    }
+
+    /**
+     * Sets up to <code>LIMIT ?</code> AVAILABLE tasks with a bucket time before <code>?</code> to SKIP, with the message bound to the last parameter.
+     * Tasks locked by another transaction are skipped and left for a later batch.
+     * @return
+     */
+    private String buildSkipStaleTasks() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("WITH batch AS (SELECT ").append(nameColumn()).append(", bucket_time FROM ");
+        sb.append(tableName);
+        sb.append(" WHERE status = '").append(TaskStatus.AVAILABLE.name()).append("'");
+        sb.append(" AND bucket_time < ? LIMIT ? FOR UPDATE SKIP LOCKED)");
+        sb.append(" UPDATE ");
+        sb.append(tableName);
+        sb.append(" t SET status = '").append(TaskStatus.SKIP.name()).append("', message = ?");
+        sb.append(" FROM batch WHERE t.").append(nameColumn()).append("=batch.").append(nameColumn()).append(" and t.bucket_time=batch.bucket_time");
+        return sb.toString();
+    }
+
+    private String findOrCreateAndAcquireFunctionName() {
+        // the suffix keeps any schema qualification of the table, so the function lives next to it
+        return tableName + "_find_or_create_and_acquire";
+    }
+
+    /**
+     * Creates the SQL for the function that acquires the first available task in a backlog window or,
+     * if the backlog is empty, inserts the task for the current bucket already acquired.
+     * The backlog is acquired oldest first, which the primary key and the partial index on available tasks both serve without a sort.
+     * It runs inside the caller's transaction, which then holds the lock on the returned row exactly as
+     * {@link #updateAcquiredFirst(TaskQuery)} does.
+     * A transaction-scoped advisory lock on the new task's key stops concurrent callers from waiting on each other's uncommitted insert,
+     * and a caller that cannot take it simply gets no row back. The bucket time is keyed by its epoch,
+     * so callers with different session time zones agree on the key.
+     * With the compact schema, the name must be in the lookup table already, and the interval is a number of microseconds.
+     * @return
+     */
+    String createFindOrCreateAndAcquireFunction() {
+        // the compact schema looks the id of the name up once, into the variable standing in for the name
+        final String name = nameColumn();
+        final String nameValue = compact ? "v_name_id" : "p_name";
+        StringBuilder sb = new StringBuilder();
+        sb.append("CREATE OR REPLACE FUNCTION ");
+        sb.append(findOrCreateAndAcquireFunctionName());
+        sb.append("(p_name VARCHAR, p_bucket_start TIMESTAMPTZ, p_bucket_end TIMESTAMPTZ,");
+        sb.append(" p_bucket_time TIMESTAMPTZ, p_bucket_interval ").append(compact ? "BIGINT" : "INTERVAL");
+        sb.append(", p_acquired_by VARCHAR, p_acquired_at TIMESTAMPTZ)");
+        sb.append(" RETURNS SETOF ");
+        sb.append(tableName);
+        sb.append(" LANGUAGE plpgsql AS $$\n");
+        if (compact) {
+            sb.append("DECLARE\n");
+            sb.append("    v_name_id INTEGER := (SELECT id FROM ").append(nameTableName()).append(" WHERE name = p_name);\n");
+        }
+        sb.append("BEGIN\n");
+        sb.append("    RETURN QUERY UPDATE ").append(tableName).append(" t");
+        sb.append(" SET status = '").append(TaskStatus.ACQUIRED.name()).append("', acquired_by = p_acquired_by, acquired_at = p_acquired_at");
+        sb.append(" WHERE (t.").append(name).append(", t.bucket_time) = (SELECT b.").append(name).append(", b.bucket_time FROM ").append(tableName).append(" b");
+        sb.append(" WHERE b.").append(name).append(" = ").append(nameValue);
+        sb.append(" AND b.bucket_time >= p_bucket_start AND b.bucket_time < p_bucket_end");
+        if (watermarks) {
+            sb.append(" AND b.bucket_time >= COALESCE((SELECT w.bucket_time FROM ").append(watermarkTableName()).append(" w WHERE w.").append(name);
+            sb.append(" = ").append(nameValue).append("), '-infinity')");
+        }
+        sb.append(" AND b.status = '").append(TaskStatus.AVAILABLE.name()).append("'");
+        sb.append(" ORDER BY b.bucket_time FOR UPDATE SKIP LOCKED LIMIT 1) RETURNING t.*;\n");
+        sb.append("    IF FOUND THEN\n");
+        sb.append("        RETURN;\n");
+        sb.append("    END IF;\n");
+        sb.append("    IF NOT pg_try_advisory_xact_lock(hashtext(p_name), hashtext(extract(epoch FROM p_bucket_time)::TEXT)) THEN\n");
+        sb.append("        RETURN;\n");
+        sb.append("    END IF;\n");
+        sb.append("    RETURN QUERY INSERT INTO ").append(tableName);
+        sb.append(" (").append(name).append(", bucket_time, bucket_interval, status, created_by, created_at, acquired_by, acquired_at)");
+        sb.append(" VALUES (").append(nameValue).append(", p_bucket_time, p_bucket_interval, '").append(TaskStatus.ACQUIRED.name()).append("',");
+        sb.append(" p_acquired_by, p_acquired_at, p_acquired_by, p_acquired_at)");
+        sb.append(" ON CONFLICT DO NOTHING RETURNING *;\n");
+        sb.append("END\n");
+        sb.append("$$");
+        return sb.toString();
+    }
+
+    /**
+     * Calls the function created by {@link #createFindOrCreateAndAcquireFunction()}.
+     * A <code>null</code> bucket start or end leaves that side of the backlog window open.
+     * @return
+     */
+    private String buildFindOrCreateAndAcquire() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        sb.append(allColumns());
+        sb.append(" FROM ");
+        sb.append(findOrCreateAndAcquireFunctionName());
+        sb.append("(?, COALESCE(?, '-infinity'::TIMESTAMPTZ), COALESCE(?, 'infinity'::TIMESTAMPTZ), ?, ?, ?, ?)");
+        return sb.toString();
+    }
+
     /**
      * Creates the SQL to determine if the tasks table exists.
      * @return
@@ -80,12 +788,55 @@ public class SqlBuilder {
      * Typically used to create a task without acquiring it immediately.
      * @return
      */
-    String insertMinimalTask() {
+    private String buildInsertMinimalTask() {
+        StringBuilder sb = new StringBuilder("INSERT INTO ");
+        sb.append(tableName);
+        sb.append(" (");
+        sb.append(minimalColumns());
+        sb.append(") VALUES (").append(nameParameter()).append(",?,?,").append(statusParameter()).append(",?,?)");
+        return sb.toString();
+    }
+
+    /**
+     * Inserts one task per element of the bucket time array bound to the last parameter, skipping tasks that already exist.
+     * Returns the bucket times of the tasks that were actually inserted.
+     * @return
+     */
+    private String buildInsertMinimalTasks() {
+        StringBuilder sb = new StringBuilder("INSERT INTO ");
+        sb.append(tableName);
+        sb.append(" (");
+        sb.append(minimalColumns());
+        sb.append(") SELECT ").append(nameParameter()).append(", b, ?, ").append(statusParameter()).append(", ?, ? FROM unnest(?::TIMESTAMPTZ[]) AS b");
+        sb.append(" ON CONFLICT DO NOTHING RETURNING bucket_time");
+        return sb.toString();
+    }
+
+    /**
+     * Inserts a task for each bucket from the start up to, but excluding, the end that does not have one yet, and returns nothing.
+     * The buckets are generated by <code>generate_series</code> and anti-joined with the existing tasks, so only missing buckets are inserted,
+     * and <code>ON CONFLICT DO NOTHING</code> skips any bucket a concurrent writer inserts first.
+     * Binds the status, created by, and created at, then the name, start, end, and interval.
+     * Days and months in the interval are added in the session time zone. With the compact schema the interval is a number of microseconds.
+     * @return
+     */
+    private String buildInsertMissingTasks() {
+        final String name = nameColumn();
         StringBuilder sb = new StringBuilder("INSERT INTO ");
         sb.append(tableName);
         sb.append(" (");
-        sb.append(MINIMAL_COLUMNS);
-        sb.append(") VALUES (?,?,?,?,?,?)");
+        sb.append(minimalColumns());
+        sb.append(") SELECT p.").append(name).append(", g, p.bucket_interval, ").append(statusParameter()).append(", ?, ?");
+        sb.append(" FROM (SELECT ").append(compact ? nameParameter() : "?::VARCHAR").append(" AS ").append(name);
+        sb.append(", ?::TIMESTAMPTZ AS bucket_start, ?::TIMESTAMPTZ AS bucket_end, ");
+        sb.append(compact ? "?::BIGINT" : "?::INTERVAL").append(" AS bucket_interval) p");
+        sb.append(" CROSS JOIN generate_series(p.bucket_start, p.bucket_end, ");
+        sb.append(compact ? "p.bucket_interval * INTERVAL '1 microsecond'" : "p.bucket_interval").append(") AS g");
+        sb.append(" WHERE g < p.bucket_end AND NOT EXISTS (SELECT 1 FROM ");
+        sb.append(tableName);
+        sb.append(" t WHERE t.").append(name).append(" = p.").append(name).append(" AND t.bucket_time = g)");
+        // inserted in key order, like bulk creates, so overlapping fills lock keys in the same order
+        sb.append(" ORDER BY g ON CONFLICT DO NOTHING");
         return sb.toString();
     }
 
@@ -94,143 +845,996 @@ public class SqlBuilder {
      * Typically used to create a task and immediately acquire it.
      * @return
      */
-    String insertFullTask() {
+    private String buildInsertFullTask() {
         StringBuilder sb = new StringBuilder("INSERT INTO ");
         sb.append(tableName);
         sb.append(" (");
-        sb.append(ALL_COLUMNS);
+        sb.append(allColumns());
         sb.append(") VALUES (?,?,?,?,?,?,?,?)");
         return sb.toString();
     }
 
-    String selectTask() {
+    private String buildSelectTask() {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
-        sb.append(ALL_COLUMNS);
+        sb.append(allColumns());
         sb.append(" FROM ");
         sb.append(tableName);
-        sb.append(" WHERE name=? and bucket_time=?");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=?");
         return sb.toString();
     }
 
-    String selectForUpdateNoWait() {
+    private String buildSelectForUpdateNoWait() {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
-        sb.append(ALL_COLUMNS);
+        sb.append(allColumns());
         sb.append(" FROM ");
         sb.append(tableName);
-        sb.append(" WHERE name=? and bucket_time=? FOR UPDATE NOWAIT");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=? FOR UPDATE NOWAIT");
         return sb.toString();
     }
 
-    String selectForUpdateSkipLocked() {
+    private String buildSelectForUpdateSkipLocked() {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
-        sb.append(ALL_COLUMNS);
+        sb.append(allColumns());
         sb.append(" FROM ");
         sb.append(tableName);
-        sb.append(" WHERE name=? and bucket_time=? FOR UPDATE SKIP LOCKED");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=? FOR UPDATE SKIP LOCKED");
         return sb.toString();
     }
 
-    String updateAcquired() {
+    /**
+     * Locks a specific task, or fails immediately if it is already locked, and marks it acquired in the same statement.
+     * @return
+     */
+    private String buildUpdateAcquired() {
         StringBuilder sb = new StringBuilder();
         sb.append("UPDATE ");
         sb.append(tableName);
-        sb.append(" SET status=?, acquired_by=?, acquired_at=?");
-        sb.append(" WHERE name=? and bucket_time=?");
+        sb.append(" SET status=").append(statusParameter()).append(", acquired_by=?, acquired_at=?");
+        sb.append(" WHERE (").append(nameColumn()).append(", bucket_time) = (SELECT ").append(nameColumn()).append(", bucket_time FROM ");
+        sb.append(tableName);
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=? FOR UPDATE NOWAIT)");
+        sb.append(" RETURNING ");
+        sb.append(allColumns());
         return sb.toString();
     }
 
-    String updateStatus() {
+    private String buildUpdateStatus() {
         StringBuilder sb = new StringBuilder();
         sb.append("UPDATE ");
         sb.append(tableName);
-        sb.append(" SET status=?");
-        sb.append(" WHERE name=? and bucket_time=?");
+        sb.append(" SET status=").append(statusParameter());
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=?");
         return sb.toString();
     }
 
-    String updateStatusAndMessage() {
+    private String buildUpdateStatusAndMessage() {
         StringBuilder sb = new StringBuilder();
         sb.append("UPDATE ");
         sb.append(tableName);
-        sb.append(" SET status=?, message=?");
-        sb.append(" WHERE name=? and bucket_time=?");
+        sb.append(" SET status=").append(statusParameter()).append(", message=?");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=?");
         return sb.toString();
     }
 
-    String updateStatusAndMessageIncrementFailCount() {
+    private String buildUpdateStatusAndMessageIncrementFailCount() {
         StringBuilder sb = new StringBuilder();
         sb.append("UPDATE ");
         sb.append(tableName);
-        sb.append(" SET status=?, message=?, fail_count=fail_count+1");
-        sb.append(" WHERE name=? and bucket_time=?");
+        sb.append(" SET status=").append(statusParameter()).append(", message=?, fail_count=fail_count+1");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=?");
         return sb.toString();
     }
 
-    String updateStatusMessageCompletedAt() {
+    private String buildUpdateStatusMessageCompletedAt() {
         StringBuilder sb = new StringBuilder();
         sb.append("UPDATE ");
         sb.append(tableName);
-        sb.append(" SET status=?, completed_at=?, message=?");
-        sb.append(" WHERE name=? and bucket_time=?");
+        sb.append(" SET status=").append(statusParameter()).append(", completed_at=?, message=?");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=?");
         return sb.toString();
     }
 
-    String taskQueryToSql(TaskQuery taskQuery) {
+    /**
+     * Takes a lease on a specific task, provided nobody else holds an unexpired lease on it.
+     * The lease duration is bound in milliseconds so the expiry is computed from the database clock.
+     * @return
+     */
+    private String buildUpdateAcquiredLease() {
         StringBuilder sb = new StringBuilder();
-        sb.append("SELECT ");
-        sb.append(ALL_COLUMNS);
-        sb.append(" FROM ");
+        sb.append("UPDATE ");
         sb.append(tableName);
-        List<String> predicates = new ArrayList<>();
+        sb.append(" SET status=").append(statusParameter()).append(", acquired_by=?, acquired_at=?, lease_owner=?, lease_expires_at=now() + ? * INTERVAL '1 millisecond'");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=? and (lease_expires_at IS NULL or lease_expires_at < now())");
+        sb.append(" RETURNING lease_expires_at");
+        return sb.toString();
+    }
 
-        if (taskQuery.getName() != null) {
-            predicates.add("name='" + taskQuery.getName() + "'");
-        }
-        if (taskQuery.getBucketStartTime() != null) {
-            predicates.add("bucket_time >= '" + PostgresqlTimeUtils.toPostgresqlTimestampWithTz(taskQuery.getBucketStartTime()) + "'::TIMESTAMPTZ");
-        }
-        if (taskQuery.getBucketEndTime() != null) {
-            predicates.add("bucket_time < '" + PostgresqlTimeUtils.toPostgresqlTimestampWithTz(taskQuery.getBucketEndTime()) + "'::TIMESTAMPTZ");
-        }
-        if (taskQuery.getAcquiredAtStartTime() != null) {
-            predicates.add("acquired_at >= '" + PostgresqlTimeUtils.toPostgresqlTimestampWithTz(taskQuery.getAcquiredAtStartTime()) + "'::TIMESTAMPTZ");
+    /**
+     * Atomically finds the first task satisfying the query, locks it, and marks it acquired.
+     * The three SET parameters come first, followed by the query parameters bound with {@link #bindAcquirableRows}.
+     * @param taskQuery
+     * @return
+     */
+    String updateAcquiredFirst(TaskQuery taskQuery) {
+        return taskQueryStatement(UPDATE_ACQUIRED_FIRST, taskQuery, 0);
+    }
+
+    /**
+     * Atomically finds up to <code>LIMIT ?</code> tasks satisfying the query, locks them, and marks them acquired.
+     * The query parameters bound with {@link #bindAcquirableRows} come first, followed by the limit and the three SET parameters.
+     * Each row is returned with the status it had before it was acquired in an extra last column.
+     * @param taskQuery
+     * @return
+     */
+    String updateAcquiredBatch(TaskQuery taskQuery) {
+        return taskQueryStatement(UPDATE_ACQUIRED_BATCH, taskQuery, 0);
+    }
+
+    /**
+     * Atomically finds the first task satisfying the query, whose lease is free or expired, and takes a lease on it.
+     * The five SET parameters come first, followed by the query parameters bound with {@link #bindAcquirableRows}.
+     * @param taskQuery
+     * @return
+     */
+    String updateAcquiredLeaseFirst(TaskQuery taskQuery) {
+        return taskQueryStatement(UPDATE_ACQUIRED_LEASE_FIRST, taskQuery, RECLAIM_EXPIRED_LEASES);
+    }
+
+    /**
+     * Atomically finds up to <code>LIMIT ?</code> tasks satisfying the query, whose leases are free or expired, and takes a lease on all of them.
+     * The lease owner is shared by every task in the batch.
+     * The query parameters bound with {@link #bindAcquirableRows} come first, followed by the limit and the five SET parameters.
+     * @param taskQuery
+     * @return
+     */
+    String updateAcquiredLeaseBatch(TaskQuery taskQuery) {
+        return taskQueryStatement(UPDATE_ACQUIRED_LEASE_BATCH, taskQuery, RECLAIM_EXPIRED_LEASES);
+    }
+
+    /**
+     * Atomically finds up to <code>LIMIT ?</code> tasks satisfying the query whose advisory locks are free, takes the session-level locks, and marks them acquired.
+     * Tasks whose keys are bound in two arrays, names followed by bucket times, are skipped: they are held by this session already,
+     * and advisory locks are reentrant within a session.
+     * The query parameters and the held keys, bound with {@link #bindAcquirableRows}, come first, then the limit and the four SET parameters.
+     * @param taskQuery
+     * @return
+     * @see #buildUpdateAcquiredAdvisoryLock(List, boolean, String, int)
+     */
+    String updateAcquiredAdvisoryLockBatch(TaskQuery taskQuery) {
+        return taskQueryStatement(UPDATE_ACQUIRED_ADVISORY_LOCK_BATCH, taskQuery, RECLAIM_UNLOCKED);
+    }
+
+    /**
+     * The key of the session-level advisory lock on a task.
+     * The single bigint form keeps these locks apart from the two-key transaction locks taken when creating tasks,
+     * and the bucket time is keyed by its epoch so the key does not depend on the session time zone.
+     * Every task manager sharing the table uses the same schema, so they agree on the keys.
+     */
+    private String advisoryLockKey(String alias) {
+        // with the compact schema the id of the name needs no hashing
+        final String name = compact ? alias + ".name_id" : "hashtext(" + alias + ".name)";
+        return "(" + name + "::BIGINT << 32) | (hashtext(extract(epoch FROM " + alias + ".bucket_time)::TEXT)::BIGINT & 4294967295)";
+    }
+
+    /**
+     * Tries the advisory lock on each candidate in turn until the limit is reached, then marks the locked tasks acquired,
+     * with an infinite lease expiry so lease-aware statements treat them as held.
+     * The candidates subquery is fenced with OFFSET 0 so the lock is only ever tried on rows that satisfy every predicate.
+     * With a fairness policy each name locks its own offers, as do the available and reclaimable rows of an ordered acquisition,
+     * and only the first <code>limit</code> of them are updated.
+     * A candidate finished by another session between the snapshot and the lock fails the status recheck and is not updated;
+     * it is returned with <code>false</code> in the last column so its lock can be released, as is an offer left over beyond the limit.
+     * Updated rows have the status they had before being acquired in column 14 and <code>true</code> in the last column.
+     * @param predicates
+     * @param excludeHeld whether to skip the keys bound in two arrays following the predicates
+     * @param limit
+     * @param shape the shape of the query, for the order in which the locks are tried and the fairness policy
+     * @return
+     */
+    private String buildUpdateAcquiredAdvisoryLock(List<String> predicates, boolean excludeHeld, String limit, int shape) {
+        List<String> candidatePredicates = new ArrayList<>(predicates);
+        final String name = nameColumn();
+        if (excludeHeld) {
+            candidatePredicates.add("(" + name + ", bucket_time) NOT IN (" + selectKeys() + ")");
         }
-        if (taskQuery.getAcquiredAtEndTime() != null) {
-            predicates.add("acquired_at < '" + PostgresqlTimeUtils.toPostgresqlTimestampWithTz(taskQuery.getAcquiredAtEndTime()) + "'::TIMESTAMPTZ");
+        final boolean offered = isOffered(shape);
+        StringBuilder sb = new StringBuilder();
+        sb.append("WITH locked AS (");
+        if (offered) {
+            sb.append(offers(shape, candidatePredicates, true));
+            sb.append("), chosen AS (SELECT ").append(name).append(", bucket_time, status FROM locked");
+            sb.append(offerOrder(shape));
+            sb.append(" LIMIT ");
+            sb.append(limit);
+        } else {
+            sb.append(lockedScan(shape, candidatePredicates, true, limit));
         }
-        if (taskQuery.getStatuses() != null && !taskQuery.getStatuses().isEmpty()) {
-            List<String> status_predicates = new ArrayList<String>();
-            taskQuery.getStatuses().stream().forEach(s -> status_predicates.add(" status = '" + s.name() + "'"));
-            predicates.add("(" + Joiner.on(" OR ").join(status_predicates) + ")");
+        sb.append("),");
+        final String from = offered ? "chosen" : "locked";
+        sb.append(" updated AS (UPDATE ");
+        sb.append(tableName);
+        sb.append(" t SET status=").append(statusParameter()).append(", acquired_by=?, acquired_at=?, lease_owner=?, lease_expires_at='infinity'");
+        sb.append(" FROM ").append(from).append(" WHERE t.").append(name).append("=").append(from).append(".").append(name);
+        sb.append(" and t.bucket_time=").append(from).append(".bucket_time and t.status=").append(from).append(".status");
+        sb.append(" RETURNING ");
+        sb.append(qualifiedColumns("t"));
+        sb.append(", ").append(from).append(".status AS previous_status)");
+        sb.append(" SELECT ");
+        sb.append(allColumns());
+        sb.append(", previous_status, true FROM updated");
+        sb.append(" UNION ALL SELECT locked.").append(name).append(", locked.bucket_time");
+        for (int i = 2; i < allColumns().split(", ").length; ++i) {
+            sb.append(", NULL");
+        }
+        sb.append(", NULL, false FROM locked");
+        sb.append(" WHERE NOT EXISTS (SELECT 1 FROM updated WHERE updated.").append(name).append("=locked.").append(name);
+        sb.append(" and updated.bucket_time=locked.bucket_time)");
+        return sb.toString();
+    }
+
+    private String buildAdvisoryUnlock() {
+        final String name = compact ? nameParameter() : "?::VARCHAR";
+        return "SELECT pg_advisory_unlock(" + advisoryLockKey("k") + ") FROM (SELECT " + name + " AS " + nameColumn() + ", ?::TIMESTAMPTZ AS bucket_time) k";
+    }
+
+    /**
+     * Selects the keys bound in two parallel arrays, names followed by bucket times, with the compact schema by id.
+     * Names that are not in the lookup table have no tasks, and are left out.
+     */
+    private String selectKeys() {
+        if (compact) {
+            return "SELECT n.id AS name_id, k.bucket_time FROM unnest(?::VARCHAR[], ?::TIMESTAMPTZ[]) AS k(name, bucket_time)"
+                    + " JOIN " + nameTableName() + " n ON n.name=k.name";
+        }
+        return "SELECT k.name, k.bucket_time FROM unnest(?::VARCHAR[], ?::TIMESTAMPTZ[]) AS k(name, bucket_time)";
+    }
+
+    private String setAcquired(boolean lease) {
+        return lease
+                ? " SET status=" + statusParameter() + ", acquired_by=?, acquired_at=?, lease_owner=?, lease_expires_at=now() + ? * INTERVAL '1 millisecond'"
+                : " SET status=" + statusParameter() + ", acquired_by=?, acquired_at=?";
+    }
+
+    private List<String> acquirablePredicates(int shape, boolean lease) {
+        List<String> predicates = taskQueryPredicates(shape);
+        if (lease) {
+            predicates.add("(lease_expires_at IS NULL OR lease_expires_at < now())");
+        }
+        return predicates;
+    }
+
+    private String buildUpdateAcquiredFirst(int shape, boolean lease) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("UPDATE ");
+        sb.append(tableName);
+        sb.append(setAcquired(lease));
+        sb.append(" WHERE (").append(nameColumn()).append(", bucket_time) = (SELECT ").append(nameColumn()).append(", bucket_time FROM ");
+        sb.append(acquirableRows(shape, acquirablePredicates(shape, lease), "1"));
+        sb.append(")");
+        sb.append(" RETURNING ");
+        sb.append(allColumns());
+        return sb.toString();
+    }
+
+    private String buildUpdateAcquiredBatch(int shape, boolean lease) {
+        StringBuilder sb = new StringBuilder();
+        // a CTE using FOR UPDATE is never inlined, so the batch is locked exactly once
+        sb.append("WITH claimed AS (SELECT ").append(nameColumn()).append(", bucket_time, status FROM ");
+        sb.append(acquirableRows(shape, acquirablePredicates(shape, lease), "?"));
+        sb.append(")");
+        sb.append(" UPDATE ");
+        sb.append(tableName);
+        sb.append(" t");
+        sb.append(setAcquired(lease));
+        sb.append(" FROM claimed WHERE t.").append(nameColumn()).append("=claimed.").append(nameColumn()).append(" and t.bucket_time=claimed.bucket_time");
+        sb.append(" RETURNING ");
+        sb.append(qualifiedColumns("t"));
+        sb.append(", claimed.status");
+        return sb.toString();
+    }
+
+    /**
+     * The <code>ORDER BY</code> of the rows an acquisition locks, or nothing when the query does not specify an order.
+     * Tasks with the same bucket time are not ordered by name, so a backlog query on one name walks the partial index on available tasks,
+     * or with priority order {@link TaskIndex#AVAILABLE_PRIORITY}, and a query across names {@link TaskIndex#AVAILABLE_ANY_NAME}
+     * or {@link TaskIndex#AVAILABLE_PRIORITY_ANY_NAME}, in index order and stops at the limit without sorting.
+     * @param shape
+     * @return
+     */
+    private static String acquisitionOrder(int shape) {
+        if ((shape & OLDEST_FIRST) != 0) {
+            return " ORDER BY bucket_time";
+        } else if ((shape & NEWEST_FIRST) != 0) {
+            return " ORDER BY bucket_time DESC";
+        } else if ((shape & PRIORITY_FIRST) != 0) {
+            return " ORDER BY priority DESC, bucket_time";
+        }
+        return "";
+    }
+
+    /**
+     * The rows an acquisition locks, skipping rows locked by someone else, in the order it takes them, following a <code>SELECT ... FROM</code> of the key columns and status.
+     * With a fairness policy, or an order and ACQUIRED tasks to reclaim, the rows are taken from {@link #offers}.
+     * @param shape
+     * @param predicates
+     * @param limit the number of rows taken
+     * @return
+     * @see #bindAcquirableRows
+     */
+    private String acquirableRows(int shape, List<String> predicates, String limit) {
+        if (!isOffered(shape)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(tableName);
+            if (!predicates.isEmpty()) {
+                sb.append(" WHERE ");
+                sb.append(Joiner.on(" AND ").join(predicates));
+            }
+            sb.append(acquisitionOrder(shape));
+            sb.append(" FOR UPDATE SKIP LOCKED LIMIT ");
+            sb.append(limit);
+            return sb.toString();
+        }
+        return "(" + offers(shape, predicates, false) + ") o" + offerOrder(shape) + " LIMIT " + limit;
+    }
+
+    /**
+     * Selects the key columns and status of the rows satisfying the predicates in the acquisition order,
+     * locking them, skipping rows locked by someone else, or trying their advisory locks, until the limit is reached.
+     * The priority follows when the order needs it, so the rows of several scans can be put back in order.
+     * @param shape
+     * @param predicates
+     * @param advisory whether to take advisory locks, which leave a row alone unless its lock is free, rather than row locks
+     * @param limit
+     * @return
+     */
+    private String lockedScan(int shape, List<String> predicates, boolean advisory, String limit) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        if (advisory) {
+            sb.append("c.* FROM (SELECT ");
         }
+        sb.append(nameColumn()).append(", bucket_time, status");
+        if ((shape & PRIORITY_FIRST) != 0) {
+            sb.append(", priority");
+        }
+        sb.append(" FROM ");
+        sb.append(tableName);
+        if (!predicates.isEmpty()) {
+            sb.append(" WHERE ");
+            sb.append(Joiner.on(" AND ").join(predicates));
+        }
+        sb.append(scanOrder(shape));
+        if (advisory) {
+            sb.append(" OFFSET 0) c WHERE pg_try_advisory_lock(");
+            sb.append(advisoryLockKey("c"));
+            sb.append(")");
+        } else {
+            sb.append(" FOR UPDATE SKIP LOCKED");
+        }
+        sb.append(" LIMIT ");
+        sb.append(limit);
+        return sb.toString();
+    }
+
+    /**
+     * Whether an acquisition takes its rows from {@link #offers}, rather than from a single locked scan.
+     */
+    private static boolean isOffered(int shape) {
+        return (shape & IN_TURNS) != 0 || isSplit(shape);
+    }
+
+    /**
+     * Whether an ordered acquisition of available tasks that also reclaims ACQUIRED ones scans the two apart.
+     * A single scan would have to match <code>status = 'AVAILABLE' OR status = 'ACQUIRED'</code>, which none of the partial indexes on available tasks can serve,
+     * so it would either sort every match or walk the primary key through the finished tasks. Instead the available rows come from the same index range scan
+     * as in {@link AcquisitionMode#TRANSACTION} mode, and the reclaimable rows, which are at most the tasks in flight, are sorted on their own.
+     * Other sets of statuses keep the single scan, since no partial index serves them either way.
+     */
+    private static boolean isSplit(int shape) {
+        return (shape & AVAILABLE_ONLY) != 0 && (shape & (RECLAIM_EXPIRED_LEASES | RECLAIM_UNLOCKED)) != 0
+                && (shape & (OLDEST_FIRST | NEWEST_FIRST | PRIORITY_FIRST | IN_TURNS)) != 0;
+    }
+
+    /**
+     * Selects the locked rows an acquisition chooses from with {@link #offerOrder}, with their key columns and status.
+     * When the acquisition {@link #isSplit splits}, the available and the reclaimable rows are each locked by a scan with its own <code>LIMIT ?</code>.
+     * With a fairness policy, the rows also have their <code>turn</code> and the <code>ord</code> of their name.
+     * The names bound as an array take turns: each name offers its first <code>LIMIT ?</code> rows in the acquisition order that nobody else holds, at most the number of tasks wanted, numbered as its turns. The offers are taken turn by turn, in the order of the names within a turn, with {@link #offerOrder}.
+     * Every offer is a range scan of the same index as an acquisition for that name alone, so a name with a deep backlog costs no more than the others.
+     * Rows left over once the limit is reached are locked too: row locks last until the acquiring transaction ends, and advisory locks until they are released.
+     * @param shape
+     * @param predicates
+     * @param advisory whether to take advisory locks rather than row locks
+     * @return
+     * @see #bindAcquirableRows
+     */
+    private String offers(int shape, List<String> predicates, boolean advisory) {
+        if ((shape & IN_TURNS) == 0) {
+            return splitScans(shape, predicates, advisory);
+        }
+        final String name = nameColumn();
+        List<String> offerPredicates = new ArrayList<>();
+        offerPredicates.add(name + " = s." + name);
+        offerPredicates.addAll(predicates);
+        StringBuilder sb = new StringBuilder();
+        // the lock is taken inside the offers, where a window function may not go, so the turns are numbered outside them
+        sb.append("SELECT f.*, row_number() OVER (PARTITION BY s.ord").append(scanOrder(shape)).append(") AS turn, s.ord FROM (");
+        sb.append(selectNameTurns());
+        sb.append(") s CROSS JOIN LATERAL (");
+        sb.append(isSplit(shape) ? splitScans(shape, offerPredicates, advisory) : lockedScan(shape, offerPredicates, advisory, "?"));
+        sb.append(") f");
+        return sb.toString();
+    }
+
+    /**
+     * Selects the rows locked by two {@link #lockedScan locked scans}, one of the available rows and one of the reclaimable rows, each up to <code>LIMIT ?</code>.
+     * A locking clause may not be applied to a <code>UNION</code>, so each scan is a subquery of its own.
+     * @param shape
+     * @param predicates predicates that match both, with the status predicate built by {@link #taskQueryPredicates}
+     * @param advisory
+     * @return
+     */
+    private String splitScans(int shape, List<String> predicates, boolean advisory) {
+        final String statusPredicate = reclaimingStatusPredicate(shape);
+        List<String> available = new ArrayList<>(predicates);
+        available.set(available.indexOf(statusPredicate), AVAILABLE_PREDICATE);
+        List<String> reclaimable = new ArrayList<>(predicates);
+        reclaimable.set(reclaimable.indexOf(statusPredicate), reclaimablePredicate(shape));
+        return "SELECT * FROM (" + lockedScan(shape, available, advisory, "?") + ") a UNION ALL SELECT * FROM ("
+                + lockedScan(shape, reclaimable, advisory, "?") + ") r";
+    }
+
+    /**
+     * The <code>ORDER BY</code> of the rows a scan locks: the acquisition order, or in turns, when the query does not specify one, oldest first.
+     */
+    private static String scanOrder(int shape) {
+        return (shape & (OLDEST_FIRST | NEWEST_FIRST | PRIORITY_FIRST)) == 0 && (shape & IN_TURNS) != 0 ? " ORDER BY bucket_time" : acquisitionOrder(shape);
+    }
+
+    /**
+     * The <code>ORDER BY</code> in which the rows from {@link #offers} are taken.
+     */
+    private static String offerOrder(int shape) {
+        return (shape & IN_TURNS) != 0 ? " ORDER BY turn, ord" : acquisitionOrder(shape);
+    }
+
+    /**
+     * Selects the names bound as an array, with their position in the array, with the compact schema by id.
+     * Names that are not in the lookup table have no tasks, and are left out.
+     */
+    private String selectNameTurns() {
+        if (compact) {
+            return "SELECT nt.id AS name_id, n.ord FROM unnest(?::VARCHAR[]) WITH ORDINALITY AS n(name, ord) JOIN " + nameTableName() + " nt ON nt.name = n.name";
+        }
+        return "SELECT n.name, n.ord FROM unnest(?::VARCHAR[]) WITH ORDINALITY AS n(name, ord)";
+    }
+
+    /**
+     * Binds the parameters of the rows an acquisition takes.
+     * Without a fairness policy, these are the query parameters, bound with {@link #bindTaskQuery}, followed by the held keys, if any.
+     * With one, the names in turn order come first, then the query parameters, the held keys, and the number of rows offered by each name.
+     * An acquisition that {@link #isSplit splits} binds the query parameters, the held keys and the number of rows once for each of its two scans.
+     * @param pstmt
+     * @param index the index of the first parameter
+     * @param taskQuery
+     * @param reclaim whether the acquisition also reclaims ACQUIRED tasks, as in {@link AcquisitionMode#LEASE} and {@link AcquisitionMode#ADVISORY_LOCK} modes
+     * @param turns the names in turn order, or <code>null</code> without a fairness policy
+     * @param maxTasks the maximum number of tasks acquired
+     * @param heldTasks the tasks whose keys are excluded, or <code>null</code>
+     * @return the index of the parameter following the rows' parameters
+     * @throws SQLException
+     */
+    int bindAcquirableRows(PreparedStatement pstmt, int index, TaskQuery taskQuery, boolean reclaim, List<String> turns, int maxTasks, Collection<? extends Task> heldTasks) throws SQLException {
+        // both ways of reclaiming split alike
+        final int shape = acquisitionShapeOf(taskQuery, reclaim ? RECLAIM_UNLOCKED : 0);
+        if (turns != null) {
+            pstmt.setArray(index++, pstmt.getConnection().createArrayOf("varchar", turns.toArray(new String[0])));
+        }
+        for (int scan = isSplit(shape) ? 2 : 1; scan > 0; --scan) {
+            index = bindTaskQuery(pstmt, index, taskQuery);
+            if (heldTasks != null) {
+                index = bindTaskKeys(pstmt, index, heldTasks);
+            }
+            if (isOffered(shape)) {
+                pstmt.setInt(index++, maxTasks);
+            }
+        }
+        return index;
+    }
 
+    /**
+     * Sets the priority of the tasks satisfying the query to the value bound to the last parameter,
+     * skipping tasks locked by another transaction. The query parameters are bound first with {@link #bindTaskQuery}.
+     * @param taskQuery
+     * @return
+     */
+    String updatePriority(TaskQuery taskQuery) {
+        return taskQueryStatement(UPDATE_PRIORITY, taskQuery, 0);
+    }
+
+    private String buildUpdatePriority(int shape) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("WITH batch AS (SELECT ").append(nameColumn()).append(", bucket_time FROM ");
+        sb.append(tableName);
+        List<String> predicates = taskQueryPredicates(shape);
         if (!predicates.isEmpty()) {
             sb.append(" WHERE ");
             sb.append(Joiner.on(" AND ").join(predicates));
         }
+        sb.append(" FOR UPDATE SKIP LOCKED)");
+        sb.append(" UPDATE ");
+        sb.append(tableName);
+        sb.append(" t SET priority = ?");
+        sb.append(" FROM batch WHERE t.").append(nameColumn()).append("=batch.").append(nameColumn()).append(" and t.bucket_time=batch.bucket_time");
+        return sb.toString();
+    }
+
+    private String buildUpdateLeaseExpiry() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("UPDATE ");
+        sb.append(tableName);
+        sb.append(" SET lease_expires_at=now() + ? * INTERVAL '1 millisecond'");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=? and lease_owner=?");
+        return sb.toString();
+    }
+
+    /**
+     * Expires a lease without changing the status, so the task can be reclaimed immediately.
+     * @return
+     */
+    private String buildExpireLease() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("UPDATE ");
+        sb.append(tableName);
+        sb.append(" SET lease_expires_at=now()");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=? and lease_owner=?");
+        return sb.toString();
+    }
+
+    private String buildUpdateStatusAndMessageReleaseLease() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("UPDATE ");
+        sb.append(tableName);
+        sb.append(" SET status=").append(statusParameter()).append(", message=?, lease_owner=NULL, lease_expires_at=NULL");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=? and lease_owner=?");
+        return sb.toString();
+    }
+
+    private String buildUpdateStatusAndMessageIncrementFailCountReleaseLease() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("UPDATE ");
+        sb.append(tableName);
+        sb.append(" SET status=").append(statusParameter()).append(", message=?, fail_count=fail_count+1, lease_owner=NULL, lease_expires_at=NULL");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=? and lease_owner=?");
+        return sb.toString();
+    }
 
+    private String buildUpdateStatusMessageCompletedAtReleaseLease() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("UPDATE ");
+        sb.append(tableName);
+        sb.append(" SET status=").append(statusParameter()).append(", completed_at=?, message=?, lease_owner=NULL, lease_expires_at=NULL");
+        sb.append(" WHERE ").append(namePredicate()).append(" and bucket_time=? and lease_owner=?");
         return sb.toString();
     }
 
-    String selectTasks(Set<Task> tasks) {
+    /**
+     * Selects the tasks satisfying the query, in its order, from its keyset, and up to its limit.
+     * The query parameters are bound with {@link #bindTaskQuery}, followed by those bound with {@link #bindPage}.
+     * @param taskQuery
+     * @return
+     */
+    String taskQueryToSql(TaskQuery taskQuery) {
+        return taskQueryStatement(SELECT, taskQuery, 0);
+    }
+
+    private String buildSelect(int shape) {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
-        sb.append(ALL_COLUMNS);
+        sb.append(allColumns());
         sb.append(" FROM ");
         sb.append(tableName);
-        sb.append(" WHERE ");
+        List<String> predicates = taskQueryPredicates(shape);
+        final boolean newestFirst = (shape & NEWEST_FIRST) != 0;
+        if ((shape & AFTER) != 0) {
+            // with one name, the keyset is the bucket time alone, which bounds the primary key scan
+            if ((shape & NAME) != 0) {
+                predicates.add(newestFirst ? "bucket_time < ?" : "bucket_time > ?");
+            } else {
+                predicates.add("(bucket_time, " + nameColumn() + (newestFirst ? ") < (?, " : ") > (?, ") + nameParameter() + ")");
+            }
+        }
+
+        if (!predicates.isEmpty()) {
+            sb.append(" WHERE ");
+            sb.append(Joiner.on(" AND ").join(predicates));
+        }
+        if ((shape & (OLDEST_FIRST | NEWEST_FIRST)) != 0) {
+            // with the compact schema, tasks with the same bucket time are in the order their names were first created
+            sb.append(" ORDER BY bucket_time").append(newestFirst ? " DESC, " : ", ").append(nameColumn()).append(newestFirst ? " DESC" : "");
+        } else if ((shape & PRIORITY_FIRST) != 0) {
+            sb.append(" ORDER BY priority DESC, bucket_time, ").append(nameColumn());
+        }
+        if ((shape & LIMIT) != 0) {
+            sb.append(" LIMIT ?");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Binds the keyset and the limit of a select built by {@link #taskQueryToSql(TaskQuery)}, following its query parameters.
+     * @param pstmt
+     * @param index the index of the first parameter following the query parameters
+     * @param taskQuery
+     * @return the index of the parameter following the page parameters
+     * @throws SQLException
+     */
+    static int bindPage(PreparedStatement pstmt, int index, TaskQuery taskQuery) throws SQLException {
+        if (taskQuery.getAfter() != null) {
+            pstmt.setTimestamp(index++, Timestamp.from(taskQuery.getAfter().getBucketTime()));
+            if (taskQuery.getName() == null) {
+                pstmt.setString(index++, taskQuery.getAfter().getName());
+            }
+        }
+        if (taskQuery.getLimit() != null) {
+            pstmt.setInt(index++, taskQuery.getLimit());
+        }
+        return index;
+    }
+
+    /**
+     * Converts the query into a statement returning whether any task satisfies it, whether or not the task is locked.
+     * The query parameters are bound with {@link #bindTaskQuery}.
+     * @param taskQuery
+     * @return
+     */
+    String existsTaskQuery(TaskQuery taskQuery) {
+        return taskQueryStatement(EXISTS, taskQuery, 0);
+    }
+
+    private String buildExists(int shape) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT EXISTS (SELECT 1 FROM ");
+        sb.append(tableName);
+        List<String> predicates = taskQueryPredicates(shape);
+        if (!predicates.isEmpty()) {
+            sb.append(" WHERE ");
+            sb.append(Joiner.on(" AND ").join(predicates));
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    /**
+     * Counts the tasks satisfying the query. The query parameters are bound with {@link #bindTaskQuery}.
+     * @param taskQuery
+     * @return
+     */
+    String countTaskQuery(TaskQuery taskQuery) {
+        return taskQueryStatement(COUNT, taskQuery, 0);
+    }
+
+    /**
+     * Counts the tasks satisfying the query by name and status, returning the name, status, and count of each group.
+     * With a range, the bucket times are also grouped into epoch-aligned sub-ranges whose width in seconds is bound to the first two parameters,
+     * and the start of the sub-range is returned before the count.
+     * The query parameters, bound with {@link #bindTaskQuery}, follow.
+     * @param taskQuery
+     * @param range
+     * @return
+     */
+    String countGroupedTaskQuery(TaskQuery taskQuery, boolean range) {
+        return taskQueryStatement(range ? COUNT_GROUPED_BY_RANGE : COUNT_GROUPED, taskQuery, 0);
+    }
+
+    private String buildCount(int shape, boolean grouped, boolean range) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        if (grouped) {
+            sb.append(nameColumn()).append(", status, ");
+        }
+        if (range) {
+            sb.append("to_timestamp(floor(extract(epoch FROM bucket_time) / ?) * ?) AS range_start, ");
+        }
+        // only the key and status columns are read, so a backlog count can be answered from the partial index on available tasks
+        sb.append("count(*) FROM ");
+        sb.append(tableName);
+        List<String> predicates = taskQueryPredicates(shape);
+        if (!predicates.isEmpty()) {
+            sb.append(" WHERE ");
+            sb.append(Joiner.on(" AND ").join(predicates));
+        }
+        if (grouped) {
+            sb.append(" GROUP BY ").append(nameColumn()).append(range ? ", status, range_start" : ", status");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the statement of the given kind for the predicate shape of the query, building it the first time the shape is seen.
+     * Queries that differ only in their values share the same statement text.
+     */
+    private String taskQueryStatement(int kind, TaskQuery taskQuery, int reclaim) {
+        final int shape;
+        if (kind == SELECT) {
+            shape = shapeOf(taskQuery, reclaim) | pageShapeOf(taskQuery);
+        } else if (kind >= UPDATE_ACQUIRED_FIRST && kind <= UPDATE_ACQUIRED_ADVISORY_LOCK_BATCH) {
+            shape = acquisitionShapeOf(taskQuery, reclaim);
+        } else {
+            shape = shapeOf(taskQuery, reclaim);
+        }
+        return taskQueryStatements.computeIfAbsent((kind << SHAPE_BITS) | shape, key -> {
+            switch (kind) {
+                case SELECT:
+                    return buildSelect(shape);
+                case UPDATE_ACQUIRED_FIRST:
+                    return buildUpdateAcquiredFirst(shape, false);
+                case UPDATE_ACQUIRED_BATCH:
+                    return buildUpdateAcquiredBatch(shape, false);
+                case UPDATE_ACQUIRED_LEASE_FIRST:
+                    return buildUpdateAcquiredFirst(shape, true);
+                case UPDATE_ACQUIRED_LEASE_BATCH:
+                    return buildUpdateAcquiredBatch(shape, true);
+                case EXISTS:
+                    return buildExists(shape);
+                case COUNT:
+                    return buildCount(shape, false, false);
+                case COUNT_GROUPED:
+                    return buildCount(shape, true, false);
+                case COUNT_GROUPED_BY_RANGE:
+                    return buildCount(shape, true, true);
+                case UPDATE_ACQUIRED_ADVISORY_LOCK_BATCH:
+                    return buildUpdateAcquiredAdvisoryLock(taskQueryPredicates(shape), true, "?", shape);
+                case UPDATE_PRIORITY:
+                    return buildUpdatePriority(shape);
+                default:
+                    throw new IllegalArgumentException("Unknown statement kind " + kind);
+            }
+        });
+    }
+
+    /**
+     * @param taskQuery
+     * @param reclaim {@link #RECLAIM_EXPIRED_LEASES} or {@link #RECLAIM_UNLOCKED} to also match ACQUIRED tasks that may be reclaimed when searching for AVAILABLE ones, otherwise zero
+     * @return
+     */
+    private static int shapeOf(TaskQuery taskQuery, int reclaim) {
+        int shape = 0;
+        if (taskQuery.getName() != null) {
+            shape |= NAME;
+        }
+        if (taskQuery.getNames() != null) {
+            if (taskQuery.getName() != null) {
+                throw new IllegalArgumentException("Query cannot specify both a name and a set of names");
+            }
+            shape |= NAMES;
+        }
+        if (taskQuery.getBucketStartTime() != null) {
+            shape |= BUCKET_START_TIME;
+        }
+        if (taskQuery.getBucketEndTime() != null) {
+            shape |= BUCKET_END_TIME;
+        }
+        if (taskQuery.getAcquiredAtStartTime() != null) {
+            shape |= ACQUIRED_AT_START_TIME;
+        }
+        if (taskQuery.getAcquiredAtEndTime() != null) {
+            shape |= ACQUIRED_AT_END_TIME;
+        }
+        if (taskQuery.getStatuses() != null && !taskQuery.getStatuses().isEmpty()) {
+            shape |= isAvailableOnly(taskQuery) ? AVAILABLE_ONLY : STATUSES;
+            if (taskQuery.getStatuses().contains(TaskStatus.AVAILABLE)) {
+                shape |= reclaim;
+            }
+        }
+        return shape;
+    }
+
+    private static int acquisitionShapeOf(TaskQuery taskQuery, int reclaim) {
+        return shapeOf(taskQuery, reclaim) | orderShapeOf(taskQuery.getOrderBy()) | (taskQuery.getFairness() != null ? IN_TURNS : 0);
+    }
+
+    private static int orderShapeOf(TaskOrder order) {
+        if (order == null) {
+            return 0;
+        }
+        switch (order) {
+            case OLDEST_FIRST:
+                return OLDEST_FIRST;
+            case NEWEST_FIRST:
+                return NEWEST_FIRST;
+            case PRIORITY:
+                return PRIORITY_FIRST;
+            default:
+                throw new IllegalArgumentException("Unknown task order " + order);
+        }
+    }
+
+    private static int pageShapeOf(TaskQuery taskQuery) {
+        int shape = orderShapeOf(taskQuery.effectiveOrder());
+        if (taskQuery.getAfter() != null) {
+            shape |= AFTER;
+        }
+        if (taskQuery.getLimit() != null) {
+            if (taskQuery.getLimit() < 1) {
+                throw new IllegalArgumentException("Limit must be greater than 0 (zero) but was " + taskQuery.getLimit());
+            }
+            shape |= LIMIT;
+        }
+        return shape;
+    }
+
+    private String qualifiedColumns(String alias) {
+        List<String> columns = new ArrayList<>();
+        for (String column : allColumns().split(", ")) {
+            columns.add(alias + "." + column);
+        }
+        return Joiner.on(", ").join(columns);
+    }
+
+    /**
+     * Converts the query shape into a list of predicates that must all hold, one placeholder per condition.
+     * When searching for AVAILABLE tasks with {@link #RECLAIM_EXPIRED_LEASES}, ACQUIRED tasks whose lease has expired also match.
+     * With {@link #RECLAIM_UNLOCKED} every ACQUIRED task matches, leaving the advisory lock to tell whether its holder is still alive.
+     * @param shape
+     * @return
+     */
+    private List<String> taskQueryPredicates(int shape) {
         List<String> predicates = new ArrayList<>();
-        for (Task task : tasks) {
-            List<String> task_predicates = new ArrayList<>();
-            task_predicates.add("name='" + task.getName() + "'");
-            task_predicates.add("bucket_time='" + PostgresqlTimeUtils.toPostgresqlTimestampWithTz(task.getBucketTime()) + "'::TIMESTAMPTZ");
-            predicates.add("(" + Joiner.on(" AND ").join(task_predicates) + ")");
+
+        if ((shape & NAME) != 0) {
+            predicates.add(namePredicate());
+            if (watermarks && (shape & AVAILABLE_ONLY) != 0) {
+                // an uncorrelated subquery is evaluated once, so its value bounds the index scan like a parameter
+                predicates.add("bucket_time >= COALESCE((SELECT w.bucket_time FROM " + watermarkTableName() + " w WHERE w." + namePredicate() + "), '-infinity')");
+            }
+        }
+        if ((shape & NAMES) != 0) {
+            predicates.add(namesPredicate());
+        }
+        if ((shape & BUCKET_START_TIME) != 0) {
+            predicates.add("bucket_time >= ?");
+        }
+        if ((shape & BUCKET_END_TIME) != 0) {
+            predicates.add("bucket_time < ?");
+        }
+        if ((shape & ACQUIRED_AT_START_TIME) != 0) {
+            predicates.add("acquired_at >= ?");
+        }
+        if ((shape & ACQUIRED_AT_END_TIME) != 0) {
+            predicates.add("acquired_at < ?");
+        }
+        if ((shape & (RECLAIM_EXPIRED_LEASES | RECLAIM_UNLOCKED)) != 0) {
+            predicates.add(reclaimingStatusPredicate(shape));
+        } else if ((shape & (AVAILABLE_ONLY | STATUSES)) != 0) {
+            predicates.add(statusPredicate(shape));
+        }
+        return predicates;
+    }
+
+    private String statusPredicate(int shape) {
+        // the constant lets the planner match the partial index on available tasks whatever the plan
+        return (shape & AVAILABLE_ONLY) != 0 ? AVAILABLE_PREDICATE : "status = ANY(" + statusArrayParameter() + ")";
+    }
+
+    private String reclaimingStatusPredicate(int shape) {
+        return "(" + statusPredicate(shape) + " OR " + reclaimablePredicate(shape) + ")";
+    }
+
+    /**
+     * The ACQUIRED tasks that may be reclaimed: with {@link #RECLAIM_EXPIRED_LEASES} those whose lease has expired,
+     * and with {@link #RECLAIM_UNLOCKED} all of them.
+     */
+    private static String reclaimablePredicate(int shape) {
+        final String acquired = "status = '" + TaskStatus.ACQUIRED.name() + "'";
+        return (shape & RECLAIM_EXPIRED_LEASES) != 0 ? "(" + acquired + " AND lease_expires_at < now())" : acquired;
+    }
+
+    /**
+     * The backlog query looks for available tasks only, and is the one worth matching to the partial index.
+     */
+    private static boolean isAvailableOnly(TaskQuery taskQuery) {
+        return taskQuery.getStatuses() != null && taskQuery.getStatuses().size() == 1 && taskQuery.getStatuses().contains(TaskStatus.AVAILABLE);
+    }
+
+    /**
+     * Binds the values of the query conditions in the order their placeholders appear in statements built from the query.
+     * With watermarks, a backlog query binds its name a second time, for the watermark lookup.
+     * @param pstmt
+     * @param index the index of the first query parameter
+     * @param taskQuery
+     * @return the index of the parameter following the query parameters
+     * @throws SQLException
+     */
+    int bindTaskQuery(PreparedStatement pstmt, int index, TaskQuery taskQuery) throws SQLException {
+        if (taskQuery.getName() != null) {
+            pstmt.setString(index++, taskQuery.getName());
+            if (watermarks && isAvailableOnly(taskQuery)) {
+                pstmt.setString(index++, taskQuery.getName());
+            }
+        }
+        if (taskQuery.getNames() != null) {
+            pstmt.setArray(index++, pstmt.getConnection().createArrayOf("varchar", taskQuery.getNames().toArray(new String[0])));
+        }
+        if (taskQuery.getBucketStartTime() != null) {
+            pstmt.setTimestamp(index++, Timestamp.from(taskQuery.getBucketStartTime()));
+        }
+        if (taskQuery.getBucketEndTime() != null) {
+            pstmt.setTimestamp(index++, Timestamp.from(taskQuery.getBucketEndTime()));
         }
-        sb.append(Joiner.on(" OR ").join(predicates));
+        if (taskQuery.getAcquiredAtStartTime() != null) {
+            pstmt.setTimestamp(index++, Timestamp.from(taskQuery.getAcquiredAtStartTime()));
+        }
+        if (taskQuery.getAcquiredAtEndTime() != null) {
+            pstmt.setTimestamp(index++, Timestamp.from(taskQuery.getAcquiredAtEndTime()));
+        }
+        if (taskQuery.getStatuses() != null && !taskQuery.getStatuses().isEmpty() && !isAvailableOnly(taskQuery)) {
+            String[] statuses = taskQuery.getStatuses().stream().map(TaskStatus::name).toArray(String[]::new);
+            pstmt.setArray(index++, pstmt.getConnection().createArrayOf("varchar", statuses));
+        }
+        return index;
+    }
+
+    /**
+     * Sets the status of every task whose key is bound in the two parallel arrays, names followed by bucket times,
+     * then the status, acquired by, and acquired at.
+     * Rows are locked in key order, skipping rows locked by another transaction or held under an unexpired lease.
+     * Returns the updated rows with <code>true</code> in the last column, and the rows that could not be locked with <code>false</code>.
+     * Keys that do not exist are ignored.
+     * @return
+     */
+    private String buildUpdateTasksStatus() {
+        StringBuilder sb = new StringBuilder();
+        final String name = nameColumn();
+        sb.append("WITH keys AS (SELECT DISTINCT * FROM (").append(selectKeys()).append(") k),");
+        sb.append(" locked AS (SELECT t.").append(name).append(", t.bucket_time FROM ");
+        sb.append(tableName);
+        sb.append(" t JOIN keys ON t.").append(name).append("=keys.").append(name).append(" and t.bucket_time=keys.bucket_time");
+        sb.append(" WHERE t.lease_expires_at IS NULL OR t.lease_expires_at < now()");
+        // a consistent lock order means two overlapping updates can never deadlock
+        sb.append(" ORDER BY t.").append(name).append(", t.bucket_time FOR UPDATE OF t SKIP LOCKED),");
+        sb.append(" updated AS (UPDATE ");
+        sb.append(tableName);
+        sb.append(" t SET status=").append(statusParameter()).append(", acquired_by=?, acquired_at=?");
+        sb.append(" FROM locked WHERE t.").append(name).append("=locked.").append(name).append(" and t.bucket_time=locked.bucket_time");
+        sb.append(" RETURNING ");
+        sb.append(qualifiedColumns("t"));
+        sb.append(")");
+        sb.append(" SELECT ");
+        sb.append(allColumns());
+        sb.append(", true FROM updated");
+        sb.append(" UNION ALL SELECT ");
+        sb.append(qualifiedColumns("t"));
+        sb.append(", false FROM ");
+        sb.append(tableName);
+        sb.append(" t JOIN keys ON t.").append(name).append("=keys.").append(name).append(" and t.bucket_time=keys.bucket_time");
+        sb.append(" WHERE NOT EXISTS (SELECT 1 FROM locked WHERE locked.").append(name).append("=t.").append(name).append(" and locked.bucket_time=t.bucket_time)");
         return sb.toString();
     }
 
+    /**
+     * Binds the keys of the tasks updated by {@link #updateTasksStatus()}, or held by an advisory lock acquisition, as two parallel arrays.
+     * @param pstmt
+     * @param index the index of the array of names
+     * @param tasks
+     * @return the index of the parameter following the arrays
+     * @throws SQLException
+     */
+    static int bindTaskKeys(PreparedStatement pstmt, int index, Collection<? extends Task> tasks) throws SQLException {
+        final String[] names = new String[tasks.size()];
+        final Timestamp[] bucketTimes = new Timestamp[tasks.size()];
+        int i = 0;
+        for (Task task : tasks) {
+            names[i] = task.getName();
+            bucketTimes[i] = Timestamp.from(task.getBucketTime());
+            ++i;
+        }
+        pstmt.setArray(index++, pstmt.getConnection().createArrayOf("varchar", names));
+        pstmt.setArray(index++, pstmt.getConnection().createArrayOf("timestamptz", bucketTimes));
+        return index;
+    }
+
 }
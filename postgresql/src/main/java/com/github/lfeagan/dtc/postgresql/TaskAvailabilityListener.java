@@ -0,0 +1,182 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.github.lfeagan.dtc.postgresql.JdbcUtils.closeWithoutException;
+
+/**
+ * Listens for task availability notifications on one dedicated connection shared by every waiting worker of a {@link PostgresqlTaskManager}.
+ * Each notification advances a generation counter for its task name, and waiters park until the generation of the name they are waiting for moves.
+ * If the connection is lost, every waiter is woken to query again, since notifications may have been missed while reconnecting.
+ */
+class TaskAvailabilityListener implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TaskAvailabilityListener.class);
+    private static final int NOTIFICATION_TIMEOUT_MILLIS = 500;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private final PostgresqlTaskManager ptm;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // guarded by lock
+    private final Map<String, Long> generations = new HashMap<>();
+    private long anyGeneration;
+    private long wakeAllGeneration;
+
+    private Thread thread;
+    private volatile boolean closed;
+    // only used by the listener thread once it has started
+    private Connection conn;
+
+    TaskAvailabilityListener(final PostgresqlTaskManager ptm) {
+        this.ptm = ptm;
+    }
+
+    /**
+     * Starts listening, if not already started. Returns once the LISTEN is in place, so no notification raised afterwards can be missed.
+     * @throws SQLException
+     */
+    synchronized void start() throws SQLException {
+        if (thread != null) {
+            return;
+        }
+        closed = false;
+        conn = connect();
+        thread = new Thread(this::run, "dtc-task-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Connection connect() throws SQLException {
+        Connection listenConn = ptm.getConnection();
+        Statement stmt = null;
+        try {
+            listenConn.setAutoCommit(true);
+            stmt = listenConn.createStatement();
+            stmt.execute(ptm.sqlBuilder.listenForAvailability());
+            return listenConn;
+        } catch (SQLException e) {
+            closeWithoutException(listenConn);
+            throw e;
+        } finally {
+            closeWithoutException(stmt);
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                if (conn == null) {
+                    conn = connect();
+                    wakeAll();
+                }
+                PGNotification[] notifications = conn.unwrap(PGConnection.class).getNotifications(NOTIFICATION_TIMEOUT_MILLIS);
+                if (notifications != null) {
+                    for (PGNotification notification : notifications) {
+                        notified(notification.getParameter());
+                    }
+                }
+            } catch (SQLException e) {
+                if (closed) {
+                    break;
+                }
+                LOGGER.warn("Lost the task availability connection, reconnecting", e);
+                closeWithoutException(conn);
+                conn = null;
+                wakeAll();
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        closeWithoutException(conn);
+        conn = null;
+    }
+
+    /**
+     * Returns the current generation for the task name, or for every task name if the name is <code>null</code>.
+     * @param name
+     * @return
+     */
+    long generation(String name) {
+        lock.lock();
+        try {
+            return wakeAllGeneration + (name == null ? anyGeneration : generations.getOrDefault(name, 0L));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the generation for the task name moves past the one given, or the timeout elapses.
+     * @param name the task name, or <code>null</code> to wake for any task
+     * @param generation the generation observed before the last query
+     * @param timeoutNanos
+     * @return <code>false</code> if the timeout elapsed first
+     * @throws InterruptedException
+     */
+    boolean awaitChange(String name, long generation, long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = timeoutNanos;
+            while (generation(name) == generation) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = changed.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void notified(String name) {
+        lock.lock();
+        try {
+            generations.merge(name, 1L, Long::sum);
+            ++anyGeneration;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void wakeAll() {
+        lock.lock();
+        try {
+            ++wakeAllGeneration;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (thread != null) {
+            try {
+                thread.join(NOTIFICATION_TIMEOUT_MILLIS * 2L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        wakeAll();
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import com.github.lfeagan.dtc.TaskStatus;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.github.lfeagan.dtc.postgresql.JdbcUtils.closeWithoutException;
+
+/**
+ * The transaction shared by tasks acquired together in {@link AcquisitionMode#TRANSACTION} mode.
+ * Each task applies its status change on the shared connection as it finishes, in a savepoint of its own,
+ * and the transaction commits, releasing every row lock, once the last task in the batch has been released.
+ * A status change that fails is undone on its own and its task is put back, so it does not cost the other tasks their outcomes.
+ * Until the commit no status change in the batch is durable or visible to other sessions,
+ * and if the worker or its connection dies, the whole batch is rolled back and every task in it becomes available again.
+ */
+class TaskBatch {
+
+    private final PostgresqlTaskManager ptm;
+    private final Connection conn;
+    // tasks are mutable and compare by value, so track them by identity, along with the status they had before being acquired
+    private final Map<PostgresqlTask, TaskStatus> members = new IdentityHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    TaskBatch(final PostgresqlTaskManager ptm, final Connection conn) {
+        this.ptm = ptm;
+        this.conn = conn;
+    }
+
+    Connection getConnection() {
+        return conn;
+    }
+
+    void add(PostgresqlTask task, TaskStatus previousStatus) {
+        lock.lock();
+        try {
+            members.put(task, previousStatus);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies a status change of the task in a savepoint.
+     * If the change fails, the savepoint is rolled back and the task is abandoned, so the rest of the batch can still commit.
+     * @param task
+     * @param pstmt the prepared status change
+     * @throws SQLException
+     */
+    void execute(PostgresqlTask task, PreparedStatement pstmt) throws SQLException {
+        lock.lock();
+        try {
+            final Savepoint savepoint = conn.setSavepoint();
+            try {
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                try {
+                    conn.rollback(savepoint);
+                } catch (SQLException rollbackException) {
+                    // do nothing, the shared transaction is aborted and the whole batch rolls back instead
+                }
+                abandonWithoutException(task);
+                throw e;
+            }
+            conn.releaseSavepoint(savepoint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the task from the batch, committing the shared transaction if it was the last one.
+     * Releasing a task more than once has no effect.
+     * @param task
+     * @throws SQLException
+     */
+    void release(PostgresqlTask task) throws SQLException {
+        lock.lock();
+        try {
+            if (members.remove(task) != null && members.isEmpty()) {
+                try {
+                    conn.commit();
+                } finally {
+                    closeWithoutException(conn);
+                    ptm.metrics.connectionReleased();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void releaseWithoutException(PostgresqlTask task) {
+        try {
+            release(task);
+        } catch (SQLException e) {
+            // do nothing
+        }
+    }
+
+    /**
+     * Releases a task that was given up without being finished.
+     * The rest of the batch will still commit, so the task is first put back into the status it had before it was acquired.
+     * @param task
+     */
+    void abandonWithoutException(PostgresqlTask task) {
+        lock.lock();
+        try {
+            final TaskStatus previousStatus = members.get(task);
+            if (previousStatus == null) {
+                return;
+            }
+            PreparedStatement pstmt = null;
+            try {
+                pstmt = ptm.prepareStatement(conn, ptm.sqlBuilder.updateStatus());
+                pstmt.setString(1, previousStatus.name());
+                pstmt.setString(2, task.getName());
+                pstmt.setTimestamp(3, Timestamp.from(task.getBucketTime()));
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                // the failed statement aborts the shared transaction, so the whole batch rolls back
+                // rather than committing the task as acquired when no one holds it
+            } finally {
+                closeWithoutException(pstmt);
+                releaseWithoutException(task);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
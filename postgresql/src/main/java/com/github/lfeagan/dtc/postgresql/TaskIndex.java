@@ -0,0 +1,47 @@
+package com.github.lfeagan.dtc.postgresql;
+
+/**
+ * The secondary indexes {@link PostgresqlTaskManager#initialize()} can create on the tasks table, in addition to the (name, bucket_time) primary key.
+ */
+public enum TaskIndex {
+
+    /**
+     * A partial index on (name, bucket_time) over AVAILABLE tasks only.
+     * Backlog queries stay proportional to the number of available tasks no matter how many completed tasks the table holds.
+     */
+    AVAILABLE,
+
+    /**
+     * A partial index on (name, priority DESC, bucket_time) over AVAILABLE tasks only,
+     * which serves backlog queries on one name acquiring in {@link com.github.lfeagan.dtc.TaskOrder#PRIORITY} order without a sort.
+     */
+    AVAILABLE_PRIORITY,
+
+    /**
+     * A partial index on bucket_time over AVAILABLE tasks only,
+     * which serves backlog queries across all names acquiring oldest or newest first without a sort.
+     */
+    AVAILABLE_ANY_NAME,
+
+    /**
+     * A partial index on (priority DESC, bucket_time) over AVAILABLE tasks only,
+     * which serves backlog queries across all names acquiring in {@link com.github.lfeagan.dtc.TaskOrder#PRIORITY} order without a sort.
+     */
+    AVAILABLE_PRIORITY_ANY_NAME,
+
+    /**
+     * A partial index on lease_expires_at over ACQUIRED tasks, used to find expired leases in {@link AcquisitionMode#LEASE} mode.
+     */
+    LEASE_EXPIRES_AT,
+
+    /**
+     * A partial index on acquired_at over tasks that have been acquired, supporting queries on when tasks were acquired.
+     */
+    ACQUIRED_AT,
+
+    /**
+     * A BRIN index on bucket_time. Tiny compared to a B-tree and effective when tasks are created in bucket time order,
+     * which makes it worthwhile for very large tables scanned by time range.
+     */
+    BUCKET_TIME_BRIN
+}
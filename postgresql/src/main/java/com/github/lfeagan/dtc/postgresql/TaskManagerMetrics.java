@@ -0,0 +1,126 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import com.github.lfeagan.dtc.TaskQuery;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The meters recorded by a {@link PostgresqlTaskManager}, tagged by task name.
+ * <ul>
+ *     <li><code>dtc.task.create</code>: timer, tagged with an outcome of created, duplicate (PostgreSQL error 23505), or error</li>
+ *     <li><code>dtc.task.acquire</code>: timer, tagged with an outcome of acquired, empty, or error</li>
+ *     <li><code>dtc.task.acquire.misses</code>: counter of acquisitions that came back empty although tasks satisfying the query exist, all of them held by others,
+ *     only recorded if {@link PostgresqlTaskManagerConfig#isRecordAcquireMisses()}</li>
+ *     <li><code>dtc.task.held</code>: timer from acquiring a task to completing, failing, skipping, or abandoning it, tagged with that outcome.
+ *     A status change is only counted once it has been committed; if it fails, the timer keeps running until the task is closed and counted as abandoned</li>
+ *     <li><code>dtc.task.failures</code>: counter of fail_count increments</li>
+ *     <li><code>dtc.task.connections.held</code>: gauge of connections pinned by tasks held in {@link AcquisitionMode#TRANSACTION} mode,
+ *     tagged by table and by the task manager instance, so managers sharing a registry and a table each report their own; removed when the task manager is closed</li>
+ * </ul>
+ * A query that does not name a task is tagged with the name <code>*</code>.
+ */
+class TaskManagerMetrics {
+
+    static final String CREATED = "created";
+    static final String DUPLICATE = "duplicate";
+    static final String ACQUIRED = "acquired";
+    static final String EMPTY = "empty";
+    static final String ERROR = "error";
+    static final String COMPLETED = "completed";
+    static final String FAILED = "failed";
+    static final String SKIPPED = "skipped";
+    static final String ABANDONED = "abandoned";
+
+    private static final String ANY_NAME = "*";
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final MeterRegistry registry;
+    private final AtomicInteger heldConnections = new AtomicInteger();
+    private final Gauge heldConnectionsGauge;
+
+    TaskManagerMetrics(final MeterRegistry registry, final String tableName) {
+        this.registry = registry;
+        this.heldConnectionsGauge = Gauge.builder("dtc.task.connections.held", heldConnections, AtomicInteger::get)
+                .description("Connections pinned by held tasks")
+                .tag("table", tableName)
+                .tag("instance", Integer.toString(INSTANCES.incrementAndGet()))
+                .strongReference(true)
+                .register(registry);
+    }
+
+    /**
+     * Removes the meters that belong to this task manager alone.
+     */
+    void close() {
+        registry.remove(heldConnectionsGauge);
+    }
+
+    Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    void created(Timer.Sample sample, String name, String outcome) {
+        sample.stop(timer("dtc.task.create", name, outcome));
+    }
+
+    void acquired(Timer.Sample sample, TaskQuery taskQuery, String outcome) {
+        sample.stop(timer("dtc.task.acquire", nameOf(taskQuery), outcome));
+    }
+
+    void acquireMissed(TaskQuery taskQuery) {
+        Counter.builder("dtc.task.acquire.misses")
+                .tag("name", nameOf(taskQuery))
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * Starts the hold timer of a task that has just been acquired.
+     */
+    void held(PostgresqlTask task) {
+        task.setHeldSinceNanos(System.nanoTime());
+    }
+
+    /**
+     * Stops the hold timer of a task that is no longer held. Has no effect if the timer is not running.
+     */
+    void released(PostgresqlTask task, String outcome) {
+        final long heldSinceNanos = task.getHeldSinceNanos();
+        if (heldSinceNanos == 0) {
+            return;
+        }
+        task.setHeldSinceNanos(0);
+        timer("dtc.task.held", task.getName(), outcome).record(System.nanoTime() - heldSinceNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void failCountIncremented(String name) {
+        Counter.builder("dtc.task.failures")
+                .tag("name", name)
+                .register(registry)
+                .increment();
+    }
+
+    void connectionHeld() {
+        heldConnections.incrementAndGet();
+    }
+
+    void connectionReleased() {
+        heldConnections.decrementAndGet();
+    }
+
+    private Timer timer(String meterName, String name, String outcome) {
+        return Timer.builder(meterName)
+                .tag("name", name)
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    private static String nameOf(TaskQuery taskQuery) {
+        return taskQuery.getName() == null ? ANY_NAME : taskQuery.getName();
+    }
+}
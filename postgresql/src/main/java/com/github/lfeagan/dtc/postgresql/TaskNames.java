@@ -0,0 +1,99 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.github.lfeagan.dtc.postgresql.JdbcUtils.closeWithoutException;
+
+/**
+ * With the compact schema, keeps track of the ids the task table stores in place of task names.
+ * Statements look the id of a bound name up themselves, so a name only needs to be in the lookup table before a task with it is inserted.
+ * Names are added on a connection of their own and committed straight away, and never removed,
+ * so once an id has been seen it refers to the same name for good and both directions are cached for the life of the task manager.
+ */
+class TaskNames {
+
+    private final PostgresqlTaskManager ptm;
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<>();
+
+    TaskNames(final PostgresqlTaskManager ptm) {
+        this.ptm = ptm;
+    }
+
+    /**
+     * Adds the name to the lookup table, unless it is known to be there already. Has no effect without the compact schema.
+     * Call it before taking the connection the task is inserted on, so the two connections are never held at once.
+     * @param name
+     * @throws SQLException
+     */
+    void register(String name) throws SQLException {
+        if (!ptm.config.isCompactSchema() || ids.containsKey(name)) {
+            return;
+        }
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            conn = ptm.getConnection();
+            conn.setAutoCommit(true);
+            pstmt = ptm.prepareStatement(conn, ptm.sqlBuilder.insertTaskName());
+            pstmt.setString(1, name);
+            resultSet = pstmt.executeQuery();
+            resultSet.next();
+            cache(resultSet.getInt(1), name);
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+            closeWithoutException(conn);
+        }
+    }
+
+    /**
+     * Reads the task name from a column holding the name or, with the compact schema, its id.
+     * An id that is not cached yet reloads the lookup table on the connection of the result set.
+     * @param resultSet positioned on the row to read
+     * @param column
+     * @return
+     * @throws SQLException
+     */
+    String name(ResultSet resultSet, int column) throws SQLException {
+        if (!ptm.config.isCompactSchema()) {
+            return resultSet.getString(column);
+        }
+        final int id = resultSet.getInt(column);
+        if (resultSet.wasNull()) {
+            return null;
+        }
+        String name = names.get(id);
+        if (name == null) {
+            load(resultSet.getStatement().getConnection());
+            name = names.get(id);
+        }
+        return name;
+    }
+
+    private void load(Connection conn) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet resultSet = null;
+        try {
+            pstmt = ptm.prepareStatement(conn, ptm.sqlBuilder.selectTaskNames());
+            resultSet = pstmt.executeQuery();
+            while (resultSet.next()) {
+                cache(resultSet.getInt(1), resultSet.getString(2));
+            }
+        } finally {
+            closeWithoutException(resultSet);
+            closeWithoutException(pstmt);
+        }
+    }
+
+    private void cache(int id, String name) {
+        ids.put(name, id);
+        names.put(id, name);
+    }
+}
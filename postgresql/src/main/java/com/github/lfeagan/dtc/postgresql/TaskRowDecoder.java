@@ -0,0 +1,111 @@
+package com.github.lfeagan.dtc.postgresql;
+
+import com.github.lfeagan.dtc.TaskStatus;
+import org.postgresql.util.PGInterval;
+import org.threeten.extra.PeriodDuration;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decodes rows of the task columns, in the order the statement catalog selects them, into tasks.
+ * A deployment has a handful of distinct bucket intervals and worker names, so the decoder keeps bounded caches of both:
+ * an interval is parsed once per distinct text rather than on every row, and tasks share one instance of each repeated identifier
+ * instead of each holding its own copy. Once a cache is full, further distinct values are decoded without being cached.
+ * Timestamps are converted straight to {@link Instant}s, without going through {@link java.sql.Timestamp} and the calendar it is computed with.
+ */
+class TaskRowDecoder {
+
+    private final PostgresqlTaskManager ptm;
+    private final int cacheSize;
+    private final ConcurrentMap<String, PeriodDuration> intervals = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> identifiers = new ConcurrentHashMap<>();
+
+    TaskRowDecoder(final PostgresqlTaskManager ptm, final int cacheSize) {
+        this.ptm = ptm;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @param resultSet positioned on the row to decode
+     * @param conn the connection holding the task, or <code>null</code> if it is not held
+     * @return
+     * @throws SQLException
+     */
+    PostgresqlTask decode(ResultSet resultSet, Connection conn) throws SQLException {
+        PostgresqlTask.PostgresqlTaskBuilder taskBuilder = PostgresqlTask.builder();
+        if (ptm.config.isCompactSchema()) {
+            // the lookup table holds a single instance of each name, and an interval in microseconds needs no parsing
+            taskBuilder.name(ptm.taskNames.name(resultSet, 1));
+            taskBuilder.bucketInterval(PostgresqlTimeUtils.periodDurationFromMicros(resultSet.getLong(3)));
+        } else {
+            taskBuilder.name(identifier(resultSet.getString(1)));
+            taskBuilder.bucketInterval(interval(resultSet.getString(3)));
+        }
+        taskBuilder.bucketTime(instant(resultSet, 2));
+        taskBuilder.status(TaskStatus.valueOf(resultSet.getString(4)));
+        taskBuilder.createdBy(identifier(resultSet.getString(5)));
+        taskBuilder.createdAt(instant(resultSet, 6));
+        taskBuilder.acquiredBy(identifier(resultSet.getString(7)));
+        taskBuilder.acquiredAt(instant(resultSet, 8));
+        taskBuilder.leaseOwner(resultSet.getString(11));
+        taskBuilder.leaseExpiresAt(instant(resultSet, 12));
+        taskBuilder.priority(resultSet.getInt(13));
+        taskBuilder.ptm(ptm);
+        if (conn != null) {
+            taskBuilder.conn(conn);
+        }
+        return taskBuilder.build();
+    }
+
+    /**
+     * Decodes the text of an interval column.
+     * @param text
+     * @return
+     * @throws SQLException
+     */
+    PeriodDuration interval(String text) throws SQLException {
+        if (text == null) {
+            return null;
+        }
+        PeriodDuration interval = intervals.get(text);
+        if (interval == null) {
+            interval = PostgresqlTimeUtils.periodDurationFromPGInterval(new PGInterval(text));
+            if (intervals.size() < cacheSize) {
+                intervals.putIfAbsent(text, interval);
+            }
+        }
+        return interval;
+    }
+
+    /**
+     * Returns the cached instance equal to the identifier, caching it if there is room.
+     * Lease owners are unique per acquisition and are not worth caching.
+     * @param identifier
+     * @return
+     */
+    String identifier(String identifier) {
+        if (identifier == null) {
+            return null;
+        }
+        final String cached = identifiers.get(identifier);
+        if (cached != null) {
+            return cached;
+        }
+        if (identifiers.size() < cacheSize) {
+            final String previous = identifiers.putIfAbsent(identifier, identifier);
+            return previous == null ? identifier : previous;
+        }
+        return identifier;
+    }
+
+    private static Instant instant(ResultSet resultSet, int column) throws SQLException {
+        final OffsetDateTime timestamp = resultSet.getObject(column, OffsetDateTime.class);
+        return timestamp == null ? null : timestamp.toInstant();
+    }
+}
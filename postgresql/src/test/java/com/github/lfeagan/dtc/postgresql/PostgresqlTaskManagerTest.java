@@ -2,6 +2,8 @@ package com.github.lfeagan.dtc.postgresql;
 
 import com.github.lfeagan.dtc.*;
 import com.github.lfeagan.wheat.time.TimeUtils;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.postgresql.ds.PGSimpleDataSource;
 import org.testcontainers.shaded.com.google.common.collect.ImmutableSet;
 import org.testng.Assert;
@@ -11,11 +13,28 @@ import org.testng.annotations.Test;
 import org.threeten.extra.PeriodDuration;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.Period;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class PostgresqlTaskManagerTest extends TimescaleTestContainer {
 
@@ -253,6 +272,1140 @@ public class PostgresqlTaskManagerTest extends TimescaleTestContainer {
       }
    }
 
+   @Test
+   public void leaseAcquireViaQuery() throws TaskManagerException {
+      final String taskName = "leaseAcquireViaQuery";
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource(), PostgresqlTaskManagerConfig.builder()
+              .acquisitionMode(AcquisitionMode.LEASE)
+              .build());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      ptm.createTask(taskName, bucket_time, PeriodDuration.of(bucket_interval), taskName);
+      final TaskQuery query = TaskQuery.builder()
+              .name(taskName)
+              .statuses(ImmutableSet.of(TaskStatus.AVAILABLE))
+              .build();
+
+      PostgresqlTask leased = (PostgresqlTask) ptm.getAndAcquireFirstTask(query, "leaseWorker");
+      Assert.assertNotNull(leased, "leased task");
+      Assert.assertTrue(leased.isAcquired());
+      Assert.assertNull(leased.getConn(), "lease mode must not hold a connection");
+      Assert.assertNotNull(leased.getLeaseOwner(), "lease owner");
+      Assert.assertNull(ptm.getAndAcquireFirstTask(query, "otherWorker"), "leased task acquired twice");
+
+      Task fetched = ptm.getTask(taskName, bucket_time);
+      Assert.assertEquals(fetched.getStatus(), TaskStatus.ACQUIRED);
+      Assert.assertEquals(fetched.getAcquiredBy(), "leaseWorker");
+
+      leased.completed("done");
+      Assert.assertFalse(leased.isAcquired());
+      Assert.assertEquals(ptm.getTask(taskName, bucket_time).getStatus(), TaskStatus.COMPLETE);
+      ptm.close();
+   }
+
+   @Test
+   public void leaseExpiresAndIsReclaimed() throws TaskManagerException, InterruptedException {
+      final String taskName = "leaseExpires";
+      // renew far less often than the lease lasts so that the lease expires
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource(), PostgresqlTaskManagerConfig.builder()
+              .acquisitionMode(AcquisitionMode.LEASE)
+              .leaseDuration(Duration.ofMillis(500))
+              .leaseRenewalInterval(Duration.ofHours(1))
+              .build());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      Task created = ptm.createTask(taskName, bucket_time, PeriodDuration.of(bucket_interval), taskName);
+      created.acquire("firstWorker");
+      Assert.assertTrue(created.isAcquired());
+
+      final TaskQuery query = TaskQuery.builder()
+              .name(taskName)
+              .statuses(ImmutableSet.of(TaskStatus.AVAILABLE))
+              .build();
+      Assert.assertNull(ptm.getAndAcquireFirstTask(query, "secondWorker"), "lease was not expired yet");
+      ptm.createTask(taskName, bucket_time.plus(bucket_interval), PeriodDuration.of(bucket_interval), taskName);
+      Thread.sleep(1000);
+      // the expired task is scanned apart from the available ones, and still comes first in order
+      final TaskQuery oldestFirst = query.toBuilder().orderBy(TaskOrder.OLDEST_FIRST).build();
+      Task reclaimed = ptm.getAndAcquireFirstTask(oldestFirst, "secondWorker");
+      Assert.assertNotNull(reclaimed, "expired lease was not reclaimed");
+      Assert.assertEquals(reclaimed.getBucketTime(), bucket_time);
+      Task later = ptm.getAndAcquireFirstTask(oldestFirst, "secondWorker");
+      Assert.assertEquals(later.getBucketTime(), bucket_time.plus(bucket_interval));
+      later.completed("done");
+
+      try {
+         created.completed("too late");
+         Assert.fail("completed a task whose lease was reclaimed");
+      } catch (IllegalStateException e) {
+         // do nothing
+      }
+      reclaimed.completed("done");
+      Assert.assertEquals(ptm.getTask(taskName, bucket_time).getStatus(), TaskStatus.COMPLETE);
+      ptm.close();
+   }
+
+   @Test
+   public void acquireBatch() throws TaskManagerException {
+      final String taskName = "acquireBatch";
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskManagerUtils.createTasksInTimeRange(ptm, taskName, bucket_time, PeriodDuration.of(bucket_interval), 10, taskName);
+      final TaskQuery query = TaskQuery.builder()
+              .name(taskName)
+              .statuses(ImmutableSet.of(TaskStatus.AVAILABLE))
+              .build();
+
+      List<Task> first = ptm.getAndAcquireTasks(query, 4, "first");
+      Assert.assertEquals(first.size(), 4, "first batch size");
+      List<Task> second = ptm.getAndAcquireTasks(query, 100, "second");
+      Assert.assertEquals(second.size(), 6, "second batch skips the locked tasks");
+      Assert.assertTrue(ptm.getAndAcquireTasks(query, 100, "third").isEmpty(), "everything is locked");
+
+      for (Task task : first) {
+         Assert.assertTrue(task.isAcquired());
+         task.completed("done");
+         Assert.assertFalse(task.isAcquired());
+      }
+      for (Task task : second) {
+         task.failed("failed");
+      }
+      Assert.assertEquals(ptm.getTasks(TaskQuery.builder().name(taskName).statuses(ImmutableSet.of(TaskStatus.COMPLETE)).build()).size(), 4);
+      Assert.assertEquals(ptm.getAndAcquireTasks(query, 100, "fourth").size(), 6, "failed tasks are available again");
+   }
+
+   @Test
+   public void acquireMarksTask() throws TaskManagerException, IOException {
+      final String taskName = "acquireMarksTask";
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskManagerUtils.createTasksInTimeRange(ptm, taskName, bucket_time, PeriodDuration.of(bucket_interval), 4, taskName);
+      final TaskQuery query = TaskQuery.builder()
+              .name(taskName)
+              .statuses(ImmutableSet.of(TaskStatus.AVAILABLE))
+              .build();
+
+      Task task = ptm.getAndAcquireFirstTask(query, "worker");
+      Assert.assertEquals(task.getStatus(), TaskStatus.ACQUIRED);
+      Assert.assertEquals(task.getAcquiredBy(), "worker");
+      Assert.assertNotNull(task.getAcquiredAt());
+      task.completed("done");
+      Assert.assertEquals(ptm.getTask(taskName, task.getBucketTime()).getAcquiredBy(), "worker", "acquired by is recorded");
+
+      // closing one task of a batch puts it back, while the others still commit
+      List<Task> batch = ptm.getAndAcquireTasks(query, 3, "batch");
+      Assert.assertEquals(batch.size(), 3);
+      batch.get(0).close();
+      batch.get(1).completed("done");
+      batch.get(2).completed("done");
+      Assert.assertEquals(ptm.getTask(taskName, batch.get(0).getBucketTime()).getStatus(), TaskStatus.AVAILABLE);
+      Assert.assertEquals(ptm.getTasks(TaskQuery.builder().name(taskName).statuses(ImmutableSet.of(TaskStatus.COMPLETE)).build()).size(), 3);
+   }
+
+   @Test
+   public void acquiredTasksAreVisibleToOtherSessions() throws TaskManagerException, IOException {
+      final String taskName = "inFlight";
+      DataSource dataSource = createNonPoolingDataSource();
+      // a monitoring query on a connection of its own
+      PostgresqlTaskManager monitor = new PostgresqlTaskManager(dataSource);
+      monitor.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskManagerUtils.createTasksInTimeRange(monitor, taskName, bucket_time, PeriodDuration.of(bucket_interval), AcquisitionMode.values().length, taskName);
+      final TaskQuery query = TaskQuery.builder().name(taskName).statuses(ImmutableSet.of(TaskStatus.AVAILABLE)).build();
+
+      for (AcquisitionMode mode : AcquisitionMode.values()) {
+         PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.builder().acquisitionMode(mode).build());
+         Task task = ptm.getAndAcquireFirstTask(query, mode.name());
+         Task seen = monitor.getTask(taskName, task.getBucketTime());
+         if (mode == AcquisitionMode.TRANSACTION) {
+            // the mark is only committed along with the outcome
+            Assert.assertEquals(seen.getStatus(), TaskStatus.AVAILABLE, mode.name());
+            Assert.assertNull(seen.getAcquiredBy(), mode.name());
+         } else {
+            Assert.assertEquals(seen.getStatus(), TaskStatus.ACQUIRED, mode.name());
+            Assert.assertEquals(seen.getAcquiredBy(), mode.name());
+            Assert.assertNotNull(seen.getAcquiredAt(), mode.name());
+         }
+         task.completed("done");
+         Assert.assertEquals(monitor.getTask(taskName, task.getBucketTime()).getStatus(), TaskStatus.COMPLETE, mode.name());
+         ptm.close();
+      }
+   }
+
+   @Test
+   public void batchCommitsWhenLastTaskIsReleased() throws TaskManagerException {
+      final String taskName = "batchCommits";
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskManagerUtils.createTasksInTimeRange(ptm, taskName, bucket_time, PeriodDuration.of(bucket_interval), 2, taskName);
+      final TaskQuery query = TaskQuery.builder().name(taskName).statuses(ImmutableSet.of(TaskStatus.AVAILABLE)).build();
+
+      List<Task> batch = ptm.getAndAcquireTasks(query, 2, "batch");
+      batch.get(0).completed("done");
+      Assert.assertEquals(batch.get(0).getStatus(), TaskStatus.COMPLETE);
+      Assert.assertEquals(ptm.getTask(taskName, batch.get(0).getBucketTime()).getStatus(), TaskStatus.AVAILABLE,
+              "a finished task is not committed while the rest of its batch is held");
+      batch.get(1).skip("skipped");
+      Assert.assertEquals(ptm.getTask(taskName, batch.get(0).getBucketTime()).getStatus(), TaskStatus.COMPLETE);
+      Assert.assertEquals(ptm.getTask(taskName, batch.get(1).getBucketTime()).getStatus(), TaskStatus.SKIP);
+   }
+
+   @Test
+   public void batchTasksKeepTheirOwnOutcomes() throws TaskManagerException, SQLException {
+      final String taskName = "batchOutcomes";
+      DataSource dataSource = createNonPoolingDataSource();
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.builder()
+              .tableName("public.outcome_tasks")
+              .build());
+      ptm.initialize();
+      try (Connection conn = dataSource.getConnection();
+           Statement stmt = conn.createStatement()) {
+         stmt.execute("CREATE FUNCTION reject_status_change() RETURNS trigger AS $$ BEGIN "
+                 + "IF NEW.message = 'rejected' THEN RAISE EXCEPTION 'status change rejected'; END IF; RETURN NEW; END $$ LANGUAGE plpgsql");
+         stmt.execute("CREATE TRIGGER reject_status_change BEFORE UPDATE ON public.outcome_tasks FOR EACH ROW EXECUTE FUNCTION reject_status_change()");
+      }
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskManagerUtils.createTasksInTimeRange(ptm, taskName, bucket_time, PeriodDuration.of(bucket_interval), 3, taskName);
+      final TaskQuery query = TaskQuery.builder().name(taskName).statuses(ImmutableSet.of(TaskStatus.AVAILABLE)).build();
+
+      List<Task> batch = ptm.getAndAcquireTasks(query, 3, "batch");
+      Assert.assertEquals(batch.size(), 3);
+      batch.get(0).completed("done");
+      Assert.assertThrows(RuntimeException.class, () -> batch.get(1).failed("rejected"));
+      batch.get(2).failed("failed");
+      Assert.assertEquals(ptm.getTask(taskName, batch.get(0).getBucketTime()).getStatus(), TaskStatus.COMPLETE,
+              "a status change that fails does not roll back the rest of the batch");
+      Assert.assertEquals(ptm.getTask(taskName, batch.get(1).getBucketTime()).getStatus(), TaskStatus.AVAILABLE,
+              "a task whose status change fails is put back");
+      Assert.assertEquals(ptm.getTask(taskName, batch.get(2).getBucketTime()).getStatus(), TaskStatus.AVAILABLE);
+      try (Connection conn = dataSource.getConnection();
+           Statement stmt = conn.createStatement();
+           ResultSet resultSet = stmt.executeQuery("SELECT sum(fail_count) FROM public.outcome_tasks")) {
+         resultSet.next();
+         Assert.assertEquals(resultSet.getInt(1), 1, "only the failure that was applied is counted");
+      }
+      Assert.assertEquals(ptm.getAndAcquireTasks(query, 3, "retry").size(), 2, "every row lock is released");
+   }
+
+   @Test
+   public void leaseBatch() throws TaskManagerException {
+      final String taskName = "leaseBatch";
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource(), PostgresqlTaskManagerConfig.builder()
+              .acquisitionMode(AcquisitionMode.LEASE)
+              .build());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskManagerUtils.createTasksInTimeRange(ptm, taskName, bucket_time, PeriodDuration.of(bucket_interval), 10, taskName);
+      final TaskQuery query = TaskQuery.builder()
+              .name(taskName)
+              .statuses(ImmutableSet.of(TaskStatus.AVAILABLE))
+              .build();
+
+      List<Task> leased = ptm.getAndAcquireTasks(query, 8, "leaseBatch");
+      Assert.assertEquals(leased.size(), 8);
+      Assert.assertEquals(ptm.getAndAcquireTasks(query, 8, "other").size(), 2);
+      for (Task task : leased) {
+         Assert.assertTrue(task.isAcquired());
+         task.completed("done");
+      }
+      Assert.assertEquals(ptm.getTasks(TaskQuery.builder().name(taskName).statuses(ImmutableSet.of(TaskStatus.COMPLETE)).build()).size(), 8);
+      ptm.close();
+   }
+
+   @Test
+   public void bulkCreate() throws TaskManagerException {
+      final String taskName = "bulkCreate";
+      final int bucket_count = 25000;
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource(), PostgresqlTaskManagerConfig.builder()
+              .bulkInsertBatchSize(1000)
+              .build());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofSeconds(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      // pre-create every 10th bucket
+      for (int i = 0; i < bucket_count; i += 10) {
+         ptm.createTask(taskName, bucket_time.plus(bucket_interval.multipliedBy(i)), PeriodDuration.of(bucket_interval), taskName);
+      }
+
+      List<Task> created = TaskManagerUtils.createTasksInTimeRange(ptm, taskName, bucket_time, PeriodDuration.of(bucket_interval), bucket_count, taskName);
+      Assert.assertEquals(created.size(), bucket_count - bucket_count / 10, "only missing buckets are created");
+      for (int i = 1; i < created.size(); ++i) {
+         Assert.assertTrue(created.get(i - 1).getBucketTime().isBefore(created.get(i).getBucketTime()), "created tasks are sorted");
+      }
+      Assert.assertEquals(ptm.getTasks(TaskQuery.builder().name(taskName).build()).size(), bucket_count);
+      Assert.assertTrue(TaskManagerUtils.createTasksInTimeRange(ptm, taskName, bucket_time, PeriodDuration.of(bucket_interval), bucket_count, taskName).isEmpty());
+   }
+
+   @Test
+   public void fillGapsInsertsMissingBuckets() throws TaskManagerException {
+      final String taskName = "fillGaps";
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant start = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval).minus(Duration.ofHours(1));
+      Instant end = start.plus(bucket_interval.multipliedBy(12));
+      ptm.createTask(taskName, start, PeriodDuration.of(bucket_interval), taskName);
+      ptm.createTask(taskName, start.plus(bucket_interval.multipliedBy(5)), PeriodDuration.of(bucket_interval), taskName);
+      ptm.createTask(taskName, end, PeriodDuration.of(bucket_interval), taskName);
+
+      Assert.assertEquals(ptm.fillGaps(taskName, start, end, PeriodDuration.of(bucket_interval), taskName), 10);
+      Assert.assertEquals(ptm.fillGaps(taskName, start, end, PeriodDuration.of(bucket_interval), taskName), 0, "no gaps are left");
+      List<Task> tasks = ptm.getTasks(TaskQuery.builder().name(taskName).bucketStartTime(start).bucketEndTime(end).build());
+      Assert.assertEquals(tasks.size(), 12);
+      for (Task task : tasks) {
+         Assert.assertEquals(task.getStatus(), TaskStatus.AVAILABLE);
+         Assert.assertEquals(task.getBucketInterval(), PeriodDuration.of(bucket_interval));
+      }
+
+      // months are added by the database, not by the caller
+      PeriodDuration monthly = PeriodDuration.of(Period.ofMonths(1));
+      Instant january = Instant.parse("2026-01-01T00:00:00Z");
+      Assert.assertEquals(ptm.fillGaps("monthly", january, Instant.parse("2026-04-01T00:00:00Z"), monthly, taskName), 3);
+      Assert.assertEquals(ptm.getTasks(TaskQuery.builder().name("monthly").build()).get(0).getBucketInterval(), monthly);
+      Assert.assertThrows(IllegalArgumentException.class, () -> ptm.fillGaps("monthly", january, january, PeriodDuration.of(Period.ofMonths(-1)), taskName));
+   }
+
+   @Test
+   public void queryValuesAreBound() throws TaskManagerException {
+      final String taskName = "query'Values";
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(1);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      for (int i = 0; i < 4; ++i) {
+         ptm.createTask(taskName, bucket_time.plus(bucket_interval.multipliedBy(i)), PeriodDuration.of(bucket_interval), taskName);
+      }
+
+      TaskQuery range = TaskQuery.builder()
+              .name(taskName)
+              .bucketStartTime(bucket_time.plus(bucket_interval))
+              .bucketEndTime(bucket_time.plus(bucket_interval.multipliedBy(3)))
+              .statuses(EnumSet.of(TaskStatus.AVAILABLE, TaskStatus.SKIP))
+              .build();
+      Assert.assertEquals(ptm.getTasks(range).size(), 2);
+
+      Task task = ptm.getAndAcquireFirstTask(range);
+      Assert.assertNotNull(task);
+      Assert.assertEquals(task.getName(), taskName);
+      task.completed("done");
+      Assert.assertEquals(ptm.getTasks(range).size(), 1);
+      Assert.assertEquals(ptm.getTasks(TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.COMPLETE)).build()).size(), 1);
+   }
+
+   @Test
+   public void findOrCreateAndAcquireInOneCall() throws TaskManagerException {
+      final String taskName = "findOrCreate";
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      Function<String, TaskSpecification> worker = workerName -> TaskSpecification.builder()
+              .workerName(workerName)
+              .taskManager(ptm)
+              .taskName(taskName)
+              .bucketInterval(bucket_interval)
+              .backlogWindowSize(Duration.ofHours(1))
+              .singleRoundTrip(true)
+              .build();
+      TaskSpecification first = worker.apply("first");
+      TaskSpecification second = worker.apply("second");
+
+      // the backlog comes first
+      ptm.createTask(taskName, bucket_time.minus(bucket_interval), PeriodDuration.of(bucket_interval), taskName);
+      Task backlogTask = first.findOrCreateAndAcquire();
+      Assert.assertEquals(backlogTask.getBucketTime(), bucket_time.minus(bucket_interval));
+      Assert.assertTrue(backlogTask.isAcquired());
+
+      // then the current bucket is created already acquired
+      Task createdTask = second.findOrCreateAndAcquire();
+      Assert.assertEquals(createdTask.getBucketTime(), bucket_time);
+      Assert.assertEquals(createdTask.getStatus(), TaskStatus.ACQUIRED);
+      Assert.assertEquals(createdTask.getAcquiredBy(), "second");
+
+      // with both held, another worker gets nothing, without waiting for either
+      Assert.assertNull(worker.apply("third").findOrCreateAndAcquire());
+
+      backlogTask.completed("done");
+      createdTask.failed("failed");
+      Task retried = first.findOrCreateAndAcquire();
+      Assert.assertEquals(retried.getBucketTime(), bucket_time, "failed task is back in the backlog");
+      retried.completed("done");
+      Assert.assertNull(first.findOrCreateAndAcquire(), "every bucket is complete");
+   }
+
+   @Test
+   public void awaitAndAcquireWakesOnNotification() throws Exception {
+      final String taskName = "awaitAndAcquire";
+      // a mixed-case table name is folded by LISTEN, and must be by the notifying trigger too
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource(), PostgresqlTaskManagerConfig.builder()
+              .tableName("public.AwaitTasks")
+              .availabilityNotifications(true)
+              .build());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(1);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskQuery query = TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+         Assert.assertNull(ptm.awaitAndAcquire(query, Duration.ofMillis(200)), "nothing to acquire before the timeout");
+
+         // woken by the insert, long before the poll interval
+         Future<Task> waiter = executor.submit(() -> ptm.awaitAndAcquire(query, Duration.ofSeconds(20), "waiter"));
+         Thread.sleep(500);
+         Assert.assertFalse(waiter.isDone());
+         ptm.createTask("someOtherTask", bucket_time, PeriodDuration.of(bucket_interval), taskName);
+         ptm.createTask(taskName, bucket_time, PeriodDuration.of(bucket_interval), taskName);
+         Task task = waiter.get(5, TimeUnit.SECONDS);
+         Assert.assertEquals(task.getBucketTime(), bucket_time);
+         Assert.assertEquals(task.getAcquiredBy(), "waiter");
+
+         // woken by the failed task returning to AVAILABLE
+         waiter = executor.submit(() -> ptm.awaitAndAcquire(query, Duration.ofSeconds(20), "waiter"));
+         Thread.sleep(500);
+         Assert.assertFalse(waiter.isDone());
+         task.failed("failed");
+         Task retried = waiter.get(5, TimeUnit.SECONDS);
+         Assert.assertEquals(retried.getBucketTime(), bucket_time);
+         retried.completed("done");
+      } finally {
+         executor.shutdownNow();
+         ptm.close();
+      }
+   }
+
+   @Test
+   public void asyncPipeline() throws Exception {
+      final String taskName = "asyncPipeline";
+      final int bucket_count = 50;
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource(),
+              PostgresqlTaskManagerConfig.builder().asyncPoolSize(4).build());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(1);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskQuery query = TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+      try (PostgresqlAsyncTaskManager atm = new PostgresqlAsyncTaskManager(ptm)) {
+         List<CompletableFuture<Task>> pipelines = new ArrayList<>();
+         for (int i = 0; i < bucket_count; ++i) {
+            pipelines.add(atm.createTask(taskName, bucket_time.plus(bucket_interval.multipliedBy(i)), PeriodDuration.of(bucket_interval), taskName)
+                    .thenCompose(created -> atm.getAndAcquireFirstTask(query, "async"))
+                    .thenCompose(acquired -> atm.completed(acquired, "done")));
+         }
+         CompletableFuture.allOf(pipelines.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+         Assert.assertEquals(atm.getTasks(TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.COMPLETE)).build()).get().size(), bucket_count);
+
+         CompletableFuture<Task> duplicate = atm.createTask(taskName, bucket_time, PeriodDuration.of(bucket_interval), taskName);
+         try {
+            duplicate.join();
+            Assert.fail("duplicate task was created");
+         } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof DuplicateTaskException);
+         }
+      }
+   }
+
+   @Test
+   public void workerRuntimeDrainsBacklog() throws Exception {
+      final String taskName = "workerRuntime";
+      final int bucket_count = 20;
+      final int permits = 2;
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(1);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskManagerUtils.createTasksInTimeRange(ptm, taskName, bucket_time.minus(bucket_interval.multipliedBy(bucket_count)), PeriodDuration.of(bucket_interval), bucket_count, taskName);
+
+      final AtomicInteger running = new AtomicInteger();
+      final AtomicInteger maxRunning = new AtomicInteger();
+      final CountDownLatch processed = new CountDownLatch(bucket_count + 1);
+      TaskWorkerRuntime runtime = new TaskWorkerRuntime(permits, Duration.ofMillis(100));
+      for (int i = 0; i < 6; ++i) {
+         runtime.submit(TaskSpecification.builder()
+                         .workerName("worker" + i)
+                         .taskManager(ptm)
+                         .taskName(taskName)
+                         .bucketInterval(bucket_interval)
+                         .backlogWindowSize(Duration.ofHours(1))
+                         .build(),
+                 task -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                       Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                       throw new RuntimeException(e);
+                    }
+                    running.decrementAndGet();
+                    processed.countDown();
+                    return "done";
+                 },
+                 (task, e) -> e.getMessage());
+      }
+      Assert.assertTrue(processed.await(30, TimeUnit.SECONDS));
+      Assert.assertTrue(runtime.drain(Duration.ofSeconds(10)));
+      Assert.assertTrue(maxRunning.get() <= permits, "more tasks ran at once than permits");
+      Assert.assertEquals(ptm.getTasks(TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.COMPLETE)).build()).size(), bucket_count + 1);
+      Assert.assertThrows(IllegalStateException.class, () -> runtime.submit(null, null, null));
+   }
+
+   @Test
+   public void advisoryLocksShareOneSession() throws TaskManagerException, SQLException, IOException {
+      final String taskName = "advisoryLock";
+      final int bucket_count = 50;
+      DataSource dataSource = createNonPoolingDataSource();
+      PostgresqlTaskManagerConfig config = PostgresqlTaskManagerConfig.builder().acquisitionMode(AcquisitionMode.ADVISORY_LOCK).build();
+      PostgresqlTaskManager first = new PostgresqlTaskManager(dataSource, config);
+      PostgresqlTaskManager second = new PostgresqlTaskManager(dataSource, config);
+      first.initialize();
+      Duration bucket_interval = Duration.ofMinutes(1);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskManagerUtils.createTasksInTimeRange(first, taskName, bucket_time, PeriodDuration.of(bucket_interval), bucket_count, taskName);
+      TaskQuery query = TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+
+      List<Task> firstTasks = first.getAndAcquireTasks(query, 20, "first");
+      Assert.assertEquals(firstTasks.size(), 20);
+      Assert.assertEquals(advisoryLocks(dataSource), new int[] {20, 1}, "every lock is held by one session");
+      Assert.assertEquals(first.getAndAcquireTasks(query, 100, "first").size(), bucket_count - 20, "held tasks are not acquired twice");
+      Assert.assertTrue(second.getAndAcquireTasks(query, 100, "second").isEmpty());
+      Assert.assertThrows(RuntimeException.class, () -> first.getTask(taskName, firstTasks.get(0).getBucketTime()).acquire("first"));
+
+      Task completed = firstTasks.get(0);
+      completed.completed("done");
+      Assert.assertEquals(first.getTask(taskName, completed.getBucketTime()).getStatus(), TaskStatus.COMPLETE);
+      Assert.assertEquals(advisoryLocks(dataSource)[0], bucket_count - 1);
+      Assert.assertThrows(RuntimeException.class, () -> second.getTask(taskName, completed.getBucketTime()).acquire("second"));
+      Assert.assertEquals(first.getTask(taskName, completed.getBucketTime()).getStatus(), TaskStatus.COMPLETE, "finished tasks are not acquired again");
+      Assert.assertEquals(advisoryLocks(dataSource)[0], bucket_count - 1);
+
+      // the first worker dies, and the second reclaims every task it held
+      first.close();
+      Assert.assertFalse(firstTasks.get(1).isAcquired());
+      List<Task> reclaimed = second.getAndAcquireTasks(query, 100, "second");
+      Assert.assertEquals(reclaimed.size(), bucket_count - 1);
+      for (Task task : reclaimed) {
+         Assert.assertEquals(task.getAcquiredBy(), "second");
+         task.skip("skipped");
+      }
+      Assert.assertEquals(advisoryLocks(dataSource)[0], 0);
+      Assert.assertEquals(second.getTasks(TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.SKIP)).build()).size(), bucket_count - 1);
+      second.close();
+   }
+
+   /**
+    * @return the number of advisory locks held, and the number of sessions holding them
+    */
+   private static int[] advisoryLocks(DataSource dataSource) throws SQLException {
+      try (Connection conn = dataSource.getConnection();
+           Statement stmt = conn.createStatement();
+           ResultSet resultSet = stmt.executeQuery("SELECT count(*), count(DISTINCT pid) FROM pg_locks WHERE locktype = 'advisory' AND granted")) {
+         resultSet.next();
+         return new int[] {resultSet.getInt(1), resultSet.getInt(2)};
+      }
+   }
+
+   @Test
+   public void metricsRecordLifecycle() throws TaskManagerException, SQLException {
+      final String taskName = "metrics";
+      SimpleMeterRegistry registry = new SimpleMeterRegistry();
+      DataSource dataSource = createNonPoolingDataSource();
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.builder().recordAcquireMisses(true).build(), registry);
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(1);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskQuery query = TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+
+      ptm.createTask(taskName, bucket_time, PeriodDuration.of(bucket_interval), taskName);
+      Assert.assertThrows(DuplicateTaskException.class, () -> ptm.createTask(taskName, bucket_time, PeriodDuration.of(bucket_interval), taskName));
+      Assert.assertEquals(registry.get("dtc.task.create").tags("name", taskName, "outcome", "created").timer().count(), 1);
+      Assert.assertEquals(registry.get("dtc.task.create").tags("name", taskName, "outcome", "duplicate").timer().count(), 1);
+
+      Task task = ptm.getAndAcquireFirstTask(query, "metrics");
+      Assert.assertEquals(registry.get("dtc.task.connections.held").gauge().value(), 1.0);
+      // a second task manager on the same table reports its own connections
+      PostgresqlTaskManager other = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.defaults(), registry);
+      Assert.assertEquals(registry.get("dtc.task.connections.held").gauges().stream().mapToDouble(Gauge::value).sorted().boxed().collect(Collectors.toList()),
+              List.of(0.0, 1.0));
+      other.close();
+      Assert.assertEquals(registry.get("dtc.task.connections.held").gauges().size(), 1);
+      Assert.assertNull(ptm.getAndAcquireFirstTask(query, "metrics"));
+      Assert.assertEquals(registry.get("dtc.task.acquire").tags("name", taskName, "outcome", "acquired").timer().count(), 1);
+      Assert.assertEquals(registry.get("dtc.task.acquire").tags("name", taskName, "outcome", "empty").timer().count(), 1);
+      Assert.assertEquals(registry.get("dtc.task.acquire.misses").tags("name", taskName).counter().count(), 1.0, "the only task is held");
+
+      task.failed("failed");
+      Assert.assertEquals(registry.get("dtc.task.connections.held").gauge().value(), 0.0);
+      Assert.assertEquals(registry.get("dtc.task.failures").tags("name", taskName).counter().count(), 1.0);
+      Assert.assertEquals(registry.get("dtc.task.held").tags("name", taskName, "outcome", "failed").timer().count(), 1);
+
+      ptm.getAndAcquireFirstTask(query, "metrics").completed("done");
+      Assert.assertNull(ptm.getAndAcquireFirstTask(query, "metrics"));
+      Assert.assertEquals(registry.get("dtc.task.held").tags("name", taskName, "outcome", "completed").timer().count(), 1);
+      Assert.assertEquals(registry.get("dtc.task.acquire.misses").tags("name", taskName).counter().count(), 1.0, "no backlog is not a miss");
+
+      // a completion that is never committed is not counted
+      ptm.createTask(taskName, bucket_time.plus(bucket_interval), PeriodDuration.of(bucket_interval), taskName);
+      Task lost = ptm.getAndAcquireFirstTask(query, "metrics");
+      try (Connection conn = dataSource.getConnection();
+           Statement stmt = conn.createStatement()) {
+         stmt.execute("SELECT pg_terminate_backend(pid) FROM pg_stat_activity WHERE state = 'idle in transaction' AND datname = current_database()");
+      }
+      Assert.assertThrows(RuntimeException.class, () -> lost.completed("done"));
+      Assert.assertEquals(registry.get("dtc.task.held").tags("name", taskName, "outcome", "completed").timer().count(), 1);
+
+      // misses are only looked for when asked for
+      Task held = ptm.getAndAcquireFirstTask(query, "metrics");
+      PostgresqlTaskManager quiet = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.defaults(), registry);
+      Assert.assertNull(quiet.getAndAcquireFirstTask(query, "metrics"));
+      Assert.assertEquals(registry.get("dtc.task.acquire.misses").tags("name", taskName).counter().count(), 1.0);
+      held.completed("done");
+      quiet.close();
+
+      // a batch holds a single connection, which is returned with its last member
+      for (int i = 2; i < 5; i++) {
+         ptm.createTask(taskName, bucket_time.plus(bucket_interval.multipliedBy(i)), PeriodDuration.of(bucket_interval), taskName);
+      }
+      List<Task> batch = ptm.getAndAcquireTasks(query, 3, "metrics");
+      Assert.assertEquals(batch.size(), 3);
+      Assert.assertEquals(registry.get("dtc.task.connections.held").gauge().value(), 1.0);
+      for (Task member : batch) {
+         member.completed("done");
+      }
+      Assert.assertEquals(registry.get("dtc.task.connections.held").gauge().value(), 0.0);
+   }
+
+   @Test
+   public void watermarkTracksBacklog() throws TaskManagerException {
+      final String taskName = "watermark";
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(1);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      TaskQuery query = TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+      TaskManagerUtils.createTasksInTimeRange(ptm, taskName, bucket_time, PeriodDuration.of(bucket_interval), 5, taskName);
+      Assert.assertNull(ptm.getWatermark(taskName), "no task has finished yet");
+
+      // completing the tasks in order advances the watermark to the next unfinished task
+      ptm.getAndAcquireFirstTask(query, taskName).completed("done");
+      ptm.getAndAcquireFirstTask(query, taskName).completed("done");
+      Assert.assertEquals(ptm.getWatermark(taskName), bucket_time.plus(bucket_interval.multipliedBy(2)));
+
+      // a task finished out of order is passed over once the watermark reaches it
+      ptm.getTask(taskName, bucket_time.plus(bucket_interval.multipliedBy(3))).acquire(taskName);
+      Task third = ptm.getAndAcquireFirstTask(query, taskName);
+      Assert.assertEquals(third.getBucketTime(), bucket_time.plus(bucket_interval.multipliedBy(2)));
+      third.skip("skipped");
+      Assert.assertEquals(ptm.getWatermark(taskName), bucket_time.plus(bucket_interval.multipliedBy(3)), "the next task is only held, not finished");
+
+      // a task that returns to the backlog, or is created behind the watermark, lowers it
+      Task first = ptm.getTask(taskName, bucket_time);
+      ptm.setTaskStatus(ImmutableSet.of(first), TaskStatus.AVAILABLE, taskName);
+      Assert.assertEquals(ptm.getWatermark(taskName), bucket_time);
+      Assert.assertEquals(ptm.getAndAcquireFirstTask(query, taskName).getBucketTime(), bucket_time, "backlog queries start from the watermark");
+      ptm.createTask(taskName, bucket_time.minus(bucket_interval), PeriodDuration.of(bucket_interval), taskName);
+      Assert.assertEquals(ptm.getWatermark(taskName), bucket_time.minus(bucket_interval));
+   }
+
+   @Test
+   public void setStatusReportsLockedTasks() throws TaskManagerException {
+      final String taskName = "setStatusLocked";
+      final int bucket_count = 20000;
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofSeconds(1);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      final List<Task> createdTasks = TaskManagerUtils.createTasksInTimeRange(ptm, taskName, bucket_time, PeriodDuration.of(bucket_interval), bucket_count, taskName);
+      Assert.assertEquals(createdTasks.size(), bucket_count);
+
+      Task first = ptm.getTask(taskName, bucket_time);
+      Task last = ptm.getTask(taskName, bucket_time.plus(bucket_interval.multipliedBy(bucket_count - 1)));
+      first.acquire(taskName);
+      last.acquire(taskName);
+      try {
+         ptm.setTaskStatus(ImmutableSet.copyOf(createdTasks), TaskStatus.SKIP, taskName);
+         Assert.fail("updated locked tasks");
+      } catch (AcquireException e) {
+         Assert.assertEquals(e.getRelatedTasks().length, 2, "locked tasks are reported");
+      }
+      Assert.assertEquals(ptm.getTasks(TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.SKIP)).build()).size(), 0, "nothing is updated");
+
+      first.completed("done");
+      last.completed("done");
+      Set<Task> updated = ptm.setTaskStatusAndGet(ImmutableSet.copyOf(createdTasks), TaskStatus.SKIP, taskName);
+      Assert.assertEquals(updated.size(), bucket_count);
+      Assert.assertEquals(ptm.getTasks(TaskQuery.builder().name(taskName).statuses(EnumSet.of(TaskStatus.SKIP)).build()).size(), bucket_count);
+   }
+
+   @Test
+   public void initializeCreatesIndexes() throws TaskManagerException, SQLException {
+      DataSource dataSource = createNonPoolingDataSource();
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.builder()
+              .tableName("public.indexed_tasks")
+              .indexes(EnumSet.allOf(TaskIndex.class))
+              .build());
+      ptm.initialize();
+
+      List<String> indexNames = new ArrayList<>();
+      try (Connection conn = dataSource.getConnection();
+           Statement stmt = conn.createStatement();
+           ResultSet resultSet = stmt.executeQuery("SELECT indexname FROM pg_indexes WHERE schemaname = 'public' AND tablename = 'indexed_tasks'")) {
+         while (resultSet.next()) {
+            indexNames.add(resultSet.getString(1));
+         }
+      }
+      Assert.assertEquals(indexNames.size(), 1 + TaskIndex.values().length, "primary key plus every index: " + indexNames);
+      Assert.assertTrue(indexNames.contains("indexed_tasks_available_idx"));
+      Assert.assertTrue(indexNames.contains("indexed_tasks_bucket_time_brin_idx"));
+   }
+
+   @Test
+   public void partitionsAreMaintained() throws TaskManagerException, SQLException {
+      final String taskName = "partitioned";
+      DataSource dataSource = createNonPoolingDataSource();
+      Duration partition_interval = Duration.ofDays(1);
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.builder()
+              .tableName("partitioned_tasks")
+              .partitionInterval(partition_interval)
+              .partitionsAhead(2)
+              .partitionRetention(Duration.ofDays(7))
+              .build());
+      ptm.initialize();
+      Instant today = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, partition_interval);
+      Assert.assertEquals(partitionsHoldingTasks(dataSource, "partitioned_tasks"), ImmutableSet.of(), "no tasks yet");
+
+      // tasks land in the partition covering their bucket, or in the default partition until one covers it
+      Duration bucket_interval = Duration.ofHours(1);
+      ptm.createTask(taskName, today, PeriodDuration.of(bucket_interval), taskName);
+      ptm.createTask(taskName, today.plus(Duration.ofDays(10)), PeriodDuration.of(bucket_interval), taskName);
+      Assert.assertEquals(partitionsHoldingTasks(dataSource, "partitioned_tasks"), ImmutableSet.of("partitioned_tasks_default", ptm.sqlBuilder.partitionName(today)));
+
+      // creating the partition ahead of the future task moves it out of the default partition, and today's partition expires
+      ptm.maintainPartitions(today.plus(Duration.ofDays(10)));
+      Assert.assertEquals(partitionsHoldingTasks(dataSource, "partitioned_tasks"), ImmutableSet.of(ptm.sqlBuilder.partitionName(today.plus(Duration.ofDays(10)))));
+      Assert.assertNull(ptm.getTask(taskName, today), "dropped with its partition");
+      TaskQuery query = TaskQuery.builder().name(taskName).bucketStartTime(today).statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+      Task acquired = ptm.getAndAcquireFirstTask(query, taskName);
+      Assert.assertEquals(acquired.getBucketTime(), today.plus(Duration.ofDays(10)));
+      acquired.completed("done");
+      ptm.close();
+   }
+
+   @Test
+   public void retentionArchivesAndSkipsOldTasks() throws TaskManagerException, SQLException {
+      final String taskName = "retention";
+      DataSource dataSource = createNonPoolingDataSource();
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.builder()
+              .archiveAfter(Duration.ofDays(7))
+              .skipAvailableAfter(Duration.ofDays(3))
+              .retentionBatchSize(3)
+              .build());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofHours(1);
+      Instant old_bucket_time = TimeUtils.alignWithInterval(Instant.now().minus(Duration.ofDays(10)), Instant.EPOCH, bucket_interval);
+      TaskManagerUtils.createTasksInTimeRange(ptm, taskName, old_bucket_time, PeriodDuration.of(bucket_interval), 6, taskName);
+      Task recent = ptm.createTask(taskName, TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval), PeriodDuration.of(bucket_interval), taskName);
+      TaskQuery query = TaskQuery.builder().name(taskName).bucketEndTime(recent.getBucketTime()).statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+      for (int i = 0; i < 3; ++i) {
+         ptm.getAndAcquireFirstTask(query, taskName).completed("done");
+      }
+      Task held = ptm.getAndAcquireFirstTask(query, taskName);
+
+      // the tasks nobody picked up are skipped, but neither the held one nor the recent one
+      Assert.assertEquals(ptm.skipStaleTasks(), 2);
+      Assert.assertEquals(ptm.getTask(taskName, recent.getBucketTime()).getStatus(), TaskStatus.AVAILABLE);
+
+      // the finished tasks move to the archive in batches
+      Assert.assertEquals(ptm.archiveFinishedTasks(), 5);
+      Assert.assertEquals(ptm.getTasks(TaskQuery.builder().name(taskName).build()).size(), 2, "the held and the recent task remain");
+      try (Connection conn = dataSource.getConnection();
+           Statement stmt = conn.createStatement();
+           ResultSet resultSet = stmt.executeQuery("SELECT count(*) FROM tasks_archive WHERE name = '" + taskName + "'")) {
+         resultSet.next();
+         Assert.assertEquals(resultSet.getInt(1), 5);
+      }
+      held.completed("done");
+      Assert.assertEquals(ptm.archiveFinishedTasks(), 1);
+      ptm.close();
+   }
+
+   @Test
+   public void pagesAndStreamsTasks() throws TaskManagerException {
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource(), PostgresqlTaskManagerConfig.builder()
+              .streamFetchSize(4)
+              .build());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      ptm.fillGaps("pageA", bucket_time, bucket_time.plus(bucket_interval.multipliedBy(25)), PeriodDuration.of(bucket_interval), "test");
+      ptm.fillGaps("pageB", bucket_time, bucket_time.plus(bucket_interval.multipliedBy(5)), PeriodDuration.of(bucket_interval), "test");
+
+      // pages of one name follow the primary key
+      TaskQuery byName = TaskQuery.builder().name("pageA").orderBy(TaskOrder.OLDEST_FIRST).limit(10).build();
+      List<Integer> pageSizes = new ArrayList<>();
+      Instant expected = bucket_time;
+      List<Task> page = ptm.getTasks(byName);
+      while (!page.isEmpty()) {
+         pageSizes.add(page.size());
+         for (Task task : page) {
+            Assert.assertEquals(task.getBucketTime(), expected);
+            expected = expected.plus(bucket_interval);
+         }
+         page = ptm.getTasks(byName.toBuilder().after(page.get(page.size() - 1)).build());
+      }
+      Assert.assertEquals(pageSizes, List.of(10, 10, 5));
+
+      // pages across names break ties by name
+      TaskQuery allNames = TaskQuery.builder().orderBy(TaskOrder.NEWEST_FIRST).limit(7).build();
+      List<Task> seen = new ArrayList<>();
+      page = ptm.getTasks(allNames);
+      while (!page.isEmpty()) {
+         seen.addAll(page);
+         page = ptm.getTasks(allNames.toBuilder().after(page.get(page.size() - 1)).build());
+      }
+      Assert.assertEquals(seen.size(), 30);
+      Assert.assertEquals(seen.get(20).getName(), "pageB");
+      Assert.assertEquals(seen.get(21).getName(), "pageA");
+      Assert.assertEquals(seen.get(21).getBucketTime(), bucket_time.plus(bucket_interval.multipliedBy(4)));
+
+      // a stream fetches through a cursor, several fetches here
+      try (Stream<Task> tasks = ptm.streamTasks(TaskQuery.builder().name("pageA").orderBy(TaskOrder.NEWEST_FIRST).build())) {
+         List<Task> streamed = tasks.collect(Collectors.toList());
+         Assert.assertEquals(streamed.size(), 25);
+         Assert.assertEquals(streamed.get(0).getBucketTime(), bucket_time.plus(bucket_interval.multipliedBy(24)));
+      }
+   }
+
+   @Test
+   public void countsTasksByNameStatusAndRange() throws TaskManagerException {
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(createNonPoolingDataSource());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, Duration.ofHours(1));
+      ptm.fillGaps("countA", bucket_time, bucket_time.plus(Duration.ofHours(2)), PeriodDuration.of(bucket_interval), "test");
+      ptm.fillGaps("countB", bucket_time, bucket_time.plus(Duration.ofHours(1)), PeriodDuration.of(bucket_interval), "test");
+      TaskQuery backlog = TaskQuery.builder().name("countA").statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+      for (int i = 0; i < 3; ++i) {
+         ptm.getAndAcquireFirstTask(backlog, "test").completed("done");
+      }
+
+      Assert.assertEquals(ptm.countTasks(backlog), 21);
+      Assert.assertEquals(ptm.countTasks(TaskQuery.builder().build()), 36);
+      Assert.assertEquals(ptm.countTasks(TaskQuery.builder().name("countA").limit(1).build()), 24, "the limit is ignored");
+
+      List<TaskCount> byStatus = ptm.countTasksGrouped(TaskQuery.builder().build(), null);
+      Assert.assertEquals(byStatus, List.of(
+              TaskCount.builder().name("countA").status(TaskStatus.AVAILABLE).count(21).build(),
+              TaskCount.builder().name("countA").status(TaskStatus.COMPLETE).count(3).build(),
+              TaskCount.builder().name("countB").status(TaskStatus.AVAILABLE).count(12).build()));
+
+      List<TaskCount> byRange = ptm.countTasksGrouped(TaskQuery.builder().name("countA").build(), Duration.ofHours(1));
+      Assert.assertEquals(byRange, List.of(
+              TaskCount.builder().name("countA").status(TaskStatus.AVAILABLE).rangeStart(bucket_time).count(9).build(),
+              TaskCount.builder().name("countA").status(TaskStatus.COMPLETE).rangeStart(bucket_time).count(3).build(),
+              TaskCount.builder().name("countA").status(TaskStatus.AVAILABLE).rangeStart(bucket_time.plus(Duration.ofHours(1))).count(12).build()));
+   }
+
+   @Test
+   public void compactSchemaRoundTrips() throws TaskManagerException, SQLException {
+      DataSource dataSource = createNonPoolingDataSource();
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.builder()
+              .compactSchema(true)
+              .build());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      ptm.createTask("compactA", bucket_time, PeriodDuration.of(bucket_interval), "test");
+      ptm.createTasks("compactA", List.of(bucket_time.plus(bucket_interval), bucket_time.plus(bucket_interval.multipliedBy(2))), PeriodDuration.of(bucket_interval), "test");
+      Assert.assertEquals(ptm.fillGaps("compactB", bucket_time, bucket_time.plus(bucket_interval.multipliedBy(4)), PeriodDuration.of(bucket_interval), "test"), 4);
+      Assert.assertThrows(IllegalArgumentException.class,
+              () -> ptm.createTask("compactA", bucket_time.minus(Duration.ofDays(31)), PeriodDuration.of(Period.ofMonths(1)), "test"));
+
+      TaskQuery backlog = TaskQuery.builder().name("compactA").statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+      Task task = ptm.getAndAcquireFirstTask(backlog, "worker");
+      Assert.assertEquals(task.getName(), "compactA");
+      Assert.assertEquals(task.getBucketTime(), bucket_time);
+      Assert.assertEquals(task.getBucketInterval(), PeriodDuration.of(bucket_interval));
+      Assert.assertEquals(task.getStatus(), TaskStatus.ACQUIRED);
+      task.completed("done");
+      Task created = ptm.findOrCreateAndAcquire(TaskQuery.builder().name("compactC").statuses(EnumSet.of(TaskStatus.AVAILABLE)).build(),
+              bucket_time, PeriodDuration.of(bucket_interval), "worker");
+      Assert.assertEquals(created.getName(), "compactC");
+      created.failed("retry");
+
+      // a second task manager reads the names from the lookup table
+      PostgresqlTaskManager reader = new PostgresqlTaskManager(dataSource, ptm.getConfig());
+      Assert.assertEquals(reader.getTask("compactA", bucket_time).getStatus(), TaskStatus.COMPLETE);
+      Assert.assertEquals(reader.countTasksGrouped(TaskQuery.builder().build(), null), List.of(
+              TaskCount.builder().name("compactA").status(TaskStatus.AVAILABLE).count(2).build(),
+              TaskCount.builder().name("compactA").status(TaskStatus.COMPLETE).count(1).build(),
+              TaskCount.builder().name("compactB").status(TaskStatus.AVAILABLE).count(4).build(),
+              TaskCount.builder().name("compactC").status(TaskStatus.AVAILABLE).count(1).build()));
+
+      Map<String, String> columnTypes = new HashMap<>();
+      try (Connection conn = dataSource.getConnection();
+           Statement stmt = conn.createStatement();
+           ResultSet resultSet = stmt.executeQuery("SELECT column_name, udt_name FROM information_schema.columns WHERE table_name = 'tasks'")) {
+         while (resultSet.next()) {
+            columnTypes.put(resultSet.getString(1), resultSet.getString(2));
+         }
+      }
+      Assert.assertEquals(columnTypes.get("name_id"), "int4");
+      Assert.assertEquals(columnTypes.get("status"), "tasks_status");
+      Assert.assertEquals(columnTypes.get("bucket_interval"), "int8");
+      Assert.assertFalse(columnTypes.containsKey("name"));
+   }
+
+   @Test
+   public void acquiresInRequestedOrder() throws TaskManagerException, SQLException {
+      DataSource dataSource = createNonPoolingDataSource();
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.builder()
+              .indexes(EnumSet.allOf(TaskIndex.class))
+              .build());
+      ptm.initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      ptm.fillGaps("orderA", bucket_time, bucket_time.plus(bucket_interval.multipliedBy(10)), PeriodDuration.of(bucket_interval), "test");
+      ptm.fillGaps("orderB", bucket_time.plus(bucket_interval.multipliedBy(2)), bucket_time.plus(bucket_interval.multipliedBy(11)), PeriodDuration.of(bucket_interval), "test");
+      TaskQuery backlog = TaskQuery.builder().name("orderA").statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+
+      Task newest = ptm.getAndAcquireFirstTask(backlog.toBuilder().orderBy(TaskOrder.NEWEST_FIRST).build(), "worker");
+      Assert.assertEquals(newest.getBucketTime(), bucket_time.plus(bucket_interval.multipliedBy(9)));
+      newest.completed("done");
+      Task oldest = ptm.getAndAcquireFirstTask(backlog.toBuilder().orderBy(TaskOrder.OLDEST_FIRST).build(), "worker");
+      Assert.assertEquals(oldest.getBucketTime(), bucket_time);
+      oldest.completed("done");
+      TaskQuery anyName = TaskQuery.builder().statuses(EnumSet.of(TaskStatus.AVAILABLE)).orderBy(TaskOrder.NEWEST_FIRST).build();
+      Task newestOfAny = ptm.getAndAcquireFirstTask(anyName, "worker");
+      Assert.assertEquals(newestOfAny.getName(), "orderB");
+      Assert.assertEquals(newestOfAny.getBucketTime(), bucket_time.plus(bucket_interval.multipliedBy(10)));
+      newestOfAny.completed("done");
+
+      // raised priorities come first, then the oldest of the rest
+      TaskQuery urgent = backlog.toBuilder().bucketStartTime(bucket_time.plus(bucket_interval.multipliedBy(5))).bucketEndTime(bucket_time.plus(bucket_interval.multipliedBy(7))).build();
+      Assert.assertEquals(ptm.setTaskPriority(urgent, 1), 2);
+      Assert.assertEquals(ptm.getTask("orderA", bucket_time.plus(bucket_interval.multipliedBy(5))).getPriority(), 1);
+      List<Task> byPriority = ptm.getAndAcquireTasks(anyName.toBuilder().orderBy(TaskOrder.PRIORITY).build(), 3, "worker");
+      Assert.assertEquals(byPriority.stream().map(Task::getBucketTime).collect(Collectors.toList()), List.of(
+              bucket_time.plus(bucket_interval.multipliedBy(5)),
+              bucket_time.plus(bucket_interval.multipliedBy(6)),
+              bucket_time.plus(bucket_interval)));
+      byPriority.forEach(task -> task.completed("done"));
+      Assert.assertThrows(IllegalArgumentException.class,
+              () -> ptm.getTasks(TaskQuery.builder().orderBy(TaskOrder.PRIORITY).after(oldest).build()));
+
+      // each order walks an index, with or without a name, and never sorts
+      for (TaskOrder order : TaskOrder.values()) {
+         for (TaskQuery query : List.of(backlog, anyName)) {
+            String plan = explainAcquisition(dataSource, ptm, AcquisitionMode.TRANSACTION, query.toBuilder().orderBy(order).build());
+            Assert.assertFalse(plan.contains("Sort"), order + " " + query.getName() + ": " + plan);
+            // modes that reclaim acquired tasks sort those few, but still walk an index on available tasks for the rest
+            for (AcquisitionMode mode : List.of(AcquisitionMode.LEASE, AcquisitionMode.ADVISORY_LOCK)) {
+               String reclaimingPlan = explainAcquisition(dataSource, ptm, mode, query.toBuilder().orderBy(order).build());
+               Assert.assertTrue(reclaimingPlan.matches("(?s).*(?<!Bitmap )Index Scan (Backward )?using \\w+_available\\w*_idx.*"), mode + " " + order + " " + query.getName() + ": " + reclaimingPlan);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void acquiresFairlyAcrossNames() throws TaskManagerException, IOException {
+      DataSource dataSource = createNonPoolingDataSource();
+      new PostgresqlTaskManager(dataSource).initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      for (AcquisitionMode mode : AcquisitionMode.values()) {
+         PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource, PostgresqlTaskManagerConfig.builder().acquisitionMode(mode).build());
+         String hot = "fairHot" + mode;
+         String b = "fairB" + mode;
+         String c = "fairC" + mode;
+         ptm.fillGaps(hot, bucket_time, bucket_time.plus(bucket_interval.multipliedBy(20)), PeriodDuration.of(bucket_interval), "test");
+         ptm.fillGaps(b, bucket_time, bucket_time.plus(bucket_interval.multipliedBy(3)), PeriodDuration.of(bucket_interval), "test");
+         ptm.fillGaps(c, bucket_time, bucket_time.plus(bucket_interval.multipliedBy(3)), PeriodDuration.of(bucket_interval), "test");
+         TaskQuery available = TaskQuery.builder().names(ImmutableSet.of(hot, b, c)).statuses(EnumSet.of(TaskStatus.AVAILABLE)).build();
+         Assert.assertEquals(ptm.countTasks(available), 26);
+         Assert.assertEquals(ptm.getTasks(available.toBuilder().limit(4).build()).size(), 4);
+
+         // the deep backlog of one name does not starve the others
+         TaskQuery roundRobin = available.toBuilder().fairness(TaskFairness.ROUND_ROBIN).build();
+         List<Task> batch = ptm.getAndAcquireTasks(roundRobin, 6, "worker");
+         Assert.assertEquals(batch.stream().map(Task::getName).collect(Collectors.toList()), List.of(b, c, hot, b, c, hot), mode.name());
+         Assert.assertEquals(batch.stream().map(Task::getBucketTime).collect(Collectors.toList()), List.of(
+                 bucket_time, bucket_time, bucket_time,
+                 bucket_time.plus(bucket_interval), bucket_time.plus(bucket_interval), bucket_time.plus(bucket_interval)), mode.name());
+         for (Task task : batch) {
+            task.completed("done");
+            task.close();
+         }
+         // each acquisition starts the next round one name further on
+         Task first = ptm.getAndAcquireFirstTask(roundRobin, "worker");
+         Assert.assertEquals(first.getName(), c, mode.name());
+         first.completed("done");
+         first.close();
+         Task second = ptm.getAndAcquireFirstTask(roundRobin, "worker");
+         Assert.assertEquals(second.getName(), hot, mode.name());
+         second.completed("done");
+         second.close();
+
+         // b was served longest ago, then c, then the hot name
+         TaskQuery leastRecentlyServed = available.toBuilder().fairness(TaskFairness.LEAST_RECENTLY_SERVED).build();
+         Task third = ptm.getAndAcquireFirstTask(leastRecentlyServed, "worker");
+         Assert.assertEquals(third.getName(), b, mode.name());
+         third.completed("done");
+         third.close();
+         // b and c have no tasks left, so the whole batch comes from the hot name
+         List<Task> rest = ptm.getAndAcquireTasks(leastRecentlyServed, 4, "worker");
+         Assert.assertEquals(rest.stream().map(Task::getName).collect(Collectors.toList()), List.of(hot, hot, hot, hot), mode.name());
+         for (Task task : rest) {
+            task.completed("done");
+            task.close();
+         }
+         ptm.close();
+      }
+
+      PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource);
+      Assert.assertThrows(IllegalArgumentException.class,
+              () -> ptm.getTasks(TaskQuery.builder().name("fairB").names(ImmutableSet.of("fairC")).build()));
+      Assert.assertThrows(IllegalArgumentException.class,
+              () -> ptm.getAndAcquireFirstTask(TaskQuery.builder().name("fairB").fairness(TaskFairness.ROUND_ROBIN).build()));
+   }
+
+   @Test
+   public void fairWorkersSkipTasksHeldByOthers() throws Exception {
+      final int numWorkers = 4;
+      DataSource dataSource = createNonPoolingDataSource();
+      new PostgresqlTaskManager(dataSource).initialize();
+      Duration bucket_interval = Duration.ofMinutes(5);
+      Instant bucket_time = TimeUtils.alignWithInterval(Instant.now(), Instant.EPOCH, bucket_interval);
+      final ExecutorService executorService = Executors.newFixedThreadPool(numWorkers);
+      try {
+         for (AcquisitionMode mode : AcquisitionMode.values()) {
+            PostgresqlTaskManagerConfig config = PostgresqlTaskManagerConfig.builder().acquisitionMode(mode).build();
+            String a = "fairWorkersA" + mode;
+            String b = "fairWorkersB" + mode;
+            PostgresqlTaskManager ptm = new PostgresqlTaskManager(dataSource, config);
+            ptm.fillGaps(a, bucket_time, bucket_time.plus(bucket_interval.multipliedBy(10)), PeriodDuration.of(bucket_interval), "test");
+            ptm.fillGaps(b, bucket_time, bucket_time.plus(bucket_interval.multipliedBy(10)), PeriodDuration.of(bucket_interval), "test");
+            TaskQuery roundRobin = TaskQuery.builder().names(ImmutableSet.of(a, b)).statuses(EnumSet.of(TaskStatus.AVAILABLE))
+                    .fairness(TaskFairness.ROUND_ROBIN).build();
+
+            // every worker holds its task until all of them have acquired one
+            final CountDownLatch acquired = new CountDownLatch(numWorkers);
+            final CountDownLatch released = new CountDownLatch(1);
+            final List<PostgresqlTaskManager> workers = new ArrayList<>();
+            final List<Future<Task>> futures = new ArrayList<>();
+            for (int i = 0; i < numWorkers; ++i) {
+               PostgresqlTaskManager worker = new PostgresqlTaskManager(dataSource, config);
+               workers.add(worker);
+               final String acquiredBy = "worker" + i;
+               futures.add(executorService.submit(() -> {
+                  Task task = null;
+                  try {
+                     task = worker.getAndAcquireFirstTask(roundRobin, acquiredBy);
+                  } finally {
+                     acquired.countDown();
+                  }
+                  released.await();
+                  if (task != null) {
+                     task.completed("done");
+                     task.close();
+                  }
+                  return task;
+               }));
+            }
+            Assert.assertTrue(acquired.await(30, TimeUnit.SECONDS), mode.name());
+            // a batch taken meanwhile comes from the tasks nobody holds
+            List<Task> batch = ptm.getAndAcquireTasks(roundRobin, numWorkers, "batch");
+            released.countDown();
+
+            Set<String> keys = new TreeSet<>();
+            for (Future<Task> future : futures) {
+               Task task = future.get(30, TimeUnit.SECONDS);
+               Assert.assertNotNull(task, mode.name());
+               keys.add(task.getName() + "@" + task.getBucketTime());
+            }
+            Assert.assertEquals(batch.size(), numWorkers, mode.name());
+            for (Task task : batch) {
+               keys.add(task.getName() + "@" + task.getBucketTime());
+               task.completed("done");
+               task.close();
+            }
+            Assert.assertEquals(keys.size(), 2 * numWorkers, mode.name() + " " + keys);
+            Assert.assertEquals(ptm.countTasks(roundRobin.toBuilder().fairness(null).build()), 20 - 2 * numWorkers, mode.name());
+            workers.forEach(PostgresqlTaskManager::close);
+            ptm.close();
+         }
+      } finally {
+         executorService.shutdownNow();
+      }
+   }
+
+   /**
+    * The plan of the batch acquisition for the query in the mode, with sequential scans and sorts discouraged, so an ordered index is used if there is one.
+    */
+   private static String explainAcquisition(DataSource dataSource, PostgresqlTaskManager ptm, AcquisitionMode mode, TaskQuery taskQuery) throws SQLException {
+      try (Connection conn = dataSource.getConnection()) {
+         try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SET enable_seqscan = off");
+            stmt.execute("SET enable_sort = off");
+         }
+         final String sql;
+         switch (mode) {
+            case LEASE:
+               sql = ptm.sqlBuilder.updateAcquiredLeaseBatch(taskQuery);
+               break;
+            case ADVISORY_LOCK:
+               sql = ptm.sqlBuilder.updateAcquiredAdvisoryLockBatch(taskQuery);
+               break;
+            default:
+               sql = ptm.sqlBuilder.updateAcquiredBatch(taskQuery);
+         }
+         try (PreparedStatement pstmt = conn.prepareStatement("EXPLAIN " + sql)) {
+            int index = ptm.sqlBuilder.bindAcquirableRows(pstmt, 1, taskQuery, mode != AcquisitionMode.TRANSACTION, null, 1,
+                    mode == AcquisitionMode.ADVISORY_LOCK ? List.<Task>of() : null);
+            pstmt.setInt(index++, 1);
+            pstmt.setString(index++, TaskStatus.ACQUIRED.name());
+            pstmt.setString(index++, "explain");
+            pstmt.setTimestamp(index++, Timestamp.from(Instant.now()));
+            if (mode != AcquisitionMode.TRANSACTION) {
+               pstmt.setString(index++, "token");
+            }
+            if (mode == AcquisitionMode.LEASE) {
+               pstmt.setLong(index, 1000);
+            }
+            StringBuilder plan = new StringBuilder();
+            try (ResultSet resultSet = pstmt.executeQuery()) {
+               while (resultSet.next()) {
+                  plan.append(resultSet.getString(1)).append('\n');
+               }
+            }
+            return plan.toString();
+         }
+      }
+   }
+
+   /**
+    * The names of the partitions holding any tasks.
+    */
+   private static Set<String> partitionsHoldingTasks(DataSource dataSource, String tableName) throws SQLException {
+      Set<String> partitionNames = new TreeSet<>();
+      try (Connection conn = dataSource.getConnection();
+           Statement stmt = conn.createStatement();
+           ResultSet resultSet = stmt.executeQuery("SELECT DISTINCT tableoid::regclass::TEXT FROM " + tableName)) {
+         while (resultSet.next()) {
+            partitionNames.add(resultSet.getString(1));
+         }
+      }
+      return partitionNames;
+   }
+
    private static class TaskCreationWorker implements Callable<List<Task>> {
       private final TaskManager taskManager;
       private final int numTasks;